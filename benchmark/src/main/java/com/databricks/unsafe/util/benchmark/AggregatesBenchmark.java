@@ -0,0 +1,188 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.databricks.unsafe.util.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.databricks.unsafe.util.Aggregates;
+import com.databricks.unsafe.util.BitSet;
+import com.databricks.unsafe.util.DoubleArray;
+import com.databricks.unsafe.util.LongArray;
+import com.databricks.unsafe.util.memory.MemoryAllocator;
+import com.databricks.unsafe.util.memory.MemoryBlock;
+
+/**
+ * Compares the {@link Aggregates} kernels against a loop over {@link DoubleArray#get(long)} and
+ * against a plain scalar loop over a JVM array, on an off-heap array and on JVM arrays. The
+ * scalar loops are the baseline the kernels' JVM array paths compile from; run with
+ * {@code -prof perfasm} to inspect the generated code of both.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class AggregatesBenchmark {
+
+  /** Number of values to aggregate. */
+  @Param({"1000000", "16000000"})
+  public int numValues;
+
+  private DoubleArray offHeap;
+
+  private DoubleArray other;
+
+  private double[] values;
+
+  private DoubleArray onHeap;
+
+  private long[] longValues;
+
+  private LongArray onHeapLongs;
+
+  private BitSet mask;
+
+  @Setup
+  public void setUp() {
+    values = new double[numValues];
+    longValues = new long[numValues];
+    final Random random = new Random(42);
+    for (int i = 0; i < numValues; i++) {
+      values[i] = random.nextDouble();
+      longValues[i] = random.nextInt();
+    }
+    onHeapLongs = new LongArray(MemoryBlock.fromLongArray(longValues));
+    onHeap = new DoubleArray(MemoryBlock.fromDoubleArray(values));
+    offHeap = new DoubleArray(MemoryAllocator.UNSAFE.allocate(numValues * 8L));
+    offHeap.copyFrom(values, 0, 0, numValues);
+    other = new DoubleArray(MemoryAllocator.UNSAFE.allocate(numValues * 8L));
+    other.copyFrom(values, 0, 0, numValues);
+    // Selects half of the values, in runs of 64.
+    mask = new BitSet(MemoryBlock.fromLongArray(new long[(numValues + 63) / 64]));
+    for (int i = 0; i < numValues; i += 128) {
+      for (int j = i; j < Math.min(i + 64, numValues); j++) {
+        mask.set(j);
+      }
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    MemoryAllocator.UNSAFE.free(offHeap.memoryBlock());
+    MemoryAllocator.UNSAFE.free(other.memoryBlock());
+  }
+
+  @Benchmark
+  public double naiveSum() {
+    double sum = 0;
+    for (long i = 0; i < numValues; i++) {
+      sum += offHeap.get(i);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public double scalarSum() {
+    double sum = 0;
+    for (int i = 0; i < numValues; i++) {
+      sum += values[i];
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public double offHeapSum() {
+    return Aggregates.sum(offHeap, 0, numValues);
+  }
+
+  @Benchmark
+  public double onHeapSum() {
+    return Aggregates.sum(onHeap, 0, numValues);
+  }
+
+  @Benchmark
+  public long scalarLongSum() {
+    long sum = 0;
+    for (int i = 0; i < numValues; i++) {
+      sum += longValues[i];
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public long onHeapLongSum() {
+    return Aggregates.sum(onHeapLongs, 0, numValues);
+  }
+
+  @Benchmark
+  public double offHeapMax() {
+    return Aggregates.max(offHeap, 0, numValues);
+  }
+
+  @Benchmark
+  public double naiveDot() {
+    double sum = 0;
+    for (long i = 0; i < numValues; i++) {
+      sum += offHeap.get(i) * other.get(i);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public double offHeapDot() {
+    return Aggregates.dot(offHeap, other, 0, numValues);
+  }
+
+  @Benchmark
+  public double naiveMaskedSum() {
+    double sum = 0;
+    for (long i = 0; i < numValues; i++) {
+      if (mask.isSet(i)) {
+        sum += offHeap.get(i);
+      }
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public double offHeapMaskedSum() {
+    return Aggregates.maskedSum(offHeap, mask, 0, numValues);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(AggregatesBenchmark.class.getSimpleName())
+      .warmupIterations(3)
+      .measurementIterations(5)
+      .forks(1)
+      .build();
+
+    new Runner(opt).run();
+  }
+}
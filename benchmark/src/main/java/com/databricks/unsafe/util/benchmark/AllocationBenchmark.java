@@ -0,0 +1,78 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.databricks.unsafe.util.PlatformDependent;
+import com.databricks.unsafe.util.memory.MemoryAllocator;
+import com.databricks.unsafe.util.memory.MemoryBlock;
+
+/**
+ * Compares allocating a large off-heap buffer that is about to be overwritten entirely (e.g. a
+ * sort or copy target) with {@link MemoryAllocator#allocate(long)}, which zeroes the memory first,
+ * and with {@link MemoryAllocator#allocateUninitialized(long)}, which does not.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class AllocationBenchmark {
+
+  @Param({"1073741824", "4294967296"})
+  public long size;
+
+  @Benchmark
+  public long allocateAndOverwrite() {
+    return overwriteAndFree(MemoryAllocator.UNSAFE.allocate(size));
+  }
+
+  @Benchmark
+  public long allocateUninitializedAndOverwrite() {
+    return overwriteAndFree(MemoryAllocator.UNSAFE.allocateUninitialized(size));
+  }
+
+  private long overwriteAndFree(MemoryBlock block) {
+    PlatformDependent.UNSAFE.setMemory(block.getBaseOffset(), block.size(), (byte) 1);
+    final long last = PlatformDependent.UNSAFE.getLong(block.getBaseOffset() + block.size() - 8);
+    MemoryAllocator.UNSAFE.free(block);
+    return last;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(AllocationBenchmark.class.getSimpleName())
+      .warmupIterations(3)
+      .measurementIterations(5)
+      .forks(1)
+      .jvmArgs("-ea")
+      .build();
+
+    new Runner(opt).run();
+  }
+}
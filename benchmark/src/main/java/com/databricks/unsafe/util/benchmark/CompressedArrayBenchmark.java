@@ -0,0 +1,178 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.databricks.unsafe.util.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.databricks.unsafe.util.BitPackedArray;
+import com.databricks.unsafe.util.DeltaEncodedArray;
+import com.databricks.unsafe.util.FrameOfReferenceArray;
+import com.databricks.unsafe.util.LongArray;
+import com.databricks.unsafe.util.memory.MemoryAllocator;
+
+/**
+ * Compares scanning a column of increasing timestamps stored in an off-heap {@link LongArray}
+ * with decoding it from the compressed arrays, in batches of 4096 values, and the cost of random
+ * access into each of them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CompressedArrayBenchmark {
+
+  private static final int BATCH_SIZE = 4096;
+
+  /** Number of values in the column. */
+  @Param({"16000000"})
+  public int numValues;
+
+  private LongArray plain;
+
+  private LongArray batch;
+
+  private BitPackedArray bitPacked;
+
+  private FrameOfReferenceArray frameOfReference;
+
+  private DeltaEncodedArray deltaEncoded;
+
+  private long[] randomIndices;
+
+  @Setup
+  public void setUp() {
+    plain = new LongArray(MemoryAllocator.UNSAFE.allocate(numValues * 8L));
+    batch = new LongArray(MemoryAllocator.UNSAFE.allocate(BATCH_SIZE * 8L));
+    final Random random = new Random(42);
+    long timestamp = 1400000000000L;
+    for (int i = 0; i < numValues; i++) {
+      timestamp += random.nextInt(100);
+      plain.set(i, timestamp);
+    }
+    bitPacked = BitPackedArray.encode(plain, 0, numValues, MemoryAllocator.UNSAFE);
+    frameOfReference = FrameOfReferenceArray.encode(plain, 0, numValues, MemoryAllocator.UNSAFE);
+    deltaEncoded = DeltaEncodedArray.encode(plain, 0, numValues, MemoryAllocator.UNSAFE);
+    randomIndices = new long[1 << 16];
+    for (int i = 0; i < randomIndices.length; i++) {
+      randomIndices[i] = (random.nextLong() >>> 1) % numValues;
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    MemoryAllocator.UNSAFE.free(plain.memoryBlock());
+    MemoryAllocator.UNSAFE.free(batch.memoryBlock());
+    bitPacked.free();
+    frameOfReference.free();
+    deltaEncoded.free();
+  }
+
+  @Benchmark
+  public long scanPlain() {
+    long sum = 0;
+    for (long from = 0; from < numValues; from += BATCH_SIZE) {
+      final int n = (int) Math.min(BATCH_SIZE, numValues - from);
+      LongArray.copy(plain, from, batch, 0, n);
+      sum += batch.get(n - 1);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public long scanBitPacked() {
+    long sum = 0;
+    for (long from = 0; from < numValues; from += BATCH_SIZE) {
+      final long to = Math.min(from + BATCH_SIZE, numValues);
+      bitPacked.decode(from, to, batch, 0);
+      sum += batch.get(to - from - 1);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public long scanFrameOfReference() {
+    long sum = 0;
+    for (long from = 0; from < numValues; from += BATCH_SIZE) {
+      final long to = Math.min(from + BATCH_SIZE, numValues);
+      frameOfReference.decode(from, to, batch, 0);
+      sum += batch.get(to - from - 1);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public long scanDeltaEncoded() {
+    long sum = 0;
+    for (long from = 0; from < numValues; from += BATCH_SIZE) {
+      final long to = Math.min(from + BATCH_SIZE, numValues);
+      deltaEncoded.decode(from, to, batch, 0);
+      sum += batch.get(to - from - 1);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public long randomGetPlain() {
+    long sum = 0;
+    for (long index : randomIndices) {
+      sum += plain.get(index);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public long randomGetFrameOfReference() {
+    long sum = 0;
+    for (long index : randomIndices) {
+      sum += frameOfReference.get(index);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public long randomGetDeltaEncoded() {
+    long sum = 0;
+    for (long index : randomIndices) {
+      sum += deltaEncoded.get(index);
+    }
+    return sum;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(CompressedArrayBenchmark.class.getSimpleName())
+      .warmupIterations(3)
+      .measurementIterations(5)
+      .forks(1)
+      .build();
+
+    new Runner(opt).run();
+  }
+}
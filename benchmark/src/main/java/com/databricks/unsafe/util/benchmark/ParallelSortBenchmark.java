@@ -0,0 +1,105 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.databricks.unsafe.util.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.databricks.unsafe.util.LongArray;
+import com.databricks.unsafe.util.ParallelSort;
+import com.databricks.unsafe.util.memory.MemoryAllocator;
+import com.databricks.unsafe.util.thread.DefaultThreadFactory;
+
+/**
+ * Measures how {@link ParallelSort} scales with the number of threads when sorting random longs
+ * in an off-heap {@link LongArray}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ParallelSortBenchmark {
+
+  /** Number of values to sort. */
+  @Param({"64000000"})
+  public long numValues;
+
+  @Param({"1", "2", "4", "8", "16"})
+  public int parallelism;
+
+  private ExecutorService executor;
+
+  private LongArray input;
+
+  private LongArray array;
+
+  @Setup
+  public void setUp() {
+    executor = Executors.newCachedThreadPool(new DefaultThreadFactory("sort", true));
+    input = new LongArray(MemoryAllocator.UNSAFE.allocate(numValues * 8));
+    array = new LongArray(MemoryAllocator.UNSAFE.allocate(numValues * 8));
+    Random random = new Random(42);
+    for (long i = 0; i < numValues; i++) {
+      input.set(i, random.nextLong());
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void resetInput() {
+    LongArray.copy(input, 0, array, 0, numValues);
+  }
+
+  @TearDown
+  public void tearDown() {
+    executor.shutdown();
+    MemoryAllocator.UNSAFE.free(input.memoryBlock());
+    MemoryAllocator.UNSAFE.free(array.memoryBlock());
+  }
+
+  @Benchmark
+  public LongArray parallelSort() {
+    ParallelSort.sort(
+      array, 0, numValues, true, MemoryAllocator.UNSAFE, executor, parallelism);
+    return array;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(ParallelSortBenchmark.class.getSimpleName())
+      .warmupIterations(3)
+      .measurementIterations(5)
+      .forks(1)
+      .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.databricks.unsafe.util.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.databricks.unsafe.util.LongArray;
+import com.databricks.unsafe.util.memory.HeapMemoryAllocator;
+import com.databricks.unsafe.util.memory.MemoryAllocator;
+
+/**
+ * Compares sequential and random access to an in-heap {@link LongArray} backed by a single
+ * {@code long[]} with one backed by a segmented block, to measure the cost of the segment lookup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SegmentedArrayBenchmark {
+
+  /** Size of the arrays in bytes. */
+  @Param({"268435456"})
+  public long size;
+
+  /** Base-2 logarithm of the segment size in bytes. */
+  @Param({"20", "30"})
+  public int segmentShift;
+
+  private LongArray single;
+
+  private LongArray segmented;
+
+  /** Random indexes, precomputed so that generating them is not measured. */
+  private long[] indexes;
+
+  @Setup
+  public void setUp() {
+    single = new LongArray(MemoryAllocator.HEAP.allocate(size));
+    segmented = new LongArray(
+      ((HeapMemoryAllocator) MemoryAllocator.HEAP).allocateSegmented(size, segmentShift));
+    for (long i = 0; i < single.size(); i++) {
+      single.set(i, i);
+      segmented.set(i, i);
+    }
+    indexes = new long[1 << 20];
+    Random random = new Random(42);
+    for (int i = 0; i < indexes.length; i++) {
+      indexes[i] = (random.nextLong() >>> 1) % single.size();
+    }
+  }
+
+  @Benchmark
+  public long sequentialSingle() {
+    return sequentialSum(single);
+  }
+
+  @Benchmark
+  public long sequentialSegmented() {
+    return sequentialSum(segmented);
+  }
+
+  @Benchmark
+  public long randomSingle() {
+    return randomSum(single);
+  }
+
+  @Benchmark
+  public long randomSegmented() {
+    return randomSum(segmented);
+  }
+
+  private static long sequentialSum(LongArray array) {
+    long sum = 0;
+    for (long i = 0; i < array.size(); i++) {
+      sum += array.get(i);
+    }
+    return sum;
+  }
+
+  private long randomSum(LongArray array) {
+    long sum = 0;
+    for (long index : indexes) {
+      sum += array.get(index);
+    }
+    return sum;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(SegmentedArrayBenchmark.class.getSimpleName())
+      .warmupIterations(3)
+      .measurementIterations(5)
+      .forks(1)
+      .build();
+
+    new Runner(opt).run();
+  }
+}
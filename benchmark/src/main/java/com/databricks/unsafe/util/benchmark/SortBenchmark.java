@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.databricks.unsafe.util.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.databricks.unsafe.util.LongArray;
+import com.databricks.unsafe.util.RadixSort;
+import com.databricks.unsafe.util.memory.MemoryAllocator;
+
+/**
+ * Compares sorting random longs in an off-heap {@link LongArray} with {@link RadixSort} against
+ * {@link Arrays#sort(long[])} on a JVM array.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SortBenchmark {
+
+  /** Number of values to sort. */
+  @Param({"1000000", "16000000"})
+  public int numValues;
+
+  /**
+   * Number of random low bits in each value; the other bits are zero, which lets the radix sort
+   * skip passes.
+   */
+  @Param({"32", "64"})
+  public int bits;
+
+  private long[] input;
+
+  private long[] jvmArray;
+
+  private LongArray offHeap;
+
+  private LongArray scratch;
+
+  @Setup
+  public void setUp() {
+    input = new long[numValues];
+    Random random = new Random(42);
+    for (int i = 0; i < numValues; i++) {
+      input[i] = bits == 64 ? random.nextLong() : random.nextLong() >>> (64 - bits);
+    }
+    jvmArray = new long[numValues];
+    offHeap = new LongArray(MemoryAllocator.UNSAFE.allocate(numValues * 8L));
+    scratch = new LongArray(MemoryAllocator.UNSAFE.allocate(numValues * 8L));
+  }
+
+  @Setup(Level.Invocation)
+  public void resetInput() {
+    System.arraycopy(input, 0, jvmArray, 0, numValues);
+    offHeap.copyFrom(input, 0, 0, numValues);
+  }
+
+  @TearDown
+  public void tearDown() {
+    MemoryAllocator.UNSAFE.free(offHeap.memoryBlock());
+    MemoryAllocator.UNSAFE.free(scratch.memoryBlock());
+  }
+
+  @Benchmark
+  public long[] jvmSort() {
+    Arrays.sort(jvmArray);
+    return jvmArray;
+  }
+
+  @Benchmark
+  public LongArray radixSort() {
+    RadixSort.sort(offHeap, 0, numValues, true, scratch);
+    return offHeap;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(SortBenchmark.class.getSimpleName())
+      .warmupIterations(3)
+      .measurementIterations(5)
+      .forks(1)
+      .build();
+
+    new Runner(opt).run();
+  }
+}
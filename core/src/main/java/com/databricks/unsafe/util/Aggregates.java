@@ -0,0 +1,633 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import com.databricks.unsafe.util.memory.MemoryBlock;
+import com.databricks.unsafe.util.memory.SegmentedMemoryBlock;
+
+/**
+ * Aggregation kernels over ranges of {@link LongArray}s and {@link DoubleArray}s: count, sum,
+ * mean, min, max, dot product, masked sum and histogram.
+ *
+ * Unlike a loop over {@code get()}, the kernels read the arrays' memory directly, without bound
+ * checks or a segment lookup per element. Segmented arrays are processed one segment at a time.
+ * When the memory is a whole JVM array of the element type, i.e. a {@link LongArray} over
+ * {@code long[]} memory or a {@link DoubleArray} created with
+ * {@link MemoryBlock#fromDoubleArray(double[])}, the kernels loop over the JVM array itself.
+ * Other memory, including the {@code long[]} blocks of the heap allocator under a
+ * {@link DoubleArray}, is read through {@code Unsafe}.
+ *
+ * The kernels are plain scalar loops and are not guaranteed to use SIMD instructions: the JIT
+ * compiler does not vectorize loops over {@code Unsafe} reads, nor reorder floating-point
+ * additions. Floating-point sums are instead accumulated in four independent partial sums, so
+ * that additions can overlap in the CPU pipeline. The result can therefore differ in the last bits
+ * from a left-to-right sum. Sums of longs wrap around on overflow.
+ */
+public final class Aggregates {
+
+  /** Ranges with fewer elements per thread than this are not worth splitting. */
+  static final long MIN_PARALLEL_CHUNK_SIZE = 1 << 20;
+
+  private static final long LONG_ARRAY_OFFSET = PlatformDependent.LONG_ARRAY_OFFSET;
+
+  private static final long DOUBLE_ARRAY_OFFSET = PlatformDependent.DOUBLE_ARRAY_OFFSET;
+
+  private Aggregates() {}
+
+  /**
+   * Returns the sum of the elements from {@code fromIndex} (inclusive) to {@code toIndex}
+   * (exclusive).
+   */
+  public static long sum(LongArray array, long fromIndex, long toIndex) {
+    checkRange(array.size(), fromIndex, toIndex);
+    final LongSum kernel = new LongSum();
+    forEachRun(array.memoryBlock(), fromIndex, toIndex, kernel);
+    return kernel.sum;
+  }
+
+  /**
+   * Returns the sum of the elements from {@code fromIndex} (inclusive) to {@code toIndex}
+   * (exclusive).
+   */
+  public static double sum(DoubleArray array, long fromIndex, long toIndex) {
+    checkRange(array.size(), fromIndex, toIndex);
+    final DoubleSum kernel = new DoubleSum();
+    forEachRun(array.memoryBlock(), fromIndex, toIndex, kernel);
+    return kernel.sum;
+  }
+
+  /**
+   * Same as {@link #sum(LongArray, long, long)}, but splits the range between up to
+   * {@code parallelism} threads of {@code executor}, one of them being the calling thread.
+   */
+  public static long sum(
+      final LongArray array, long fromIndex, long toIndex,
+      ExecutorService executor, int parallelism) {
+    checkRange(array.size(), fromIndex, toIndex);
+    final long[] bounds = split(fromIndex, toIndex, parallelism);
+    final long[] sums = new long[bounds.length - 1];
+    final List<Runnable> tasks = new ArrayList<Runnable>(sums.length);
+    for (int i = 0; i < sums.length; i++) {
+      final int task = i;
+      tasks.add(new Runnable() {
+        @Override
+        public void run() {
+          sums[task] = sum(array, bounds[task], bounds[task + 1]);
+        }
+      });
+    }
+    ParallelSort.runAll(executor, tasks);
+    long sum = 0;
+    for (long s : sums) {
+      sum += s;
+    }
+    return sum;
+  }
+
+  /**
+   * Same as {@link #sum(DoubleArray, long, long)}, but splits the range between up to
+   * {@code parallelism} threads of {@code executor}, one of them being the calling thread.
+   */
+  public static double sum(
+      final DoubleArray array, long fromIndex, long toIndex,
+      ExecutorService executor, int parallelism) {
+    checkRange(array.size(), fromIndex, toIndex);
+    final long[] bounds = split(fromIndex, toIndex, parallelism);
+    final double[] sums = new double[bounds.length - 1];
+    final List<Runnable> tasks = new ArrayList<Runnable>(sums.length);
+    for (int i = 0; i < sums.length; i++) {
+      final int task = i;
+      tasks.add(new Runnable() {
+        @Override
+        public void run() {
+          sums[task] = sum(array, bounds[task], bounds[task + 1]);
+        }
+      });
+    }
+    ParallelSort.runAll(executor, tasks);
+    double sum = 0;
+    for (double s : sums) {
+      sum += s;
+    }
+    return sum;
+  }
+
+  /**
+   * Returns the mean of the elements from {@code fromIndex} (inclusive) to {@code toIndex}
+   * (exclusive), or NaN if the range is empty. The elements are summed as longs, so the result is
+   * wrong if their sum overflows.
+   */
+  public static double mean(LongArray array, long fromIndex, long toIndex) {
+    return (double) sum(array, fromIndex, toIndex) / (toIndex - fromIndex);
+  }
+
+  /**
+   * Returns the mean of the elements from {@code fromIndex} (inclusive) to {@code toIndex}
+   * (exclusive), or NaN if the range is empty.
+   */
+  public static double mean(DoubleArray array, long fromIndex, long toIndex) {
+    return sum(array, fromIndex, toIndex) / (toIndex - fromIndex);
+  }
+
+  /**
+   * Returns the smallest element from {@code fromIndex} (inclusive) to {@code toIndex}
+   * (exclusive), or {@code Long.MAX_VALUE} if the range is empty.
+   */
+  public static long min(LongArray array, long fromIndex, long toIndex) {
+    checkRange(array.size(), fromIndex, toIndex);
+    final LongMinMax kernel = new LongMinMax();
+    forEachRun(array.memoryBlock(), fromIndex, toIndex, kernel);
+    return kernel.min;
+  }
+
+  /**
+   * Returns the largest element from {@code fromIndex} (inclusive) to {@code toIndex}
+   * (exclusive), or {@code Long.MIN_VALUE} if the range is empty.
+   */
+  public static long max(LongArray array, long fromIndex, long toIndex) {
+    checkRange(array.size(), fromIndex, toIndex);
+    final LongMinMax kernel = new LongMinMax();
+    forEachRun(array.memoryBlock(), fromIndex, toIndex, kernel);
+    return kernel.max;
+  }
+
+  /**
+   * Returns the smallest element from {@code fromIndex} (inclusive) to {@code toIndex}
+   * (exclusive) as by {@link Math#min(double, double)}, i.e. NaN if any element is NaN, or
+   * {@code Double.POSITIVE_INFINITY} if the range is empty.
+   */
+  public static double min(DoubleArray array, long fromIndex, long toIndex) {
+    checkRange(array.size(), fromIndex, toIndex);
+    final DoubleMinMax kernel = new DoubleMinMax();
+    forEachRun(array.memoryBlock(), fromIndex, toIndex, kernel);
+    return kernel.min;
+  }
+
+  /**
+   * Returns the largest element from {@code fromIndex} (inclusive) to {@code toIndex}
+   * (exclusive) as by {@link Math#max(double, double)}, i.e. NaN if any element is NaN, or
+   * {@code Double.NEGATIVE_INFINITY} if the range is empty.
+   */
+  public static double max(DoubleArray array, long fromIndex, long toIndex) {
+    checkRange(array.size(), fromIndex, toIndex);
+    final DoubleMinMax kernel = new DoubleMinMax();
+    forEachRun(array.memoryBlock(), fromIndex, toIndex, kernel);
+    return kernel.max;
+  }
+
+  /**
+   * Returns the sum of {@code a[i] * b[i]} for {@code i} from {@code fromIndex} (inclusive) to
+   * {@code toIndex} (exclusive).
+   */
+  public static double dot(DoubleArray a, DoubleArray b, long fromIndex, long toIndex) {
+    checkRange(a.size(), fromIndex, toIndex);
+    checkRange(b.size(), fromIndex, toIndex);
+    final MemoryBlock blockA = a.memoryBlock();
+    final MemoryBlock blockB = b.memoryBlock();
+    if (blockA instanceof SegmentedMemoryBlock || blockB instanceof SegmentedMemoryBlock) {
+      // The segments of the two arrays need not line up; this is not worth optimizing.
+      double sum = 0;
+      for (long i = fromIndex; i < toIndex; i++) {
+        sum += a.get(i) * b.get(i);
+      }
+      return sum;
+    }
+    final Object objA = blockA.getBaseObject();
+    final long addressA = blockA.getBaseOffset() + fromIndex * 8;
+    final Object objB = blockB.getBaseObject();
+    final long addressB = blockB.getBaseOffset() + fromIndex * 8;
+    final long n = toIndex - fromIndex;
+    if (objA instanceof double[] && objB instanceof double[]) {
+      return dot(
+        (double[]) objA, (int) ((addressA - DOUBLE_ARRAY_OFFSET) >>> 3),
+        (double[]) objB, (int) ((addressB - DOUBLE_ARRAY_OFFSET) >>> 3), (int) n);
+    }
+    double s0 = 0;
+    double s1 = 0;
+    double s2 = 0;
+    double s3 = 0;
+    long i = 0;
+    for (; i + 3 < n; i += 4) {
+      final long offset = i * 8;
+      s0 += PlatformDependent.UNSAFE.getDouble(objA, addressA + offset) *
+        PlatformDependent.UNSAFE.getDouble(objB, addressB + offset);
+      s1 += PlatformDependent.UNSAFE.getDouble(objA, addressA + offset + 8) *
+        PlatformDependent.UNSAFE.getDouble(objB, addressB + offset + 8);
+      s2 += PlatformDependent.UNSAFE.getDouble(objA, addressA + offset + 16) *
+        PlatformDependent.UNSAFE.getDouble(objB, addressB + offset + 16);
+      s3 += PlatformDependent.UNSAFE.getDouble(objA, addressA + offset + 24) *
+        PlatformDependent.UNSAFE.getDouble(objB, addressB + offset + 24);
+    }
+    for (; i < n; i++) {
+      s0 += PlatformDependent.UNSAFE.getDouble(objA, addressA + i * 8) *
+        PlatformDependent.UNSAFE.getDouble(objB, addressB + i * 8);
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  /**
+   * Same as {@link #dot(DoubleArray, DoubleArray, long, long)}, but splits the range between up
+   * to {@code parallelism} threads of {@code executor}, one of them being the calling thread.
+   */
+  public static double dot(
+      final DoubleArray a, final DoubleArray b, long fromIndex, long toIndex,
+      ExecutorService executor, int parallelism) {
+    checkRange(a.size(), fromIndex, toIndex);
+    checkRange(b.size(), fromIndex, toIndex);
+    final long[] bounds = split(fromIndex, toIndex, parallelism);
+    final double[] sums = new double[bounds.length - 1];
+    final List<Runnable> tasks = new ArrayList<Runnable>(sums.length);
+    for (int i = 0; i < sums.length; i++) {
+      final int task = i;
+      tasks.add(new Runnable() {
+        @Override
+        public void run() {
+          sums[task] = dot(a, b, bounds[task], bounds[task + 1]);
+        }
+      });
+    }
+    ParallelSort.runAll(executor, tasks);
+    double sum = 0;
+    for (double s : sums) {
+      sum += s;
+    }
+    return sum;
+  }
+
+  /**
+   * Returns the number of elements from {@code fromIndex} (inclusive) to {@code toIndex}
+   * (exclusive) that are not NaN.
+   */
+  public static long count(DoubleArray array, long fromIndex, long toIndex) {
+    checkRange(array.size(), fromIndex, toIndex);
+    final NonNaNCount kernel = new NonNaNCount();
+    forEachRun(array.memoryBlock(), fromIndex, toIndex, kernel);
+    return kernel.count;
+  }
+
+  /**
+   * Returns the number of bits set in {@code mask} from {@code fromIndex} (inclusive) to
+   * {@code toIndex} (exclusive), i.e. the number of elements that a masked aggregate over the same
+   * range takes into account. Together with {@link #maskedSum}, this gives the mean of the
+   * selected elements.
+   */
+  public static long count(BitSet mask, long fromIndex, long toIndex) {
+    checkRange(mask.capacity(), fromIndex, toIndex);
+    final LongArray words = new LongArray(mask.memoryBlock());
+    long count = 0;
+    for (long index = fromIndex; index < toIndex; ) {
+      final long end = Math.min(toIndex, (index | 63) + 1);
+      count += Long.bitCount(words.get(index >>> 6) & wordMask(index, end));
+      index = end;
+    }
+    return count;
+  }
+
+  /**
+   * Returns the sum of the elements from {@code fromIndex} (inclusive) to {@code toIndex}
+   * (exclusive) whose bit is set in {@code mask}, e.g. a selection or a validity mask. Bit
+   * {@code i} of the mask corresponds to element {@code i} of the array.
+   */
+  public static long maskedSum(LongArray array, BitSet mask, long fromIndex, long toIndex) {
+    checkRange(array.size(), fromIndex, toIndex);
+    checkRange(mask.capacity(), fromIndex, toIndex);
+    final LongSum kernel = new LongSum();
+    final LongArray words = new LongArray(mask.memoryBlock());
+    for (long index = fromIndex; index < toIndex; ) {
+      final long end = Math.min(toIndex, (index | 63) + 1);
+      final long word = words.get(index >>> 6) & wordMask(index, end);
+      if (word == -1L) {
+        forEachRun(array.memoryBlock(), index, end, kernel);
+      } else {
+        long bits = word;
+        while (bits != 0) {
+          kernel.sum += array.get((index & ~63L) + Long.numberOfTrailingZeros(bits));
+          bits &= bits - 1;
+        }
+      }
+      index = end;
+    }
+    return kernel.sum;
+  }
+
+  /**
+   * Returns the sum of the elements from {@code fromIndex} (inclusive) to {@code toIndex}
+   * (exclusive) whose bit is set in {@code mask}, e.g. a selection or a validity mask. Bit
+   * {@code i} of the mask corresponds to element {@code i} of the array.
+   */
+  public static double maskedSum(DoubleArray array, BitSet mask, long fromIndex, long toIndex) {
+    checkRange(array.size(), fromIndex, toIndex);
+    checkRange(mask.capacity(), fromIndex, toIndex);
+    final DoubleSum kernel = new DoubleSum();
+    final LongArray words = new LongArray(mask.memoryBlock());
+    for (long index = fromIndex; index < toIndex; ) {
+      final long end = Math.min(toIndex, (index | 63) + 1);
+      final long word = words.get(index >>> 6) & wordMask(index, end);
+      if (word == -1L) {
+        // All 64 elements are selected, so the kernel can run over the whole word.
+        forEachRun(array.memoryBlock(), index, end, kernel);
+      } else {
+        long bits = word;
+        while (bits != 0) {
+          kernel.sum += array.get((index & ~63L) + Long.numberOfTrailingZeros(bits));
+          bits &= bits - 1;
+        }
+      }
+      index = end;
+    }
+    return kernel.sum;
+  }
+
+  /**
+   * Counts the elements from {@code fromIndex} (inclusive) to {@code toIndex} (exclusive) into
+   * {@code counts.length} buckets of equal width between {@code min} and {@code max}, adding to
+   * the existing counts. Bucket {@code k} counts values in
+   * {@code [min + k * width, min + (k + 1) * width)}, except that the last bucket also counts
+   * {@code max}. Values outside {@code [min, max]} and NaNs are not counted.
+   *
+   * @return the number of values that were counted
+   */
+  public static long histogram(
+      DoubleArray array, long fromIndex, long toIndex, double min, double max, long[] counts) {
+    checkRange(array.size(), fromIndex, toIndex);
+    if (!(min < max) || counts.length == 0) {
+      throw new IllegalArgumentException(
+        "invalid histogram range [" + min + ", " + max + "] or bucket count " + counts.length);
+    }
+    final Histogram kernel = new Histogram(min, max, counts);
+    forEachRun(array.memoryBlock(), fromIndex, toIndex, kernel);
+    return kernel.counted;
+  }
+
+  /**
+   * Splits [fromIndex, toIndex) into up to {@code parallelism} ranges of at least
+   * {@link #MIN_PARALLEL_CHUNK_SIZE} elements, and returns their boundaries.
+   */
+  private static long[] split(long fromIndex, long toIndex, int parallelism) {
+    final long n = toIndex - fromIndex;
+    final int numRanges = (int) Math.max(1, Math.min(parallelism, n / MIN_PARALLEL_CHUNK_SIZE));
+    final long[] bounds = new long[numRanges + 1];
+    for (int i = 0; i <= numRanges; i++) {
+      bounds[i] = fromIndex + n * i / numRanges;
+    }
+    return bounds;
+  }
+
+  /** Returns a mask of the bits of [index, end) within their word, which must be the same. */
+  private static long wordMask(long index, long end) {
+    final long mask = -1L << (index & 63);
+    return (end & 63) == 0 ? mask : mask & ((1L << (end & 63)) - 1);
+  }
+
+  private static void checkRange(long size, long fromIndex, long toIndex) {
+    assert fromIndex >= 0 && fromIndex <= toIndex : "invalid range";
+    assert toIndex <= size : "toIndex (" + toIndex + ") should <= size (" + size + ")";
+  }
+
+  /**
+   * Calls {@code kernel} on the runs of contiguous memory that hold the 8-byte elements from
+   * {@code fromIndex} (inclusive) to {@code toIndex} (exclusive) of {@code block}: the whole range
+   * at once, or one run per segment for a {@link SegmentedMemoryBlock}.
+   */
+  private static void forEachRun(MemoryBlock block, long fromIndex, long toIndex, Kernel kernel) {
+    if (!(block instanceof SegmentedMemoryBlock)) {
+      if (fromIndex < toIndex) {
+        kernel.run(block.getBaseObject(), block.getBaseOffset() + fromIndex * 8,
+          toIndex - fromIndex);
+      }
+      return;
+    }
+    final Object[] segments = ((SegmentedMemoryBlock) block).getSegmentObjects();
+    final long[] segmentOffsets = ((SegmentedMemoryBlock) block).getSegmentOffsets();
+    final int shift = ((SegmentedMemoryBlock) block).getSegmentShift() - 3;
+    final long mask = (1L << shift) - 1;
+    long index = fromIndex;
+    while (index < toIndex) {
+      final long end = Math.min(toIndex, (index | mask) + 1);
+      final int segment = (int) (index >>> shift);
+      kernel.run(segments[segment], segmentOffsets[segment] + (index & mask) * 8, end - index);
+      index = end;
+    }
+  }
+
+  /**
+   * A loop over {@code n} contiguous 8-byte elements starting at {@code address} relative to
+   * {@code obj}, which accumulates its result in the kernel's fields.
+   */
+  private abstract static class Kernel {
+    abstract void run(Object obj, long address, long n);
+  }
+
+  private static final class LongSum extends Kernel {
+    long sum;
+
+    @Override
+    void run(Object obj, long address, long n) {
+      long s = 0;
+      if (obj instanceof long[]) {
+        final long[] values = (long[]) obj;
+        final int from = (int) ((address - LONG_ARRAY_OFFSET) >>> 3);
+        final int to = from + (int) n;
+        for (int i = from; i < to; i++) {
+          s += values[i];
+        }
+      } else {
+        long s1 = 0;
+        long s2 = 0;
+        long s3 = 0;
+        long i = 0;
+        for (; i + 3 < n; i += 4) {
+          final long offset = address + i * 8;
+          s += PlatformDependent.UNSAFE.getLong(obj, offset);
+          s1 += PlatformDependent.UNSAFE.getLong(obj, offset + 8);
+          s2 += PlatformDependent.UNSAFE.getLong(obj, offset + 16);
+          s3 += PlatformDependent.UNSAFE.getLong(obj, offset + 24);
+        }
+        for (; i < n; i++) {
+          s += PlatformDependent.UNSAFE.getLong(obj, address + i * 8);
+        }
+        s += s1 + s2 + s3;
+      }
+      sum += s;
+    }
+  }
+
+  private static final class DoubleSum extends Kernel {
+    double sum;
+
+    @Override
+    void run(Object obj, long address, long n) {
+      double s0 = 0;
+      double s1 = 0;
+      double s2 = 0;
+      double s3 = 0;
+      if (obj instanceof double[]) {
+        final double[] values = (double[]) obj;
+        final int from = (int) ((address - DOUBLE_ARRAY_OFFSET) >>> 3);
+        final int to = from + (int) n;
+        int i = from;
+        for (; i + 3 < to; i += 4) {
+          s0 += values[i];
+          s1 += values[i + 1];
+          s2 += values[i + 2];
+          s3 += values[i + 3];
+        }
+        for (; i < to; i++) {
+          s0 += values[i];
+        }
+      } else {
+        long i = 0;
+        for (; i + 3 < n; i += 4) {
+          final long offset = address + i * 8;
+          s0 += PlatformDependent.UNSAFE.getDouble(obj, offset);
+          s1 += PlatformDependent.UNSAFE.getDouble(obj, offset + 8);
+          s2 += PlatformDependent.UNSAFE.getDouble(obj, offset + 16);
+          s3 += PlatformDependent.UNSAFE.getDouble(obj, offset + 24);
+        }
+        for (; i < n; i++) {
+          s0 += PlatformDependent.UNSAFE.getDouble(obj, address + i * 8);
+        }
+      }
+      sum += (s0 + s1) + (s2 + s3);
+    }
+  }
+
+  private static final class LongMinMax extends Kernel {
+    long min = Long.MAX_VALUE;
+    long max = Long.MIN_VALUE;
+
+    @Override
+    void run(Object obj, long address, long n) {
+      long lo = min;
+      long hi = max;
+      if (obj instanceof long[]) {
+        final long[] values = (long[]) obj;
+        final int from = (int) ((address - LONG_ARRAY_OFFSET) >>> 3);
+        final int to = from + (int) n;
+        for (int i = from; i < to; i++) {
+          lo = Math.min(lo, values[i]);
+          hi = Math.max(hi, values[i]);
+        }
+      } else {
+        for (long i = 0; i < n; i++) {
+          final long value = PlatformDependent.UNSAFE.getLong(obj, address + i * 8);
+          lo = Math.min(lo, value);
+          hi = Math.max(hi, value);
+        }
+      }
+      min = lo;
+      max = hi;
+    }
+  }
+
+  private static final class DoubleMinMax extends Kernel {
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+
+    @Override
+    void run(Object obj, long address, long n) {
+      double lo = min;
+      double hi = max;
+      if (obj instanceof double[]) {
+        final double[] values = (double[]) obj;
+        final int from = (int) ((address - DOUBLE_ARRAY_OFFSET) >>> 3);
+        final int to = from + (int) n;
+        for (int i = from; i < to; i++) {
+          lo = Math.min(lo, values[i]);
+          hi = Math.max(hi, values[i]);
+        }
+      } else {
+        for (long i = 0; i < n; i++) {
+          final double value = PlatformDependent.UNSAFE.getDouble(obj, address + i * 8);
+          lo = Math.min(lo, value);
+          hi = Math.max(hi, value);
+        }
+      }
+      min = lo;
+      max = hi;
+    }
+  }
+
+  private static final class NonNaNCount extends Kernel {
+    long count;
+
+    @Override
+    void run(Object obj, long address, long n) {
+      long c = 0;
+      for (long i = 0; i < n; i++) {
+        final double value = PlatformDependent.UNSAFE.getDouble(obj, address + i * 8);
+        // Only NaN is not equal to itself.
+        if (value == value) {
+          c++;
+        }
+      }
+      count += c;
+    }
+  }
+
+  private static final class Histogram extends Kernel {
+    private final double min;
+    private final double max;
+    private final double scale;
+    private final long[] counts;
+    long counted;
+
+    Histogram(double min, double max, long[] counts) {
+      this.min = min;
+      this.max = max;
+      this.scale = counts.length / (max - min);
+      this.counts = counts;
+    }
+
+    @Override
+    void run(Object obj, long address, long n) {
+      final int last = counts.length - 1;
+      long c = 0;
+      for (long i = 0; i < n; i++) {
+        final double value = PlatformDependent.UNSAFE.getDouble(obj, address + i * 8);
+        // Also false for NaN.
+        if (value >= min && value <= max) {
+          counts[Math.min((int) ((value - min) * scale), last)]++;
+          c++;
+        }
+      }
+      counted += c;
+    }
+  }
+
+  private static double dot(double[] a, int aFrom, double[] b, int bFrom, int n) {
+    double s0 = 0;
+    double s1 = 0;
+    double s2 = 0;
+    double s3 = 0;
+    int i = 0;
+    for (; i + 3 < n; i += 4) {
+      s0 += a[aFrom + i] * b[bFrom + i];
+      s1 += a[aFrom + i + 1] * b[bFrom + i + 1];
+      s2 += a[aFrom + i + 2] * b[bFrom + i + 2];
+      s3 += a[aFrom + i + 3] * b[bFrom + i + 3];
+    }
+    for (; i < n; i++) {
+      s0 += a[aFrom + i] * b[bFrom + i];
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+}
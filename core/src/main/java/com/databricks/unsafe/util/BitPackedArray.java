@@ -0,0 +1,220 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.databricks.unsafe.util;
+
+import com.databricks.unsafe.util.memory.MemoryAllocator;
+
+/**
+ * A read-optimized array of unsigned values that all fit in {@code bitWidth} bits, packed
+ * back to back into 64-bit words: value {@code i} occupies bits
+ * {@code [i * bitWidth, (i + 1) * bitWidth)}, starting from the least significant bit of the
+ * first word. A value may straddle two words.
+ *
+ * {@link #get(long)} reads at most two words, and {@link #decode} unpacks a range sequentially
+ * into a {@link LongArray}. Columns of small values, e.g. ids or codes below 2^20, take
+ * {@code bitWidth / 64} of the memory of a {@link LongArray}.
+ *
+ * Arrays are not thread-safe, and must be released with {@link #free()}.
+ */
+public final class BitPackedArray {
+
+  private final MemoryAllocator allocator;
+
+  private final LongArray words;
+
+  private final long size;
+
+  private final int bitWidth;
+
+  /**
+   * Creates an array of {@code size} zeros of {@code bitWidth} bits each, between 0 and 64.
+   */
+  public BitPackedArray(MemoryAllocator allocator, long size, int bitWidth) {
+    if (bitWidth < 0 || bitWidth > 64) {
+      throw new IllegalArgumentException("bitWidth (" + bitWidth + ") should be in [0, 64]");
+    }
+    assert size >= 0 : "size (" + size + ") should >= 0";
+    this.allocator = allocator;
+    this.size = size;
+    this.bitWidth = bitWidth;
+    this.words = new LongArray(allocator.allocate(bytesRequired(size, bitWidth)));
+  }
+
+  /**
+   * Packs the values of {@code src} from {@code fromIndex} (inclusive) to {@code toIndex}
+   * (exclusive), with the smallest bit width that fits all of them as unsigned values.
+   */
+  public static BitPackedArray encode(
+      LongArray src, long fromIndex, long toIndex, MemoryAllocator allocator) {
+    long bits = 0;
+    for (long i = fromIndex; i < toIndex; i++) {
+      bits |= src.get(i);
+    }
+    final BitPackedArray packed =
+      new BitPackedArray(allocator, toIndex - fromIndex, bitsRequired(bits));
+    for (long i = fromIndex; i < toIndex; i++) {
+      packed.set(i - fromIndex, src.get(i));
+    }
+    return packed;
+  }
+
+  /**
+   * Returns the number of bits needed to store {@code value} as an unsigned value, between 0
+   * (for 0) and 64 (for negative values).
+   */
+  public static int bitsRequired(long value) {
+    return 64 - Long.numberOfLeadingZeros(value);
+  }
+
+  /**
+   * Returns the number of bytes needed to pack {@code size} values of {@code bitWidth} bits,
+   * rounded up to whole words.
+   */
+  static long bytesRequired(long size, int bitWidth) {
+    return Math.max(1, (size * bitWidth + 63) >>> 6) * 8;
+  }
+
+  /**
+   * Returns the number of values in this array.
+   */
+  public long size() {
+    return size;
+  }
+
+  /**
+   * Returns the number of bits used by each value.
+   */
+  public int bitWidth() {
+    return bitWidth;
+  }
+
+  /**
+   * Returns the number of bytes used by the packed values.
+   */
+  public long sizeInBytes() {
+    return words.size() * 8;
+  }
+
+  /**
+   * Returns the value at position {@code index}.
+   */
+  public long get(long index) {
+    assert index >= 0 : "index (" + index + ") should >= 0";
+    assert index < size : "index (" + index + ") should < size (" + size + ")";
+    return read(words, index * bitWidth, bitWidth);
+  }
+
+  /**
+   * Sets the value at position {@code index}, which must fit in {@link #bitWidth()} bits.
+   */
+  public void set(long index, long value) {
+    assert index >= 0 : "index (" + index + ") should >= 0";
+    assert index < size : "index (" + index + ") should < size (" + size + ")";
+    assert bitsRequired(value) <= bitWidth :
+      "value (" + value + ") does not fit in " + bitWidth + " bits";
+    write(words, index * bitWidth, bitWidth, value);
+  }
+
+  /**
+   * Unpacks the values from {@code fromIndex} (inclusive) to {@code toIndex} (exclusive) into
+   * {@code dst}, starting at position {@code dstIndex}.
+   */
+  public void decode(long fromIndex, long toIndex, LongArray dst, long dstIndex) {
+    assert fromIndex >= 0 && fromIndex <= toIndex && toIndex <= size : "invalid range";
+    unpack(words, fromIndex * bitWidth, bitWidth, toIndex - fromIndex, 0, dst, dstIndex);
+  }
+
+  /**
+   * Frees the memory used by this array, which can no longer be used afterwards.
+   */
+  public void free() {
+    allocator.free(words.memoryBlock());
+  }
+
+  /**
+   * Reads the {@code bitWidth}-bit value starting at bit {@code bitOffset} of {@code words}.
+   */
+  static long read(LongArray words, long bitOffset, int bitWidth) {
+    if (bitWidth == 0) {
+      return 0;
+    }
+    final long wordIndex = bitOffset >>> 6;
+    final int shift = (int) (bitOffset & 63);
+    long value = words.get(wordIndex) >>> shift;
+    if (shift + bitWidth > 64) {
+      value |= words.get(wordIndex + 1) << (64 - shift);
+    }
+    return bitWidth == 64 ? value : value & ((1L << bitWidth) - 1);
+  }
+
+  /**
+   * Writes the {@code bitWidth}-bit {@code value} starting at bit {@code bitOffset} of
+   * {@code words}, leaving the other bits unchanged.
+   */
+  static void write(LongArray words, long bitOffset, int bitWidth, long value) {
+    if (bitWidth == 0) {
+      return;
+    }
+    final long mask = bitWidth == 64 ? -1L : (1L << bitWidth) - 1;
+    final long wordIndex = bitOffset >>> 6;
+    final int shift = (int) (bitOffset & 63);
+    words.set(wordIndex, (words.get(wordIndex) & ~(mask << shift)) | ((value & mask) << shift));
+    if (shift + bitWidth > 64) {
+      final int written = 64 - shift;
+      words.set(wordIndex + 1,
+        (words.get(wordIndex + 1) & ~(mask >>> written)) | ((value & mask) >>> written));
+    }
+  }
+
+  /**
+   * Unpacks {@code n} consecutive {@code bitWidth}-bit values starting at bit {@code bitOffset}
+   * of {@code words}, adds {@code reference} to each of them, and stores them into {@code dst}
+   * from position {@code dstIndex}. Each word is read only once.
+   */
+  static void unpack(
+      LongArray words, long bitOffset, int bitWidth, long n,
+      long reference, LongArray dst, long dstIndex) {
+    if (n == 0) {
+      return;
+    }
+    if (bitWidth == 0) {
+      dst.fill(dstIndex, dstIndex + n, reference);
+      return;
+    }
+    final long mask = bitWidth == 64 ? -1L : (1L << bitWidth) - 1;
+    long wordIndex = bitOffset >>> 6;
+    int shift = (int) (bitOffset & 63);
+    long word = words.get(wordIndex);
+    for (long i = 0; i < n; i++) {
+      long value = word >>> shift;
+      shift += bitWidth;
+      if (shift >= 64) {
+        shift -= 64;
+        wordIndex++;
+        // The next word exists if this value straddles it, or if more values follow.
+        if (shift > 0) {
+          word = words.get(wordIndex);
+          value |= word << (bitWidth - shift);
+        } else if (i + 1 < n) {
+          word = words.get(wordIndex);
+        }
+      }
+      dst.set(dstIndex + i, (value & mask) + reference);
+    }
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util;
+
+import com.databricks.unsafe.util.memory.MemoryBlock;
+import com.databricks.unsafe.util.memory.SegmentedMemoryBlock;
+
+/**
+ * An array of byte values. Compared with native JVM arrays, this:
+ * <ul>
+ *   <li>supports using both in-heap and off-heap memory</li>
+ *   <li>supports 64-bit addressing, i.e. array length greater than {@code Integer.MAX_VALUE}</li>
+ *   <li>has no bound checking, and thus can crash the JVM process when assert is turned off</li>
+ * </ul>
+ */
+public final class ByteArray {
+
+  private static final int WIDTH = 1;
+
+  private final MemoryBlock memory;
+
+  private final Object baseObj;
+  private final long baseOffset;
+
+  private final long length;
+
+  /**
+   * Base objects and offsets of the segments of a {@link SegmentedMemoryBlock}, or null if the
+   * memory is contiguous.
+   */
+  private final Object[] segments;
+  private final long[] segmentOffsets;
+  private final int segmentShift;
+  private final long segmentMask;
+
+  public ByteArray(MemoryBlock memory) {
+    this.memory = memory;
+    this.baseObj = memory.getBaseObject();
+    this.baseOffset = memory.getBaseOffset();
+    this.length = memory.size() / WIDTH;
+    if (memory instanceof SegmentedMemoryBlock) {
+      this.segments = ((SegmentedMemoryBlock) memory).getSegmentObjects();
+      this.segmentOffsets = ((SegmentedMemoryBlock) memory).getSegmentOffsets();
+      this.segmentShift = ((SegmentedMemoryBlock) memory).getSegmentShift();
+      this.segmentMask = (1L << segmentShift) - 1;
+    } else {
+      this.segments = null;
+      this.segmentOffsets = null;
+      this.segmentShift = 0;
+      this.segmentMask = 0;
+    }
+  }
+
+  public MemoryBlock memoryBlock() {
+    return memory;
+  }
+
+  /**
+   * Returns the number of elements this array can hold.
+   */
+  public long size() {
+    return length;
+  }
+
+  /**
+   * Sets the value at position {@code index}.
+   */
+  public void set(long index, byte value) {
+    assert index >= 0 : "index (" + index + ") should >= 0";
+    assert index < length : "index (" + index + ") should < length (" + length + ")";
+    final long offset = index * WIDTH;
+    if (segments == null) {
+      PlatformDependent.UNSAFE.putByte(baseObj, baseOffset + offset, value);
+    } else {
+      final int segment = (int) (offset >>> segmentShift);
+      PlatformDependent.UNSAFE.putByte(
+        segments[segment], segmentOffsets[segment] + (offset & segmentMask), value);
+    }
+  }
+
+  /**
+   * Returns the value at position {@code index}.
+   */
+  public byte get(long index) {
+    assert index >= 0 : "index (" + index + ") should >= 0";
+    assert index < length : "index (" + index + ") should < length (" + length + ")";
+    final long offset = index * WIDTH;
+    if (segments == null) {
+      return PlatformDependent.UNSAFE.getByte(baseObj, baseOffset + offset);
+    }
+    final int segment = (int) (offset >>> segmentShift);
+    return PlatformDependent.UNSAFE.getByte(
+      segments[segment], segmentOffsets[segment] + (offset & segmentMask));
+  }
+
+  /**
+   * Copies {@code length} elements of {@code src}, starting at {@code srcIndex}, into this array
+   * starting at {@code index}.
+   */
+  public void copyFrom(byte[] src, int srcIndex, long index, int length) {
+    assert srcIndex >= 0 && srcIndex + length <= src.length : "source range out of bounds";
+    assert index >= 0 && index + length <= this.length : "range out of bounds";
+    MemoryBlock.copy(
+      MemoryBlock.fromByteArray(src), (long) srcIndex * WIDTH,
+      memory, index * WIDTH, (long) length * WIDTH);
+  }
+
+  /**
+   * Copies {@code length} elements of this array, starting at {@code index}, into {@code dst}
+   * starting at {@code dstIndex}.
+   */
+  public void copyTo(long index, byte[] dst, int dstIndex, int length) {
+    assert index >= 0 && index + length <= this.length : "range out of bounds";
+    assert dstIndex >= 0 && dstIndex + length <= dst.length : "destination range out of bounds";
+    MemoryBlock.copy(
+      memory, index * WIDTH, MemoryBlock.fromByteArray(dst), (long) dstIndex * WIDTH,
+      (long) length * WIDTH);
+  }
+
+  /**
+   * Copies {@code length} elements from {@code src}, starting at {@code srcIndex}, to {@code dst}
+   * starting at {@code dstIndex}. The arrays may be the same, and the ranges may overlap.
+   */
+  public static void copy(
+      ByteArray src, long srcIndex, ByteArray dst, long dstIndex, long length) {
+    assert srcIndex >= 0 && srcIndex + length <= src.length : "source range out of bounds";
+    assert dstIndex >= 0 && dstIndex + length <= dst.length : "destination range out of bounds";
+    MemoryBlock.copy(src.memory, srcIndex * WIDTH, dst.memory, dstIndex * WIDTH, length * WIDTH);
+  }
+
+  /**
+   * Sets the elements from {@code fromIndex} (inclusive) to {@code toIndex} (exclusive) to
+   * {@code value}, like memset.
+   */
+  public void fill(long fromIndex, long toIndex, byte value) {
+    assert fromIndex >= 0 && fromIndex <= toIndex : "invalid range";
+    assert toIndex <= length : "toIndex (" + toIndex + ") should <= length (" + length + ")";
+    memory.fill(fromIndex, toIndex - fromIndex, value);
+  }
+
+  /**
+   * Returns a copy of the array as a JVM native array. The caller should make sure this array's
+   * length is less than {@code Integer.MAX_VALUE}.
+   */
+  public byte[] toJvmArray() throws IndexOutOfBoundsException {
+    if (length > Integer.MAX_VALUE) {
+      throw new IndexOutOfBoundsException(
+        "array size (" + length + ") too large and cannot be converted into JVM array");
+    }
+
+    final byte[] arr = new byte[(int) length];
+    copyTo(0, arr, 0, (int) length);
+    return arr;
+  }
+}
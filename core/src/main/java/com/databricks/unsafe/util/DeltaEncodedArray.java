@@ -0,0 +1,181 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.databricks.unsafe.util;
+
+import com.databricks.unsafe.util.memory.MemoryAllocator;
+
+/**
+ * A read-only, delta encoded array of longs, for sorted or slowly changing values such as
+ * timestamps or sorted ids. Values are split into blocks of {@value #BLOCK_SIZE}; each block
+ * stores its first value, and the differences between consecutive values relative to the
+ * smallest difference in the block, bit packed with the smallest width that fits them as in
+ * {@link BitPackedArray}. A block of increasing values with a constant step thus takes no space
+ * besides its 24-byte header, and values that grow by a few units take a few bits each, even
+ * when they span a wide range.
+ *
+ * {@link #decode} unpacks whole blocks at a time into a {@link LongArray}, and is the fast way
+ * to read values. {@link #get(long)} has to add up the differences from the start of its block,
+ * so it takes time proportional to the position within the block, bounded by
+ * {@value #BLOCK_SIZE}; use {@link FrameOfReferenceArray} if random access matters more than
+ * size.
+ *
+ * Arrays are not thread-safe, and must be released with {@link #free()}.
+ */
+public final class DeltaEncodedArray {
+
+  static final int BLOCK_SIZE = 128;
+
+  private static final int BLOCK_SHIFT = 7;
+
+  private final MemoryAllocator allocator;
+
+  /**
+   * Three longs per block: the first value, the smallest difference, and the bit offset of the
+   * packed differences shifted left by 8 bits, or-ed with their bit width.
+   */
+  private final LongArray header;
+
+  private final LongArray data;
+
+  private final long size;
+
+  private DeltaEncodedArray(
+      MemoryAllocator allocator, LongArray header, LongArray data, long size) {
+    this.allocator = allocator;
+    this.header = header;
+    this.data = data;
+    this.size = size;
+  }
+
+  /**
+   * Compresses the values of {@code src} from {@code fromIndex} (inclusive) to {@code toIndex}
+   * (exclusive), into memory from {@code allocator}. Differences wrap around on overflow, so any
+   * values can be encoded, but unsorted values with a wide range compress poorly.
+   */
+  public static DeltaEncodedArray encode(
+      LongArray src, long fromIndex, long toIndex, MemoryAllocator allocator) {
+    assert fromIndex >= 0 && fromIndex <= toIndex : "invalid range";
+    final long size = toIndex - fromIndex;
+    final long numBlocks = (size + BLOCK_SIZE - 1) >>> BLOCK_SHIFT;
+    final LongArray header = new LongArray(allocator.allocate(Math.max(1, numBlocks) * 24));
+    long bitOffset = 0;
+    for (long block = 0; block < numBlocks; block++) {
+      final long start = fromIndex + (block << BLOCK_SHIFT);
+      final long end = Math.min(toIndex, start + BLOCK_SIZE);
+      long minDelta = Long.MAX_VALUE;
+      long maxDelta = Long.MIN_VALUE;
+      long previous = src.get(start);
+      for (long i = start + 1; i < end; i++) {
+        final long value = src.get(i);
+        minDelta = Math.min(minDelta, value - previous);
+        maxDelta = Math.max(maxDelta, value - previous);
+        previous = value;
+      }
+      final int bitWidth = end - start > 1 ? BitPackedArray.bitsRequired(maxDelta - minDelta) : 0;
+      header.set(3 * block, src.get(start));
+      header.set(3 * block + 1, end - start > 1 ? minDelta : 0);
+      header.set(3 * block + 2, (bitOffset << 8) | bitWidth);
+      bitOffset += (end - start - 1) * bitWidth;
+    }
+    final LongArray data =
+      new LongArray(allocator.allocate(BitPackedArray.bytesRequired(bitOffset, 1)));
+    for (long block = 0; block < numBlocks; block++) {
+      final long start = fromIndex + (block << BLOCK_SHIFT);
+      final long end = Math.min(toIndex, start + BLOCK_SIZE);
+      final long minDelta = header.get(3 * block + 1);
+      final long meta = header.get(3 * block + 2);
+      final int bitWidth = (int) (meta & 0xff);
+      for (long i = start + 1; i < end; i++) {
+        BitPackedArray.write(data, (meta >>> 8) + (i - start - 1) * bitWidth, bitWidth,
+          src.get(i) - src.get(i - 1) - minDelta);
+      }
+    }
+    return new DeltaEncodedArray(allocator, header, data, size);
+  }
+
+  /**
+   * Returns the number of values in this array.
+   */
+  public long size() {
+    return size;
+  }
+
+  /**
+   * Returns the number of bytes used by this array, headers included.
+   */
+  public long sizeInBytes() {
+    return (header.size() + data.size()) * 8;
+  }
+
+  /**
+   * Returns the value at position {@code index}, in time proportional to its position within
+   * its block.
+   */
+  public long get(long index) {
+    assert index >= 0 : "index (" + index + ") should >= 0";
+    assert index < size : "index (" + index + ") should < size (" + size + ")";
+    final long block = index >>> BLOCK_SHIFT;
+    final long position = index & (BLOCK_SIZE - 1);
+    final long meta = header.get(3 * block + 2);
+    final int bitWidth = (int) (meta & 0xff);
+    long value = header.get(3 * block) + position * header.get(3 * block + 1);
+    if (bitWidth > 0) {
+      long bitOffset = meta >>> 8;
+      for (long i = 0; i < position; i++) {
+        value += BitPackedArray.read(data, bitOffset, bitWidth);
+        bitOffset += bitWidth;
+      }
+    }
+    return value;
+  }
+
+  /**
+   * Decompresses the values from {@code fromIndex} (inclusive) to {@code toIndex} (exclusive)
+   * into {@code dst}, starting at position {@code dstIndex}.
+   */
+  public void decode(long fromIndex, long toIndex, LongArray dst, long dstIndex) {
+    assert fromIndex >= 0 && fromIndex <= toIndex && toIndex <= size : "invalid range";
+    long index = fromIndex;
+    while (index < toIndex) {
+      final long block = index >>> BLOCK_SHIFT;
+      final long end = Math.min(toIndex, (block + 1) << BLOCK_SHIFT);
+      final long position = index & (BLOCK_SIZE - 1);
+      final long meta = header.get(3 * block + 2);
+      final int bitWidth = (int) (meta & 0xff);
+      final long out = dstIndex + (index - fromIndex);
+      // Unpack the differences that follow the first value, then add them up in place.
+      BitPackedArray.unpack(data, (meta >>> 8) + position * bitWidth, bitWidth, end - index - 1,
+        header.get(3 * block + 1), dst, out + 1);
+      long value = position == 0 ? header.get(3 * block) : get(index);
+      dst.set(out, value);
+      for (long i = out + 1; i < out + (end - index); i++) {
+        value += dst.get(i);
+        dst.set(i, value);
+      }
+      index = end;
+    }
+  }
+
+  /**
+   * Frees the memory used by this array, which can no longer be used afterwards.
+   */
+  public void free() {
+    allocator.free(header.memoryBlock());
+    allocator.free(data.memoryBlock());
+  }
+}
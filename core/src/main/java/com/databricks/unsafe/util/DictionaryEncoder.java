@@ -0,0 +1,302 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.databricks.unsafe.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.databricks.unsafe.util.memory.MemoryAllocator;
+import com.databricks.unsafe.util.memory.MemoryBlock;
+import com.databricks.unsafe.util.memory.PagedMemoryManager;
+
+/**
+ * Dictionary encodes a column of byte strings, such as country codes or user agents, where few
+ * distinct values repeat many times. Each distinct string is stored once in pages from a
+ * {@link PagedMemoryManager} and assigned an int code, in order of first appearance; the column
+ * itself is kept as an {@link IntArray} of codes, one per value added. Filters and group-bys can
+ * then work on the codes, e.g. by comparing them with {@link #lookup} of a constant, and only
+ * decode the strings they output.
+ *
+ * Strings are deduplicated through an open addressing hash table keyed by their
+ * {@link Murmur3_x86_32} hash. Each slot is a single long holding the hash and the code, so that
+ * probing compares hashes without touching the strings, and only full hash matches are checked
+ * byte by byte. The table is kept at most half full and doubles in size as needed.
+ *
+ * In the pages, a string is stored as its length (a 4-byte int) followed by its bytes. Strings
+ * are addressed by encoded pointers, see {@link PagedMemoryManager#encodePageNumberAndOffset}.
+ *
+ * This class is not thread-safe, and its memory must be released with {@link #free()}.
+ */
+public final class DictionaryEncoder {
+
+  /** Default size of the pages that hold the distinct strings. */
+  public static final long DEFAULT_PAGE_SIZE = 1L << 20;
+
+  private static final Murmur3_x86_32 HASHER = new Murmur3_x86_32(0);
+
+  private static final long INITIAL_TABLE_CAPACITY = 64;
+
+  private final PagedMemoryManager memoryManager;
+
+  private final MemoryAllocator allocator;
+
+  private final long pageSize;
+
+  private final List<MemoryBlock> pages = new ArrayList<MemoryBlock>();
+
+  /** The page new strings are written to, and the address of its first free byte. */
+  private MemoryBlock currentPage;
+  private long cursor;
+
+  /** Pointer to the length of each distinct string, indexed by code. */
+  private final LongVector strings;
+
+  /** The code of each value of the column. */
+  private final IntVector codes;
+
+  /**
+   * The hash table. A slot holds the hash of a string in its upper 32 bits and the code of the
+   * string plus one in its lower 32 bits, or 0 if it is empty.
+   */
+  private LongArray table;
+
+  private long mask;
+
+  public DictionaryEncoder(PagedMemoryManager memoryManager, MemoryAllocator allocator) {
+    this(memoryManager, allocator, DEFAULT_PAGE_SIZE);
+  }
+
+  /**
+   * @param memoryManager allocates the pages holding the distinct strings
+   * @param allocator allocates the codes and the hash table
+   * @param pageSize size of the pages; longer strings get a page of their own
+   */
+  public DictionaryEncoder(
+      PagedMemoryManager memoryManager, MemoryAllocator allocator, long pageSize) {
+    this.memoryManager = memoryManager;
+    this.allocator = allocator;
+    this.pageSize = pageSize;
+    this.strings = new LongVector(allocator);
+    this.codes = new IntVector(allocator);
+    this.table = new LongArray(allocator.allocate(INITIAL_TABLE_CAPACITY * 8));
+    this.mask = INITIAL_TABLE_CAPACITY - 1;
+  }
+
+  /**
+   * Appends a value to the column, and returns its code. The value is read from
+   * {@code lengthInBytes} bytes starting at {@code baseOffset} relative to {@code baseObject},
+   * and copied into the dictionary if it is new.
+   */
+  public int add(Object baseObject, long baseOffset, int lengthInBytes) {
+    final int hash = HASHER.hashUnsafeBytes(baseObject, baseOffset, lengthInBytes);
+    final long pos = find(hash, baseObject, baseOffset, lengthInBytes);
+    final long slot = table.get(pos);
+    final int code;
+    if (slot != 0) {
+      code = (int) slot - 1;
+    } else {
+      if (strings.size() == Integer.MAX_VALUE) {
+        throw new IllegalStateException("too many distinct values");
+      }
+      code = (int) strings.size();
+      strings.add(store(baseObject, baseOffset, lengthInBytes));
+      table.set(pos, ((long) hash << 32) | (code + 1L));
+      if (strings.size() > (mask + 1) / 2) {
+        growTable();
+      }
+    }
+    codes.add(code);
+    return code;
+  }
+
+  /**
+   * Returns the code of a string, or -1 if it is not in the dictionary. The column is left
+   * unchanged.
+   */
+  public int lookup(Object baseObject, long baseOffset, int lengthInBytes) {
+    final int hash = HASHER.hashUnsafeBytes(baseObject, baseOffset, lengthInBytes);
+    return (int) table.get(find(hash, baseObject, baseOffset, lengthInBytes)) - 1;
+  }
+
+  /**
+   * Returns the number of values in the column.
+   */
+  public long size() {
+    return codes.size();
+  }
+
+  /**
+   * Returns the number of distinct values, i.e. the number of codes in use.
+   */
+  public int numDistinct() {
+    return (int) strings.size();
+  }
+
+  /**
+   * Returns the code of the value at position {@code index} of the column.
+   */
+  public int getCode(long index) {
+    return codes.get(index);
+  }
+
+  /**
+   * Returns the codes of the column. Only the first {@link #size()} codes are meaningful, and the
+   * array is replaced whenever the column grows.
+   */
+  public IntArray codes() {
+    return codes.array();
+  }
+
+  /**
+   * Returns the base object of the string with the given code, which is null for off-heap pages.
+   */
+  public Object getBaseObject(int code) {
+    return memoryManager.getPage(strings.get(code));
+  }
+
+  /**
+   * Returns the address of the first byte of the string with the given code, relative to
+   * {@link #getBaseObject(int)}.
+   */
+  public long getBaseOffset(int code) {
+    return memoryManager.getOffsetInPage(strings.get(code)) + 4;
+  }
+
+  /**
+   * Returns the length in bytes of the string with the given code.
+   */
+  public int getLength(int code) {
+    final long pointer = strings.get(code);
+    return PlatformDependent.UNSAFE.getInt(
+      memoryManager.getPage(pointer), memoryManager.getOffsetInPage(pointer));
+  }
+
+  /**
+   * Returns a copy of the string with the given code.
+   */
+  public byte[] getBytes(int code) {
+    final byte[] bytes = new byte[getLength(code)];
+    PlatformDependent.copyMemory(getBaseObject(code), getBaseOffset(code),
+      bytes, PlatformDependent.BYTE_ARRAY_OFFSET, bytes.length);
+    return bytes;
+  }
+
+  /**
+   * Frees the codes, the hash table and the pages holding the strings. The encoder can no longer
+   * be used afterwards.
+   */
+  public void free() {
+    codes.free();
+    strings.free();
+    allocator.free(table.memoryBlock());
+    for (MemoryBlock page : pages) {
+      memoryManager.freePage(page);
+    }
+    pages.clear();
+    currentPage = null;
+  }
+
+  /**
+   * Returns the position of the slot holding the given string, or of the empty slot where it
+   * should be inserted.
+   */
+  private long find(int hash, Object baseObject, long baseOffset, int lengthInBytes) {
+    long pos = hash & mask;
+    long step = 1;
+    while (true) {
+      final long slot = table.get(pos);
+      if (slot == 0) {
+        return pos;
+      }
+      if ((int) (slot >>> 32) == hash) {
+        final int code = (int) slot - 1;
+        if (getLength(code) == lengthInBytes && bytesEqual(getBaseObject(code),
+            getBaseOffset(code), baseObject, baseOffset, lengthInBytes)) {
+          return pos;
+        }
+      }
+      pos = (pos + step) & mask;
+      step++;
+    }
+  }
+
+  /**
+   * Copies a string to the current page, starting a new page if it does not fit, and returns
+   * its pointer.
+   */
+  private long store(Object baseObject, long baseOffset, int lengthInBytes) {
+    // Keep the lengths aligned.
+    cursor = (cursor + 3) & ~3L;
+    final long required = 4L + lengthInBytes;
+    if (currentPage == null ||
+        cursor + required > currentPage.getBaseOffset() + currentPage.size()) {
+      currentPage = memoryManager.allocatePage((Math.max(pageSize, required) + 7) & ~7L);
+      pages.add(currentPage);
+      cursor = currentPage.getBaseOffset();
+    }
+    final Object page = currentPage.getBaseObject();
+    PlatformDependent.UNSAFE.putInt(page, cursor, lengthInBytes);
+    PlatformDependent.copyMemory(baseObject, baseOffset, page, cursor + 4, lengthInBytes);
+    final long pointer = PagedMemoryManager.encodePageNumberAndOffset(currentPage, cursor);
+    cursor += required;
+    return pointer;
+  }
+
+  /**
+   * Doubles the capacity of the hash table. Slots are moved using their stored hash, without
+   * reading the strings.
+   */
+  private void growTable() {
+    final long capacity = HashMapGrowthStrategy.DOUBLING.nextCapacity(mask + 1);
+    final LongArray newTable = new LongArray(allocator.allocate(capacity * 8));
+    final long newMask = capacity - 1;
+    for (long i = 0; i <= mask; i++) {
+      final long slot = table.get(i);
+      if (slot != 0) {
+        long pos = (int) (slot >>> 32) & newMask;
+        long step = 1;
+        while (newTable.get(pos) != 0) {
+          pos = (pos + step) & newMask;
+          step++;
+        }
+        newTable.set(pos, slot);
+      }
+    }
+    allocator.free(table.memoryBlock());
+    table = newTable;
+    mask = newMask;
+  }
+
+  private static boolean bytesEqual(
+      Object aObj, long aOffset, Object bObj, long bOffset, int length) {
+    int i = 0;
+    for (; i <= length - 8; i += 8) {
+      if (PlatformDependent.UNSAFE.getLong(aObj, aOffset + i) !=
+          PlatformDependent.UNSAFE.getLong(bObj, bOffset + i)) {
+        return false;
+      }
+    }
+    for (; i < length; i++) {
+      if (PlatformDependent.UNSAFE.getByte(aObj, aOffset + i) !=
+          PlatformDependent.UNSAFE.getByte(bObj, bOffset + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
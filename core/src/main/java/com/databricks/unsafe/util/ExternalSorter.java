@@ -0,0 +1,394 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.databricks.unsafe.util.memory.MemoryAllocator;
+import com.databricks.unsafe.util.memory.MemoryBlock;
+import com.databricks.unsafe.util.memory.SegmentedMemoryBlock;
+
+/**
+ * Sorts key/value pairs of longs by key with a bounded amount of memory, spilling sorted runs to
+ * local files when the input does not fit.
+ *
+ * Pairs are inserted into an in-memory buffer of a fixed number of pairs. When the buffer is full,
+ * it is radix sorted in place and written out as a run. {@link #sortedIterator()} sorts whatever
+ * is left in the buffer and merges it with all runs on the fly, through a heap holding the current
+ * pair of every run. Memory use is thus bounded by the buffer, a scratch array of the same size
+ * while sorting, and a read buffer of {@value #IO_BUFFER_SIZE} bytes per run during the merge.
+ *
+ * A run file is simply the sorted pairs, 16 bytes each (key then value) in the native byte order.
+ * Contiguous off-heap buffers are written without copying; in-heap and segmented buffers are
+ * copied through a direct buffer first. Run files are deleted by {@link #close()}.
+ *
+ * The sort is stable: pairs with equal keys come out in insertion order. This class is not
+ * thread-safe.
+ */
+public final class ExternalSorter implements Closeable {
+
+  /** Size of the buffers used to read runs, and to write in-heap buffers. */
+  static final int IO_BUFFER_SIZE = 64 * 1024;
+
+  private final MemoryAllocator allocator;
+
+  private final File spillDirectory;
+
+  private final boolean signed;
+
+  /** XOR-ing keys with this maps the requested order onto the signed order of longs. */
+  private final long flip;
+
+  /** Holds up to {@code capacity} pairs, interleaved as in {@link RadixSort#sortPairs}. */
+  private LongArray buffer;
+
+  private final long capacity;
+
+  private long numPairs;
+
+  private final List<File> runs = new ArrayList<File>();
+
+  private SortedIterator iterator;
+
+  /**
+   * @param allocator the allocator of the in-memory buffer, and of the scratch array used to sort
+   *                  it
+   * @param bufferCapacity number of pairs to buffer in memory before spilling
+   * @param spillDirectory directory for the run files, or null for the default temporary directory
+   * @param signed whether to order the keys as signed (true) or unsigned (false) longs
+   */
+  public ExternalSorter(
+      MemoryAllocator allocator, long bufferCapacity, File spillDirectory, boolean signed) {
+    if (bufferCapacity <= 0) {
+      throw new IllegalArgumentException(
+        "bufferCapacity (" + bufferCapacity + ") should be positive");
+    }
+    this.allocator = allocator;
+    this.capacity = bufferCapacity;
+    this.spillDirectory = spillDirectory;
+    this.signed = signed;
+    this.flip = signed ? 0 : Long.MIN_VALUE;
+    this.buffer = new LongArray(allocator.allocateUninitialized(bufferCapacity * 16));
+  }
+
+  /**
+   * Adds a pair, spilling the buffer first if it is full.
+   */
+  public void insert(long key, long value) throws IOException {
+    if (iterator != null) {
+      throw new IllegalStateException("cannot insert after sortedIterator() has been called");
+    }
+    if (numPairs == capacity) {
+      spill();
+    }
+    buffer.set(2 * numPairs, key);
+    buffer.set(2 * numPairs + 1, value);
+    numPairs++;
+  }
+
+  /**
+   * Returns the number of runs spilled to disk so far.
+   */
+  public int numSpills() {
+    return runs.size();
+  }
+
+  /**
+   * Sorts the buffer and writes it out as a new run.
+   */
+  private void spill() throws IOException {
+    RadixSort.sortPairs(buffer, 0, numPairs, signed, allocator);
+    final File file = File.createTempFile("unsafe-sort-", ".run", spillDirectory);
+    boolean written = false;
+    try {
+      write(file);
+      written = true;
+    } finally {
+      if (!written) {
+        file.delete();
+      }
+    }
+    // Only complete runs are merged.
+    runs.add(file);
+    numPairs = 0;
+  }
+
+  /**
+   * Writes the sorted pairs of the buffer to {@code file}.
+   */
+  private void write(File file) throws IOException {
+    final FileOutputStream out = new FileOutputStream(file);
+    try {
+      final FileChannel channel = out.getChannel();
+      final MemoryBlock memory = buffer.memoryBlock();
+      final long bytes = numPairs * 16;
+      // Segmented blocks cannot be viewed as a ByteBuffer, even when they are off-heap.
+      final boolean direct =
+        memory.getBaseObject() == null && !(memory instanceof SegmentedMemoryBlock);
+      final ByteBuffer staging = direct ? null : ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+      final int maxChunk = direct ? Integer.MAX_VALUE : IO_BUFFER_SIZE;
+      long written = 0;
+      while (written < bytes) {
+        final int chunk = (int) Math.min(bytes - written, maxChunk);
+        final ByteBuffer data;
+        if (direct) {
+          data = memory.slice(written, chunk).toByteBuffer();
+        } else {
+          staging.clear();
+          MemoryBlock.copy(memory, written, MemoryBlock.fromByteBuffer(staging), 0, chunk);
+          staging.limit(chunk);
+          data = staging;
+        }
+        while (data.hasRemaining()) {
+          channel.write(data);
+        }
+        written += chunk;
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Sorts the buffered pairs and returns an iterator over all inserted pairs in key order. No
+   * pairs can be inserted afterwards, and this can only be called once.
+   */
+  public SortedIterator sortedIterator() throws IOException {
+    if (iterator != null) {
+      throw new IllegalStateException("sortedIterator() can only be called once");
+    }
+    RadixSort.sortPairs(buffer, 0, numPairs, signed, allocator);
+    final List<Run> sources = new ArrayList<Run>(runs.size() + 1);
+    try {
+      for (File file : runs) {
+        sources.add(new FileRun(file, sources.size()));
+      }
+    } catch (IOException e) {
+      for (Run run : sources) {
+        run.close();
+      }
+      throw e;
+    }
+    // The buffer holds the latest pairs, so it goes last to keep the merge stable.
+    sources.add(new BufferRun(sources.size()));
+    iterator = new SortedIterator(sources);
+    return iterator;
+  }
+
+  /**
+   * Frees the buffer, closes the iterator and deletes all run files.
+   */
+  @Override
+  public void close() throws IOException {
+    if (buffer != null) {
+      allocator.free(buffer.memoryBlock());
+      buffer = null;
+    }
+    try {
+      if (iterator != null) {
+        iterator.close();
+      }
+    } finally {
+      for (File file : runs) {
+        file.delete();
+      }
+      runs.clear();
+    }
+  }
+
+  /**
+   * A sorted source of pairs, positioned on its current pair.
+   */
+  private abstract static class Run implements Closeable {
+    /** Position of the run in insertion order, which breaks ties between equal keys. */
+    final int index;
+    long key;
+    long value;
+
+    Run(int index) {
+      this.index = index;
+    }
+
+    /** Moves to the next pair, and returns false if there is none. */
+    abstract boolean advance() throws IOException;
+
+    @Override
+    public void close() throws IOException {}
+  }
+
+  private final class BufferRun extends Run {
+    private long next;
+
+    BufferRun(int index) {
+      super(index);
+    }
+
+    @Override
+    boolean advance() {
+      if (next == numPairs) {
+        return false;
+      }
+      key = buffer.get(2 * next);
+      value = buffer.get(2 * next + 1);
+      next++;
+      return true;
+    }
+  }
+
+  private static final class FileRun extends Run {
+    private final FileInputStream in;
+    private final FileChannel channel;
+    private final ByteBuffer readBuffer =
+      ByteBuffer.allocateDirect(IO_BUFFER_SIZE).order(ByteOrder.nativeOrder());
+
+    FileRun(File file, int index) throws IOException {
+      super(index);
+      this.in = new FileInputStream(file);
+      this.channel = in.getChannel();
+      readBuffer.limit(0);
+    }
+
+    @Override
+    boolean advance() throws IOException {
+      if (readBuffer.remaining() < 16) {
+        readBuffer.compact();
+        while (readBuffer.position() < 16) {
+          if (channel.read(readBuffer) < 0) {
+            if (readBuffer.position() != 0) {
+              throw new IOException("truncated run file");
+            }
+            readBuffer.flip();
+            return false;
+          }
+        }
+        readBuffer.flip();
+      }
+      key = readBuffer.getLong();
+      value = readBuffer.getLong();
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /**
+   * Iterates over the pairs of all runs in key order:
+   * <pre>
+   * <code>
+   *   SortedIterator it = sorter.sortedIterator();
+   *   while (it.next()) {
+   *     process(it.getKey(), it.getValue());
+   *   }
+   * </code>
+   * </pre>
+   */
+  public final class SortedIterator implements Closeable {
+
+    private final PriorityQueue<Run> heap;
+
+    /** The run the current pair came from, which has to be advanced on the next call. */
+    private Run current;
+
+    private long key;
+
+    private long value;
+
+    SortedIterator(List<Run> sources) throws IOException {
+      this.heap = new PriorityQueue<Run>(Math.max(1, sources.size()), new Comparator<Run>() {
+        @Override
+        public int compare(Run a, Run b) {
+          final long x = a.key ^ flip;
+          final long y = b.key ^ flip;
+          if (x != y) {
+            return x < y ? -1 : 1;
+          }
+          return a.index - b.index;
+        }
+      });
+      try {
+        for (Run run : sources) {
+          if (run.advance()) {
+            heap.add(run);
+          } else {
+            run.close();
+          }
+        }
+      } catch (IOException e) {
+        for (Run run : sources) {
+          run.close();
+        }
+        throw e;
+      }
+    }
+
+    /**
+     * Moves to the next pair, and returns false once all pairs have been returned.
+     */
+    public boolean next() throws IOException {
+      if (current != null) {
+        if (current.advance()) {
+          heap.add(current);
+        } else {
+          current.close();
+        }
+      }
+      current = heap.poll();
+      if (current == null) {
+        return false;
+      }
+      key = current.key;
+      value = current.value;
+      return true;
+    }
+
+    /** Returns the key of the current pair. */
+    public long getKey() {
+      return key;
+    }
+
+    /** Returns the value of the current pair. */
+    public long getValue() {
+      return value;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (current != null) {
+        current.close();
+        current = null;
+      }
+      for (Run run : heap) {
+        run.close();
+      }
+      heap.clear();
+    }
+  }
+}
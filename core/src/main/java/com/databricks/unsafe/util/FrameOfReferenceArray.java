@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.databricks.unsafe.util;
+
+import com.databricks.unsafe.util.memory.MemoryAllocator;
+
+/**
+ * A read-only, frame-of-reference compressed array of longs. Values are split into blocks of
+ * {@value #BLOCK_SIZE}; each block stores its minimum as a reference, and the differences of its
+ * values to the reference bit packed with the smallest width that fits them, as in
+ * {@link BitPackedArray}. Columns whose values are close together within a block, e.g.
+ * timestamps or ids, thus take a few bits per value wherever they start, and a single outlier
+ * only widens its own block.
+ *
+ * Each block has a 16-byte header holding its reference and the position and width of its
+ * packed values, so {@link #get(long)} is O(1): it reads the header and at most two words.
+ * {@link #decode} unpacks whole blocks at a time into a {@link LongArray}.
+ *
+ * Arrays are not thread-safe, and must be released with {@link #free()}.
+ */
+public final class FrameOfReferenceArray {
+
+  static final int BLOCK_SIZE = 128;
+
+  private static final int BLOCK_SHIFT = 7;
+
+  private final MemoryAllocator allocator;
+
+  /**
+   * Two longs per block: the reference, and the bit offset of the packed values shifted left by
+   * 8 bits, or-ed with their bit width.
+   */
+  private final LongArray header;
+
+  private final LongArray data;
+
+  private final long size;
+
+  private FrameOfReferenceArray(
+      MemoryAllocator allocator, LongArray header, LongArray data, long size) {
+    this.allocator = allocator;
+    this.header = header;
+    this.data = data;
+    this.size = size;
+  }
+
+  /**
+   * Compresses the values of {@code src} from {@code fromIndex} (inclusive) to {@code toIndex}
+   * (exclusive), into memory from {@code allocator}.
+   */
+  public static FrameOfReferenceArray encode(
+      LongArray src, long fromIndex, long toIndex, MemoryAllocator allocator) {
+    assert fromIndex >= 0 && fromIndex <= toIndex : "invalid range";
+    final long size = toIndex - fromIndex;
+    final long numBlocks = (size + BLOCK_SIZE - 1) >>> BLOCK_SHIFT;
+    final LongArray header = new LongArray(allocator.allocate(Math.max(1, numBlocks) * 16));
+    long bitOffset = 0;
+    for (long block = 0; block < numBlocks; block++) {
+      final long start = fromIndex + (block << BLOCK_SHIFT);
+      final long end = Math.min(toIndex, start + BLOCK_SIZE);
+      long min = Long.MAX_VALUE;
+      long max = Long.MIN_VALUE;
+      for (long i = start; i < end; i++) {
+        final long value = src.get(i);
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+      }
+      final int bitWidth = BitPackedArray.bitsRequired(max - min);
+      header.set(2 * block, min);
+      header.set(2 * block + 1, (bitOffset << 8) | bitWidth);
+      bitOffset += (end - start) * bitWidth;
+    }
+    final LongArray data =
+      new LongArray(allocator.allocate(BitPackedArray.bytesRequired(bitOffset, 1)));
+    for (long block = 0; block < numBlocks; block++) {
+      final long start = fromIndex + (block << BLOCK_SHIFT);
+      final long end = Math.min(toIndex, start + BLOCK_SIZE);
+      final long reference = header.get(2 * block);
+      final long meta = header.get(2 * block + 1);
+      final int bitWidth = (int) (meta & 0xff);
+      for (long i = start; i < end; i++) {
+        BitPackedArray.write(
+          data, (meta >>> 8) + (i - start) * bitWidth, bitWidth, src.get(i) - reference);
+      }
+    }
+    return new FrameOfReferenceArray(allocator, header, data, size);
+  }
+
+  /**
+   * Returns the number of values in this array.
+   */
+  public long size() {
+    return size;
+  }
+
+  /**
+   * Returns the number of bytes used by this array, headers included.
+   */
+  public long sizeInBytes() {
+    return (header.size() + data.size()) * 8;
+  }
+
+  /**
+   * Returns the value at position {@code index}.
+   */
+  public long get(long index) {
+    assert index >= 0 : "index (" + index + ") should >= 0";
+    assert index < size : "index (" + index + ") should < size (" + size + ")";
+    final long block = index >>> BLOCK_SHIFT;
+    final long meta = header.get(2 * block + 1);
+    final int bitWidth = (int) (meta & 0xff);
+    return header.get(2 * block) +
+      BitPackedArray.read(data, (meta >>> 8) + (index & (BLOCK_SIZE - 1)) * bitWidth, bitWidth);
+  }
+
+  /**
+   * Decompresses the values from {@code fromIndex} (inclusive) to {@code toIndex} (exclusive)
+   * into {@code dst}, starting at position {@code dstIndex}.
+   */
+  public void decode(long fromIndex, long toIndex, LongArray dst, long dstIndex) {
+    assert fromIndex >= 0 && fromIndex <= toIndex && toIndex <= size : "invalid range";
+    long index = fromIndex;
+    while (index < toIndex) {
+      final long block = index >>> BLOCK_SHIFT;
+      final long end = Math.min(toIndex, (block + 1) << BLOCK_SHIFT);
+      final long meta = header.get(2 * block + 1);
+      final int bitWidth = (int) (meta & 0xff);
+      BitPackedArray.unpack(
+        data, (meta >>> 8) + (index & (BLOCK_SIZE - 1)) * bitWidth, bitWidth, end - index,
+        header.get(2 * block), dst, dstIndex + (index - fromIndex));
+      index = end;
+    }
+  }
+
+  /**
+   * Frees the memory used by this array, which can no longer be used afterwards.
+   */
+  public void free() {
+    allocator.free(header.memoryBlock());
+    allocator.free(data.memoryBlock());
+  }
+}
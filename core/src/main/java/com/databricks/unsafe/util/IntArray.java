@@ -17,6 +17,7 @@
 package com.databricks.unsafe.util;
 
 import com.databricks.unsafe.util.memory.MemoryBlock;
+import com.databricks.unsafe.util.memory.SegmentedMemoryBlock;
 
 /**
  * An array of int values. Compared with native JVM arrays, this:
@@ -29,7 +30,6 @@ import com.databricks.unsafe.util.memory.MemoryBlock;
 public final class IntArray {
 
   private static final int WIDTH = 4;
-  private static final long ARRAY_OFFSET = PlatformDependent.INT_ARRAY_OFFSET;
 
   private final MemoryBlock memory;
 
@@ -38,12 +38,32 @@ public final class IntArray {
 
   private final long length;
 
+  /**
+   * Base objects and offsets of the segments of a {@link SegmentedMemoryBlock}, or null if the
+   * memory is contiguous.
+   */
+  private final Object[] segments;
+  private final long[] segmentOffsets;
+  private final int segmentShift;
+  private final long segmentMask;
+
   public IntArray(MemoryBlock memory) {
     assert memory.size() % WIDTH == 0 : "Memory not aligned (" + memory.size() + ")";
     this.memory = memory;
     this.baseObj = memory.getBaseObject();
     this.baseOffset = memory.getBaseOffset();
     this.length = memory.size() / WIDTH;
+    if (memory instanceof SegmentedMemoryBlock) {
+      this.segments = ((SegmentedMemoryBlock) memory).getSegmentObjects();
+      this.segmentOffsets = ((SegmentedMemoryBlock) memory).getSegmentOffsets();
+      this.segmentShift = ((SegmentedMemoryBlock) memory).getSegmentShift();
+      this.segmentMask = (1L << segmentShift) - 1;
+    } else {
+      this.segments = null;
+      this.segmentOffsets = null;
+      this.segmentShift = 0;
+      this.segmentMask = 0;
+    }
   }
 
   public MemoryBlock memoryBlock() {
@@ -63,7 +83,14 @@ public final class IntArray {
   public void set(long index, int value) {
     assert index >= 0 : "index (" + index + ") should >= 0";
     assert index < length : "index (" + index + ") should < length (" + length + ")";
-    PlatformDependent.UNSAFE.putInt(baseObj, baseOffset + index * WIDTH, value);
+    final long offset = index * WIDTH;
+    if (segments == null) {
+      PlatformDependent.UNSAFE.putInt(baseObj, baseOffset + offset, value);
+    } else {
+      final int segment = (int) (offset >>> segmentShift);
+      PlatformDependent.UNSAFE.putInt(
+        segments[segment], segmentOffsets[segment] + (offset & segmentMask), value);
+    }
   }
 
   /**
@@ -72,7 +99,75 @@ public final class IntArray {
   public int get(long index) {
     assert index >= 0 : "index (" + index + ") should >= 0";
     assert index < length : "index (" + index + ") should < length (" + length + ")";
-    return PlatformDependent.UNSAFE.getInt(baseObj, baseOffset + index * WIDTH);
+    final long offset = index * WIDTH;
+    if (segments == null) {
+      return PlatformDependent.UNSAFE.getInt(baseObj, baseOffset + offset);
+    }
+    final int segment = (int) (offset >>> segmentShift);
+    return PlatformDependent.UNSAFE.getInt(
+      segments[segment], segmentOffsets[segment] + (offset & segmentMask));
+  }
+
+  /**
+   * Copies {@code length} elements of {@code src}, starting at {@code srcIndex}, into this array
+   * starting at {@code index}.
+   */
+  public void copyFrom(int[] src, int srcIndex, long index, int length) {
+    assert srcIndex >= 0 && srcIndex + length <= src.length : "source range out of bounds";
+    assert index >= 0 && index + length <= this.length : "range out of bounds";
+    MemoryBlock.copy(
+      MemoryBlock.fromIntArray(src), (long) srcIndex * WIDTH,
+      memory, index * WIDTH, (long) length * WIDTH);
+  }
+
+  /**
+   * Copies {@code length} elements of this array, starting at {@code index}, into {@code dst}
+   * starting at {@code dstIndex}.
+   */
+  public void copyTo(long index, int[] dst, int dstIndex, int length) {
+    assert index >= 0 && index + length <= this.length : "range out of bounds";
+    assert dstIndex >= 0 && dstIndex + length <= dst.length : "destination range out of bounds";
+    MemoryBlock.copy(
+      memory, index * WIDTH, MemoryBlock.fromIntArray(dst), (long) dstIndex * WIDTH,
+      (long) length * WIDTH);
+  }
+
+  /**
+   * Copies {@code length} elements from {@code src}, starting at {@code srcIndex}, to {@code dst}
+   * starting at {@code dstIndex}. The arrays may be the same, and the ranges may overlap.
+   */
+  public static void copy(
+      IntArray src, long srcIndex, IntArray dst, long dstIndex, long length) {
+    assert srcIndex >= 0 && srcIndex + length <= src.length : "source range out of bounds";
+    assert dstIndex >= 0 && dstIndex + length <= dst.length : "destination range out of bounds";
+    MemoryBlock.copy(src.memory, srcIndex * WIDTH, dst.memory, dstIndex * WIDTH, length * WIDTH);
+  }
+
+  /**
+   * Sets the elements from {@code fromIndex} (inclusive) to {@code toIndex} (exclusive) to
+   * {@code value}. Values made of a single repeated byte, such as 0, are filled like memset;
+   * other values are written once and then copied in doubling chunks.
+   */
+  public void fill(long fromIndex, long toIndex, int value) {
+    assert fromIndex >= 0 && fromIndex <= toIndex : "invalid range";
+    assert toIndex <= length : "toIndex (" + toIndex + ") should <= length (" + length + ")";
+    if (fromIndex == toIndex) {
+      return;
+    }
+    final int bits = value;
+    if (bits == (bits & 0xff) * 0x01010101) {
+      memory.fill(fromIndex * WIDTH, (toIndex - fromIndex) * WIDTH, (byte) bits);
+      return;
+    }
+    set(fromIndex, value);
+    long filled = 1;
+    final long total = toIndex - fromIndex;
+    while (filled < total) {
+      final long count = Math.min(filled, total - filled);
+      MemoryBlock.copy(
+        memory, fromIndex * WIDTH, memory, (fromIndex + filled) * WIDTH, count * WIDTH);
+      filled += count;
+    }
   }
 
   /**
@@ -86,12 +181,7 @@ public final class IntArray {
     }
 
     final int[] arr = new int[(int) length];
-    PlatformDependent.UNSAFE.copyMemory(
-      baseObj,
-      baseOffset,
-      arr,
-      ARRAY_OFFSET,
-      length * WIDTH);
+    copyTo(0, arr, 0, (int) length);
     return arr;
   }
 }
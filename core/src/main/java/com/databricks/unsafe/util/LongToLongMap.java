@@ -81,6 +81,14 @@ public final class LongToLongMap {
     return size;
   }
 
+  /**
+   * Frees the memory used by this map. The map must not be used afterwards.
+   */
+  public void free() {
+    allocator.free(longArray.memoryBlock());
+    allocator.free(bitset.memoryBlock());
+  }
+
   /**
    * Returns true if the key is defined in this map.
    */
@@ -180,17 +188,34 @@ public final class LongToLongMap {
     }
   }
 
+  /**
+   * Allocates the data structures for the given capacity. If an allocation fails (e.g. because the
+   * allocator enforces a memory budget), the map is left unchanged and the error is rethrown.
+   *
+   * Only the bitset needs to be zeroed. Slots in the key/value array are never read before they
+   * are written, because lookups check the bitset first.
+   */
   private void allocate(long capacity) {
     capacity = Math.max(nextPowerOf2(capacity), 64);
-    longArray = new LongArray(allocator.allocate(capacity * 8 * 2));
-    bitset = new BitSet(allocator.allocate(capacity / 8));
+    final LongArray newLongArray =
+      new LongArray(allocator.allocateUninitialized(capacity * 8 * 2));
+    final BitSet newBitset;
+    try {
+      newBitset = new BitSet(allocator.allocate(capacity / 8));
+    } catch (OutOfMemoryError e) {
+      allocator.free(newLongArray.memoryBlock());
+      throw e;
+    }
+    longArray = newLongArray;
+    bitset = newBitset;
 
     this.growthThreshold = (long) (capacity * loadFactor);
     this.mask = capacity - 1;
   }
 
   /**
-   * Grows the size of the hash table and re-hash everything.
+   * Grows the size of the hash table and re-hash everything. If the larger table cannot be
+   * allocated, the map keeps its current table and the {@link OutOfMemoryError} is propagated.
    */
   private void growAndRehash() {
     // Store references to the old data structures to be used when we re-hash
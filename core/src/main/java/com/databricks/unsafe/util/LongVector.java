@@ -0,0 +1,283 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util;
+
+import java.util.Arrays;
+
+import com.databricks.unsafe.util.memory.MemoryAllocator;
+
+/**
+ * A growable, append-only vector of long values backed by {@link LongArray}s from a
+ * {@link MemoryAllocator}.
+ *
+ * By default the values live in a single array that doubles in size with
+ * {@link MemoryAllocator#reallocate} when it is full, so {@link #add(long)} is amortized O(1)
+ * and {@link #array()} gives access to all values at once. Vectors created with
+ * {@link #segmented(MemoryAllocator, long)} instead grow by chaining fixed-size arrays, so values
+ * are never copied once written; this is better suited to very large vectors, where each doubling
+ * would copy gigabytes and briefly need three times the memory.
+ *
+ * Vectors are not thread-safe, and must be released with {@link #free()}.
+ */
+public final class LongVector {
+
+  private static final int WIDTH = 8;
+
+  private static final long DEFAULT_INITIAL_CAPACITY = 16;
+
+  private final MemoryAllocator allocator;
+
+  /** The values, if they are kept in a single array; null for segmented vectors. */
+  private LongArray array;
+
+  /**
+   * The chained arrays of a segmented vector; null for contiguous vectors. All segments hold
+   * {@code 2^segmentShift} values, except the last one after {@link #trimToSize()}.
+   */
+  private LongArray[] segments;
+  private int numSegments;
+  private final int segmentShift;
+  private final long segmentMask;
+
+  private long size;
+
+  private long capacity;
+
+  public LongVector(MemoryAllocator allocator) {
+    this(allocator, DEFAULT_INITIAL_CAPACITY);
+  }
+
+  /**
+   * Creates a vector that keeps its values in a single array of {@code initialCapacity} values,
+   * which is reallocated to grow.
+   */
+  public LongVector(MemoryAllocator allocator, long initialCapacity) {
+    assert initialCapacity >= 0 : "initialCapacity (" + initialCapacity + ") should >= 0";
+    this.allocator = allocator;
+    this.segmentShift = -1;
+    this.segmentMask = 0;
+    this.array =
+      new LongArray(allocator.allocateUninitialized(Math.max(initialCapacity, 1) * WIDTH));
+    this.capacity = array.size();
+  }
+
+  private LongVector(MemoryAllocator allocator, int segmentShift) {
+    this.allocator = allocator;
+    this.segmentShift = segmentShift;
+    this.segmentMask = (1L << segmentShift) - 1;
+    this.segments = new LongArray[4];
+  }
+
+  /**
+   * Creates a vector that grows by chaining arrays of {@code segmentCapacity} values, which must
+   * be a power of 2. No memory is allocated until the first value is added.
+   */
+  public static LongVector segmented(MemoryAllocator allocator, long segmentCapacity) {
+    if (segmentCapacity <= 0 || Long.bitCount(segmentCapacity) != 1) {
+      throw new IllegalArgumentException(
+        "segmentCapacity (" + segmentCapacity + ") should be a positive power of 2");
+    }
+    return new LongVector(allocator, Long.numberOfTrailingZeros(segmentCapacity));
+  }
+
+  /**
+   * Returns the number of values in this vector.
+   */
+  public long size() {
+    return size;
+  }
+
+  /**
+   * Returns the number of values this vector can hold without allocating more memory.
+   */
+  public long capacity() {
+    return capacity;
+  }
+
+  /**
+   * Appends a value to the end of this vector. If more memory cannot be allocated, the vector is
+   * left unchanged and the {@link OutOfMemoryError} is propagated.
+   */
+  public void add(long value) {
+    if (size == capacity) {
+      grow();
+    }
+    set(size++, value);
+  }
+
+  /**
+   * Appends {@code length} values of {@code src}, starting at {@code srcIndex}.
+   */
+  public void addAll(long[] src, int srcIndex, int length) {
+    assert srcIndex >= 0 && srcIndex + length <= src.length : "source range out of bounds";
+    while (length > 0) {
+      if (size == capacity) {
+        grow();
+      }
+      final int count;
+      if (array != null) {
+        count = (int) Math.min(length, capacity - size);
+        array.copyFrom(src, srcIndex, size, count);
+      } else {
+        final LongArray segment = segments[(int) (size >>> segmentShift)];
+        final long index = size & segmentMask;
+        count = (int) Math.min(length, segment.size() - index);
+        segment.copyFrom(src, srcIndex, index, count);
+      }
+      size += count;
+      srcIndex += count;
+      length -= count;
+    }
+  }
+
+  /**
+   * Returns the value at position {@code index}.
+   */
+  public long get(long index) {
+    assert index >= 0 : "index (" + index + ") should >= 0";
+    assert index < size : "index (" + index + ") should < size (" + size + ")";
+    if (array != null) {
+      return array.get(index);
+    }
+    return segments[(int) (index >>> segmentShift)].get(index & segmentMask);
+  }
+
+  /**
+   * Replaces the value at position {@code index}, which must be less than {@link #size()}.
+   */
+  public void set(long index, long value) {
+    assert index >= 0 : "index (" + index + ") should >= 0";
+    assert index < size : "index (" + index + ") should < size (" + size + ")";
+    if (array != null) {
+      array.set(index, value);
+    } else {
+      segments[(int) (index >>> segmentShift)].set(index & segmentMask, value);
+    }
+  }
+
+  /**
+   * Returns the array holding the values of a contiguous vector. Only the first {@link #size()}
+   * values are meaningful, and the array is replaced whenever the vector grows or is trimmed.
+   *
+   * @throws UnsupportedOperationException if the vector is segmented
+   */
+  public LongArray array() {
+    if (array == null) {
+      throw new UnsupportedOperationException("segmented vectors have no single backing array");
+    }
+    return array;
+  }
+
+  /**
+   * Removes all values, keeping the memory for reuse.
+   */
+  public void clear() {
+    size = 0;
+  }
+
+  /**
+   * Releases unused capacity. Contiguous vectors are reallocated to their size; segmented vectors
+   * free their unused segments and shrink the last one.
+   */
+  public void trimToSize() {
+    if (size == capacity) {
+      return;
+    }
+    if (array != null) {
+      array =
+        new LongArray(allocator.reallocate(array.memoryBlock(), Math.max(size, 1) * WIDTH));
+      capacity = array.size();
+      return;
+    }
+    final int usedSegments = (int) ((size + segmentMask) >>> segmentShift);
+    while (numSegments > usedSegments) {
+      allocator.free(segments[--numSegments].memoryBlock());
+      segments[numSegments] = null;
+    }
+    capacity = (long) numSegments << segmentShift;
+    final long lastSize = size & segmentMask;
+    if (lastSize != 0) {
+      final LongArray last = segments[numSegments - 1];
+      segments[numSegments - 1] =
+        new LongArray(allocator.reallocate(last.memoryBlock(), lastSize * WIDTH));
+      capacity = ((long) (numSegments - 1) << segmentShift) + segments[numSegments - 1].size();
+    }
+  }
+
+  /**
+   * Frees the memory used by this vector. The vector must not be used afterwards.
+   */
+  public void free() {
+    if (array != null) {
+      allocator.free(array.memoryBlock());
+      array = null;
+    } else {
+      for (int i = 0; i < numSegments; i++) {
+        allocator.free(segments[i].memoryBlock());
+        segments[i] = null;
+      }
+      numSegments = 0;
+    }
+    size = 0;
+    capacity = 0;
+  }
+
+  /**
+   * Returns a copy of the values as a JVM native array. The caller should make sure the size is
+   * less than {@code Integer.MAX_VALUE}.
+   */
+  public long[] toJvmArray() throws IndexOutOfBoundsException {
+    if (size > Integer.MAX_VALUE) {
+      throw new IndexOutOfBoundsException(
+        "vector size (" + size + ") too large and cannot be converted into JVM array");
+    }
+    final long[] arr = new long[(int) size];
+    if (array != null) {
+      array.copyTo(0, arr, 0, (int) size);
+    } else {
+      for (int i = 0, copied = 0; copied < size; i++) {
+        final int count = (int) Math.min(segments[i].size(), size - copied);
+        segments[i].copyTo(0, arr, copied, count);
+        copied += count;
+      }
+    }
+    return arr;
+  }
+
+  private void grow() {
+    if (array != null) {
+      array = new LongArray(allocator.reallocate(array.memoryBlock(), capacity * 2 * WIDTH));
+      capacity = array.size();
+      return;
+    }
+    final long segmentCapacity = segmentMask + 1;
+    if (numSegments > 0 && segments[numSegments - 1].size() < segmentCapacity) {
+      // The last segment was trimmed; restore it to full size first.
+      final LongArray last = segments[numSegments - 1];
+      segments[numSegments - 1] =
+        new LongArray(allocator.reallocate(last.memoryBlock(), segmentCapacity * WIDTH));
+    } else {
+      if (numSegments == segments.length) {
+        segments = Arrays.copyOf(segments, numSegments * 2);
+      }
+      segments[numSegments] =
+        new LongArray(allocator.allocateUninitialized(segmentCapacity * WIDTH));
+      numSegments++;
+    }
+    capacity = (long) numSegments << segmentShift;
+  }
+}
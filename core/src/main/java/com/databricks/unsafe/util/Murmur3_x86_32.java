@@ -29,6 +29,8 @@
 
 package com.databricks.unsafe.util;
 
+import java.nio.ByteOrder;
+
 /**
  * 32-bit Murmur3 hasher.
  */
@@ -36,6 +38,9 @@ public final class Murmur3_x86_32 {
   private static final int C1 = 0xcc9e2d51;
   private static final int C2 = 0x1b873593;
 
+  private static final boolean LITTLE_ENDIAN =
+    ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
   private final int seed;
 
   public Murmur3_x86_32(int seed) {
@@ -67,6 +72,32 @@ public final class Murmur3_x86_32 {
     return fmix(h1, 8);
   }
 
+  /**
+   * Hashes {@code lengthInBytes} bytes starting at {@code baseOffset} relative to
+   * {@code baseObject}, as MurmurHash3_x86_32 of a byte string would.
+   * The result only depends on the bytes, and equals {@link #hashInt(int)} or
+   * {@link #hashLong(long)} of the same bytes read in little-endian order.
+   */
+  public int hashUnsafeBytes(Object baseObject, long baseOffset, int lengthInBytes) {
+    int h1 = seed;
+    int i = 0;
+    for (; i + 4 <= lengthInBytes; i += 4) {
+      int word = PlatformDependent.UNSAFE.getInt(baseObject, baseOffset + i);
+      if (!LITTLE_ENDIAN) {
+        word = Integer.reverseBytes(word);
+      }
+      h1 = mixH1(h1, mixK1(word));
+    }
+    if (i < lengthInBytes) {
+      int tail = 0;
+      for (int shift = 0; i < lengthInBytes; i++, shift += 8) {
+        tail |= (PlatformDependent.UNSAFE.getByte(baseObject, baseOffset + i) & 0xff) << shift;
+      }
+      h1 ^= mixK1(tail);
+    }
+    return fmix(h1, lengthInBytes);
+  }
+
   private static int mixK1(int k1) {
     k1 *= C1;
     k1 = Integer.rotateLeft(k1, 15);
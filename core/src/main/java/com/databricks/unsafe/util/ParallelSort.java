@@ -0,0 +1,478 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.databricks.unsafe.util.memory.MemoryAllocator;
+import com.databricks.unsafe.util.memory.MemoryBlock;
+
+/**
+ * Multi-threaded sort for {@link LongArray}s, {@link IntArray}s and {@link DoubleArray}s.
+ *
+ * The range is split into one chunk per thread, each chunk is sorted with {@link RadixSort}, and
+ * the sorted chunks are merged pairwise in rounds, alternating between the array and a scratch
+ * array of the same size. Every merge is itself split into pieces of roughly equal output size (by
+ * binary searching where each piece starts in both inputs), so all threads stay busy in the last
+ * rounds too, when only a couple of large merges remain. All work happens in place in the arrays'
+ * memory, whether it is in-heap, off-heap or segmented.
+ *
+ * The tasks run on the given {@link ExecutorService}, and the calling thread runs one of them
+ * itself and then waits for the others. The executor must therefore not be a bounded pool that
+ * the calling thread belongs to, or the sort may wait on tasks that never get a thread.
+ */
+public final class ParallelSort {
+
+  /** Ranges with fewer elements per thread than this are not worth splitting. */
+  static final long MIN_CHUNK_SIZE = 1 << 16;
+
+  private ParallelSort() {}
+
+  /**
+   * Sorts the elements from {@code fromIndex} (inclusive) to {@code toIndex} (exclusive) using up
+   * to {@code parallelism} threads of {@code executor}.
+   *
+   * @param signed whether to order the values as signed (true) or unsigned (false) longs
+   */
+  public static void sort(
+      LongArray array, long fromIndex, long toIndex, boolean signed,
+      MemoryAllocator allocator, ExecutorService executor, int parallelism) {
+    final long n = toIndex - fromIndex;
+    if (n <= 1) {
+      return;
+    }
+    final LongArray scratch = new LongArray(allocator.allocateUninitialized(n * 8));
+    try {
+      new LongSorter(array, fromIndex, scratch, signed).sort(n, executor, parallelism);
+    } finally {
+      allocator.free(scratch.memoryBlock());
+    }
+  }
+
+  /**
+   * Sorts the elements from {@code fromIndex} (inclusive) to {@code toIndex} (exclusive) using up
+   * to {@code parallelism} threads of {@code executor}.
+   *
+   * @param signed whether to order the values as signed (true) or unsigned (false) ints
+   */
+  public static void sort(
+      IntArray array, long fromIndex, long toIndex, boolean signed,
+      MemoryAllocator allocator, ExecutorService executor, int parallelism) {
+    final long n = toIndex - fromIndex;
+    if (n <= 1) {
+      return;
+    }
+    // Rounded up to whole longs for the heap allocator.
+    final MemoryBlock block = allocator.allocateUninitialized((n * 4 + 7) & ~7L);
+    try {
+      new IntSorter(array, fromIndex, new IntArray(block), signed)
+        .sort(n, executor, parallelism);
+    } finally {
+      allocator.free(block);
+    }
+  }
+
+  /**
+   * Sorts the elements from {@code fromIndex} (inclusive) to {@code toIndex} (exclusive) using up
+   * to {@code parallelism} threads of {@code executor}, in the order of
+   * {@link Double#compare(double, double)}: -0.0 sorts before 0.0, and NaN after all other values.
+   *
+   * The values are sorted as longs, after a transformation of their bits that maps the order of
+   * doubles onto the unsigned order of longs. NaNs are turned into the canonical NaN, as by
+   * {@link Double#doubleToLongBits(double)}.
+   */
+  public static void sort(
+      DoubleArray array, long fromIndex, long toIndex,
+      MemoryAllocator allocator, ExecutorService executor, int parallelism) {
+    final long n = toIndex - fromIndex;
+    if (n <= 1) {
+      return;
+    }
+    final LongArray bits = new LongArray(array.memoryBlock());
+    final LongArray scratch = new LongArray(allocator.allocateUninitialized(n * 8));
+    try {
+      final LongSorter sorter = new LongSorter(bits, fromIndex, scratch, false);
+      sorter.transformDoubles(n, true, executor, parallelism);
+      sorter.sort(n, executor, parallelism);
+      sorter.transformDoubles(n, false, executor, parallelism);
+    } finally {
+      allocator.free(scratch.memoryBlock());
+    }
+  }
+
+  /**
+   * Runs the tasks, one of them in the calling thread, and waits for all of them to complete, even
+   * if some fail: tasks write into memory that the caller may free as soon as this returns. The
+   * first exception thrown by a task is then rethrown. Waiting is not interruptible, but the
+   * interrupt status of the thread is preserved.
+   */
+  static void runAll(ExecutorService executor, List<Runnable> tasks) {
+    final List<Future<?>> futures = new ArrayList<Future<?>>(tasks.size());
+    Throwable failure = null;
+    try {
+      for (int i = 1; i < tasks.size(); i++) {
+        futures.add(executor.submit(tasks.get(i)));
+      }
+      if (!tasks.isEmpty()) {
+        tasks.get(0).run();
+      }
+    } catch (Throwable t) {
+      failure = t;
+    }
+    boolean interrupted = false;
+    for (Future<?> future : futures) {
+      while (true) {
+        try {
+          future.get();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          if (failure == null) {
+            failure = e.getCause();
+          }
+          break;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (failure != null) {
+      PlatformDependent.throwException(failure);
+    }
+  }
+
+  /**
+   * The part of the sort that does not depend on the element type. Elements are addressed by
+   * their position relative to the start of the range, in one of two buffers: 0 is the array and
+   * 1 is the scratch array.
+   */
+  private abstract static class Sorter {
+
+    /** Sorts positions [from, to) of buffer 0, using the same positions of buffer 1 as scratch. */
+    abstract void sortChunk(long from, long to);
+
+    /**
+     * Merges the sorted positions [aFrom, aTo) and [bFrom, bTo) of buffer {@code src} into the
+     * other buffer, starting at position {@code out}. Ties are taken from [aFrom, aTo) first.
+     */
+    abstract void merge(int src, long aFrom, long aTo, long bFrom, long bTo, long out);
+
+    /** Copies positions [from, to) of buffer {@code src} to the other buffer. */
+    abstract void copy(int src, long from, long to);
+
+    /**
+     * Returns whether the element at position {@code i} of buffer {@code src} sorts strictly
+     * after the one at position {@code j}.
+     */
+    abstract boolean greater(int src, long i, long j);
+
+    final void sort(long n, ExecutorService executor, int parallelism) {
+      final int numChunks = (int) Math.max(1, Math.min(parallelism, n / MIN_CHUNK_SIZE));
+      if (numChunks == 1) {
+        sortChunk(0, n);
+        return;
+      }
+
+      // Boundaries of the sorted runs: run i is [bounds[i], bounds[i + 1]).
+      long[] bounds = new long[numChunks + 1];
+      for (int i = 0; i <= numChunks; i++) {
+        bounds[i] = n * i / numChunks;
+      }
+      final List<Runnable> tasks = new ArrayList<Runnable>(numChunks);
+      for (int i = 0; i < numChunks; i++) {
+        final long from = bounds[i];
+        final long to = bounds[i + 1];
+        tasks.add(new Runnable() {
+          @Override
+          public void run() {
+            sortChunk(from, to);
+          }
+        });
+      }
+      runAll(executor, tasks);
+
+      int src = 0;
+      while (bounds.length > 2) {
+        final int numRuns = bounds.length - 1;
+        final long[] merged = new long[(numRuns + 1) / 2 + 1];
+        tasks.clear();
+        for (int i = 0; i < numRuns; i += 2) {
+          merged[i / 2] = bounds[i];
+          if (i + 1 == numRuns) {
+            addCopyTasks(tasks, src, bounds[i], bounds[i + 1], n, parallelism);
+          } else {
+            addMergeTasks(tasks, src, bounds[i], bounds[i + 1], bounds[i + 2], n, parallelism);
+          }
+        }
+        merged[merged.length - 1] = n;
+        runAll(executor, tasks);
+        bounds = merged;
+        src ^= 1;
+      }
+
+      if (src == 1) {
+        tasks.clear();
+        addCopyTasks(tasks, 1, 0, n, n, parallelism);
+        runAll(executor, tasks);
+      }
+    }
+
+    /**
+     * Splits the copy of [from, to) out of buffer {@code src} into a share of the threads
+     * proportional to its size.
+     */
+    private void addCopyTasks(
+        List<Runnable> tasks, final int src, long from, long to, long n, int parallelism) {
+      final int pieces = numPieces(to - from, n, parallelism);
+      for (int k = 0; k < pieces; k++) {
+        final long pieceFrom = from + (to - from) * k / pieces;
+        final long pieceTo = from + (to - from) * (k + 1) / pieces;
+        tasks.add(new Runnable() {
+          @Override
+          public void run() {
+            copy(src, pieceFrom, pieceTo);
+          }
+        });
+      }
+    }
+
+    /**
+     * Splits the merge of [a, b) and [b, c) into a share of the threads proportional to its size.
+     * The pieces end at evenly spaced output positions, and {@link #split} finds where each of
+     * them ends in both runs.
+     */
+    private void addMergeTasks(
+        List<Runnable> tasks, final int src, long a, final long b, long c, long n,
+        int parallelism) {
+      final int pieces = numPieces(c - a, n, parallelism);
+      long aFrom = a;
+      long bFrom = b;
+      for (int k = 1; k <= pieces; k++) {
+        final long out = a + (c - a) * k / pieces;
+        final long aTo = k == pieces ? b : split(src, a, b, c, out - a);
+        final long bTo = k == pieces ? c : b + (out - a) - (aTo - a);
+        final long pieceAFrom = aFrom;
+        final long pieceBFrom = bFrom;
+        tasks.add(new Runnable() {
+          @Override
+          public void run() {
+            merge(src, pieceAFrom, aTo, pieceBFrom, bTo, pieceAFrom + pieceBFrom - b);
+          }
+        });
+        aFrom = aTo;
+        bFrom = bTo;
+      }
+    }
+
+    private static int numPieces(long length, long n, int parallelism) {
+      return (int) Math.max(1, (parallelism * length + n - 1) / n);
+    }
+
+    /**
+     * Returns the end of the part of run [a, b) that is among the first {@code rank} elements of
+     * the merge of [a, b) and [b, c). Ties go to the first run, which keeps the merge stable.
+     */
+    private long split(int src, long a, long b, long c, long rank) {
+      long lo = Math.max(0, rank - (c - b));
+      long hi = Math.min(rank, b - a);
+      while (lo < hi) {
+        final long mid = (lo + hi) >>> 1;
+        // Element a + mid of the first run is taken iff it is not greater than the element of
+        // the second run that would be output right before it.
+        if (!greater(src, a + mid, b + rank - mid - 1)) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return a + lo;
+    }
+  }
+
+  private static final class IntSorter extends Sorter {
+
+    private final IntArray[] buffers;
+    private final long[] offsets;
+    private final boolean signed;
+
+    /** XOR-ing values with this maps the requested order onto the signed order of ints. */
+    private final int flip;
+
+    IntSorter(IntArray array, long fromIndex, IntArray scratch, boolean signed) {
+      this.buffers = new IntArray[] {array, scratch};
+      this.offsets = new long[] {fromIndex, 0};
+      this.signed = signed;
+      this.flip = signed ? 0 : Integer.MIN_VALUE;
+    }
+
+    @Override
+    void sortChunk(long from, long to) {
+      RadixSort.sort(buffers[0], offsets[0] + from, offsets[0] + to, signed, buffers[1], from);
+    }
+
+    @Override
+    void merge(int src, long aFrom, long aTo, long bFrom, long bTo, long out) {
+      final IntArray in = buffers[src];
+      final IntArray dst = buffers[src ^ 1];
+      long i = offsets[src] + aFrom;
+      final long iEnd = offsets[src] + aTo;
+      long j = offsets[src] + bFrom;
+      final long jEnd = offsets[src] + bTo;
+      long o = offsets[src ^ 1] + out;
+      if (i < iEnd && j < jEnd) {
+        int x = in.get(i);
+        int y = in.get(j);
+        while (true) {
+          if ((y ^ flip) < (x ^ flip)) {
+            dst.set(o++, y);
+            if (++j == jEnd) {
+              break;
+            }
+            y = in.get(j);
+          } else {
+            dst.set(o++, x);
+            if (++i == iEnd) {
+              break;
+            }
+            x = in.get(i);
+          }
+        }
+      }
+      // At most one of the runs has elements left.
+      IntArray.copy(in, i, dst, o, iEnd - i);
+      IntArray.copy(in, j, dst, o + (iEnd - i), jEnd - j);
+    }
+
+    @Override
+    void copy(int src, long from, long to) {
+      IntArray.copy(
+        buffers[src], offsets[src] + from, buffers[src ^ 1], offsets[src ^ 1] + from, to - from);
+    }
+
+    @Override
+    boolean greater(int src, long i, long j) {
+      final IntArray buffer = buffers[src];
+      return (buffer.get(offsets[src] + i) ^ flip) > (buffer.get(offsets[src] + j) ^ flip);
+    }
+  }
+
+  private static final class LongSorter extends Sorter {
+
+    private final LongArray[] buffers;
+    private final long[] offsets;
+    private final boolean signed;
+
+    /** XOR-ing values with this maps the requested order onto the signed order of longs. */
+    private final long flip;
+
+    LongSorter(LongArray array, long fromIndex, LongArray scratch, boolean signed) {
+      this.buffers = new LongArray[] {array, scratch};
+      this.offsets = new long[] {fromIndex, 0};
+      this.signed = signed;
+      this.flip = signed ? 0 : Long.MIN_VALUE;
+    }
+
+    @Override
+    void sortChunk(long from, long to) {
+      RadixSort.sort(buffers[0], offsets[0] + from, offsets[0] + to, signed, buffers[1], from);
+    }
+
+    @Override
+    void merge(int src, long aFrom, long aTo, long bFrom, long bTo, long out) {
+      final LongArray in = buffers[src];
+      final LongArray dst = buffers[src ^ 1];
+      long i = offsets[src] + aFrom;
+      final long iEnd = offsets[src] + aTo;
+      long j = offsets[src] + bFrom;
+      final long jEnd = offsets[src] + bTo;
+      long o = offsets[src ^ 1] + out;
+      if (i < iEnd && j < jEnd) {
+        long x = in.get(i);
+        long y = in.get(j);
+        while (true) {
+          if ((y ^ flip) < (x ^ flip)) {
+            dst.set(o++, y);
+            if (++j == jEnd) {
+              break;
+            }
+            y = in.get(j);
+          } else {
+            dst.set(o++, x);
+            if (++i == iEnd) {
+              break;
+            }
+            x = in.get(i);
+          }
+        }
+      }
+      // At most one of the runs has elements left.
+      LongArray.copy(in, i, dst, o, iEnd - i);
+      LongArray.copy(in, j, dst, o + (iEnd - i), jEnd - j);
+    }
+
+    @Override
+    void copy(int src, long from, long to) {
+      LongArray.copy(
+        buffers[src], offsets[src] + from, buffers[src ^ 1], offsets[src ^ 1] + from, to - from);
+    }
+
+    @Override
+    boolean greater(int src, long i, long j) {
+      final LongArray buffer = buffers[src];
+      return (buffer.get(offsets[src] + i) ^ flip) > (buffer.get(offsets[src] + j) ^ flip);
+    }
+
+    /**
+     * Maps the bits of doubles onto longs whose unsigned order is the order of the doubles
+     * ({@code forward}), or back.
+     */
+    void transformDoubles(
+        long n, final boolean forward, ExecutorService executor, int parallelism) {
+      final LongArray array = buffers[0];
+      final long offset = offsets[0];
+      final int pieces = (int) Math.max(1, Math.min(parallelism, n / MIN_CHUNK_SIZE));
+      final List<Runnable> tasks = new ArrayList<Runnable>(pieces);
+      for (int k = 0; k < pieces; k++) {
+        final long from = offset + n * k / pieces;
+        final long to = offset + n * (k + 1) / pieces;
+        tasks.add(new Runnable() {
+          @Override
+          public void run() {
+            for (long i = from; i < to; i++) {
+              final long value = array.get(i);
+              if (forward) {
+                // Canonicalize NaNs, then flip all bits of negative values and the sign bit of
+                // positive values.
+                final long bits = Double.doubleToLongBits(Double.longBitsToDouble(value));
+                array.set(i, bits ^ ((bits >> 63) | Long.MIN_VALUE));
+              } else {
+                array.set(i, value ^ ((~value >> 63) | Long.MIN_VALUE));
+              }
+            }
+          }
+        });
+      }
+      runAll(executor, tasks);
+    }
+  }
+}
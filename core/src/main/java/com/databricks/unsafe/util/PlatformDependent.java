@@ -17,6 +17,10 @@
 package com.databricks.unsafe.util;
 
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 
 import sun.misc.Unsafe;
 
@@ -26,10 +30,14 @@ public final class PlatformDependent {
 
   public static final int BYTE_ARRAY_OFFSET;
 
+  public static final int SHORT_ARRAY_OFFSET;
+
   public static final int INT_ARRAY_OFFSET;
 
   public static final int LONG_ARRAY_OFFSET;
 
+  public static final int FLOAT_ARRAY_OFFSET;
+
   public static final int DOUBLE_ARRAY_OFFSET;
 
   /**
@@ -38,6 +46,21 @@ public final class PlatformDependent {
    */
   private static final long UNSAFE_COPY_THRESHOLD = 1024L * 1024L;
 
+  /** Offset of the {@link Buffer} field that holds the address of a direct buffer. */
+  private static final long BUFFER_ADDRESS_FIELD_OFFSET;
+
+  /** Offset of the {@link Buffer} field that holds the capacity of a buffer. */
+  private static final long BUFFER_CAPACITY_FIELD_OFFSET;
+
+  /**
+   * A direct buffer that is duplicated to create buffers pointing at arbitrary memory. Duplicates
+   * have no cleaner, so they never free the memory they point to.
+   */
+  private static final ByteBuffer DIRECT_BUFFER_TEMPLATE = ByteBuffer.allocateDirect(0);
+
+  /** {@code Unsafe.invokeCleaner(ByteBuffer)}, which only exists on Java 9 and later. */
+  private static final Method UNSAFE_INVOKE_CLEANER;
+
   static {
     sun.misc.Unsafe unsafe;
     try {
@@ -51,18 +74,117 @@ public final class PlatformDependent {
 
     if (UNSAFE != null) {
       BYTE_ARRAY_OFFSET = UNSAFE.arrayBaseOffset(byte[].class);
+      SHORT_ARRAY_OFFSET = UNSAFE.arrayBaseOffset(short[].class);
       INT_ARRAY_OFFSET = UNSAFE.arrayBaseOffset(int[].class);
       LONG_ARRAY_OFFSET = UNSAFE.arrayBaseOffset(long[].class);
+      FLOAT_ARRAY_OFFSET = UNSAFE.arrayBaseOffset(float[].class);
       DOUBLE_ARRAY_OFFSET = UNSAFE.arrayBaseOffset(double[].class);
     } else {
       BYTE_ARRAY_OFFSET = 0;
+      SHORT_ARRAY_OFFSET = 0;
       INT_ARRAY_OFFSET = 0;
       LONG_ARRAY_OFFSET = 0;
+      FLOAT_ARRAY_OFFSET = 0;
       DOUBLE_ARRAY_OFFSET = 0;
     }
+
+    long addressOffset = -1;
+    long capacityOffset = -1;
+    Method invokeCleaner = null;
+    if (UNSAFE != null) {
+      try {
+        addressOffset = UNSAFE.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+      } catch (Throwable cause) {
+        addressOffset = -1;
+      }
+      try {
+        capacityOffset = UNSAFE.objectFieldOffset(Buffer.class.getDeclaredField("capacity"));
+      } catch (Throwable cause) {
+        capacityOffset = -1;
+      }
+      try {
+        invokeCleaner = Unsafe.class.getMethod("invokeCleaner", ByteBuffer.class);
+      } catch (Throwable cause) {
+        invokeCleaner = null;
+      }
+    }
+    BUFFER_ADDRESS_FIELD_OFFSET = addressOffset;
+    BUFFER_CAPACITY_FIELD_OFFSET = capacityOffset;
+    UNSAFE_INVOKE_CLEANER = invokeCleaner;
+  }
+
+  /**
+   * Returns the memory address of a direct {@link ByteBuffer}.
+   */
+  public static long directBufferAddress(ByteBuffer buffer) {
+    assert buffer.isDirect() : "buffer is not direct";
+    if (BUFFER_ADDRESS_FIELD_OFFSET < 0) {
+      throw new UnsupportedOperationException("cannot access the address of direct buffers");
+    }
+    return UNSAFE.getLong(buffer, BUFFER_ADDRESS_FIELD_OFFSET);
+  }
+
+  /**
+   * Returns a direct {@link ByteBuffer} of {@code capacity} bytes starting at {@code address},
+   * without copying. The buffer does not own the memory: it is not freed when the buffer is
+   * garbage collected, and the buffer must not be used after the memory has been freed.
+   */
+  public static ByteBuffer newDirectBuffer(long address, int capacity) {
+    if (BUFFER_ADDRESS_FIELD_OFFSET < 0 || BUFFER_CAPACITY_FIELD_OFFSET < 0) {
+      throw new UnsupportedOperationException("cannot create direct buffers at a given address");
+    }
+    final ByteBuffer buffer = DIRECT_BUFFER_TEMPLATE.duplicate();
+    UNSAFE.putLong(buffer, BUFFER_ADDRESS_FIELD_OFFSET, address);
+    UNSAFE.putInt(buffer, BUFFER_CAPACITY_FIELD_OFFSET, capacity);
+    buffer.clear();
+    return buffer;
   }
 
-  static void copyMemory(Object src, long srcOffset, Object dst, long dstOffset, long length) {
+  /**
+   * Releases the memory of a direct (or memory-mapped) {@link ByteBuffer} right away, rather than
+   * waiting for the buffer to be garbage collected. The buffer must not be used afterwards.
+   */
+  public static void freeDirectBuffer(ByteBuffer buffer) {
+    assert buffer.isDirect() : "buffer is not direct";
+    try {
+      if (UNSAFE_INVOKE_CLEANER != null) {
+        UNSAFE_INVOKE_CLEANER.invoke(UNSAFE, buffer);
+      } else {
+        // Java 8 and earlier: ((sun.nio.ch.DirectBuffer) buffer).cleaner().clean()
+        final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+        cleanerMethod.setAccessible(true);
+        final Object cleaner = cleanerMethod.invoke(buffer);
+        if (cleaner != null) {
+          cleaner.getClass().getMethod("clean").invoke(cleaner);
+        }
+      }
+    } catch (InvocationTargetException e) {
+      throwException(e.getCause());
+    } catch (Exception e) {
+      throwException(e);
+    }
+  }
+
+  /**
+   * Copies {@code length} bytes like {@link Unsafe#copyMemory(Object, long, Object, long, long)},
+   * but in chunks so that large copies don't delay safepoints. The source and destination ranges
+   * may overlap.
+   */
+  public static void copyMemory(
+      Object src, long srcOffset, Object dst, long dstOffset, long length) {
+    if (src == dst && dstOffset > srcOffset && dstOffset < srcOffset + length) {
+      // Copy backwards so that overlapping bytes are read before they are overwritten.
+      srcOffset += length;
+      dstOffset += length;
+      while (length > 0) {
+        long size = Math.min(length, UNSAFE_COPY_THRESHOLD);
+        srcOffset -= size;
+        dstOffset -= size;
+        UNSAFE.copyMemory(src, srcOffset, dst, dstOffset, size);
+        length -= size;
+      }
+      return;
+    }
     while (length > 0) {
       long size = Math.min(length, UNSAFE_COPY_THRESHOLD);
       UNSAFE.copyMemory(src, srcOffset, dst, dstOffset, size);
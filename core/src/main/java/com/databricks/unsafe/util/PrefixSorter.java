@@ -0,0 +1,172 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util;
+
+import com.databricks.unsafe.util.memory.MemoryAllocator;
+import com.databricks.unsafe.util.memory.PagedMemoryManager;
+
+/**
+ * Sorts records stored in the pages of a {@link PagedMemoryManager} without moving them, by
+ * sorting a {@link LongArray} of (key prefix, record pointer) pairs: position {@code 2 * i} holds
+ * the prefix of record {@code i} and position {@code 2 * i + 1} its pointer, as encoded by
+ * {@link PagedMemoryManager#encodePageNumberAndOffset}.
+ *
+ * A prefix is an 8-byte summary of the record's key whose unsigned order agrees with the order of
+ * the records: if prefix(a) < prefix(b) then a < b. For byte string keys compared
+ * lexicographically, {@link #computePrefix(Object, long, int)} computes such a prefix.
+ *
+ * The pairs are first radix sorted on the prefix alone, which is fast and cache-friendly since it
+ * only streams through the array. Records are then dereferenced and compared with a
+ * {@link RecordComparator} only within runs of pairs whose prefixes are equal, which are sorted
+ * with a quicksort. The more distinct the prefixes, the fewer records are ever touched. The sort
+ * is not stable for records that compare equal.
+ */
+public final class PrefixSorter {
+
+  /** Runs of tied prefixes up to this length are sorted with an insertion sort. */
+  private static final int INSERTION_SORT_THRESHOLD = 16;
+
+  private final PagedMemoryManager memoryManager;
+
+  private final RecordComparator comparator;
+
+  public PrefixSorter(PagedMemoryManager memoryManager, RecordComparator comparator) {
+    this.memoryManager = memoryManager;
+    this.comparator = comparator;
+  }
+
+  /**
+   * Returns the prefix of a byte string key: its first 8 bytes in big-endian order, padded with
+   * zeros if it is shorter. The unsigned order of prefixes agrees with the lexicographic order of
+   * the keys (comparing bytes as unsigned), but keys that share their first 8 bytes, or that only
+   * differ in trailing zeros, have the same prefix.
+   */
+  public static long computePrefix(Object baseObject, long baseOffset, int length) {
+    long prefix = 0;
+    final int n = Math.min(length, 8);
+    for (int i = 0; i < n; i++) {
+      final long b = PlatformDependent.UNSAFE.getByte(baseObject, baseOffset + i) & 0xffL;
+      prefix |= b << (56 - 8 * i);
+    }
+    return prefix;
+  }
+
+  /**
+   * Sorts the pairs from {@code fromPair} (inclusive) to {@code toPair} (exclusive), using a
+   * scratch array allocated from {@code allocator} for the duration of the sort.
+   */
+  public void sort(LongArray pairs, long fromPair, long toPair, MemoryAllocator allocator) {
+    RadixSort.sortPairs(pairs, fromPair, toPair, false, allocator);
+    sortTies(pairs, fromPair, toPair);
+  }
+
+  /**
+   * Sorts the pairs from {@code fromPair} (inclusive) to {@code toPair} (exclusive), using the
+   * first {@code 2 * (toPair - fromPair)} elements of {@code scratch} as temporary space.
+   */
+  public void sort(LongArray pairs, long fromPair, long toPair, LongArray scratch) {
+    RadixSort.sortPairs(pairs, fromPair, toPair, false, scratch);
+    sortTies(pairs, fromPair, toPair);
+  }
+
+  /**
+   * Sorts every run of pairs with equal prefixes by comparing their records.
+   */
+  private void sortTies(LongArray pairs, long fromPair, long toPair) {
+    long runStart = fromPair;
+    while (runStart < toPair) {
+      final long prefix = pairs.get(2 * runStart);
+      long runEnd = runStart + 1;
+      while (runEnd < toPair && pairs.get(2 * runEnd) == prefix) {
+        runEnd++;
+      }
+      if (runEnd - runStart > 1) {
+        sortRun(pairs, runStart, runEnd);
+      }
+      runStart = runEnd;
+    }
+  }
+
+  /**
+   * Quicksorts the pairs from {@code lo} (inclusive) to {@code hi} (exclusive) by record. All of
+   * them have the same prefix, so only the pointers need to be moved.
+   */
+  private void sortRun(LongArray pairs, long lo, long hi) {
+    while (hi - lo > INSERTION_SORT_THRESHOLD) {
+      final long pivot = medianOfThree(
+        pointer(pairs, lo), pointer(pairs, lo + (hi - lo) / 2), pointer(pairs, hi - 1));
+      long i = lo;
+      long j = hi - 1;
+      while (i <= j) {
+        while (compare(pointer(pairs, i), pivot) < 0) {
+          i++;
+        }
+        while (compare(pointer(pairs, j), pivot) > 0) {
+          j--;
+        }
+        if (i <= j) {
+          final long tmp = pointer(pairs, i);
+          pairs.set(2 * i + 1, pointer(pairs, j));
+          pairs.set(2 * j + 1, tmp);
+          i++;
+          j--;
+        }
+      }
+      // Recurse into the smaller side and loop on the larger one, to bound the stack depth.
+      if (j + 1 - lo < hi - i) {
+        sortRun(pairs, lo, j + 1);
+        lo = i;
+      } else {
+        sortRun(pairs, i, hi);
+        hi = j + 1;
+      }
+    }
+
+    for (long i = lo + 1; i < hi; i++) {
+      final long pointer = pointer(pairs, i);
+      long j = i - 1;
+      while (j >= lo && compare(pointer(pairs, j), pointer) > 0) {
+        pairs.set(2 * j + 3, pointer(pairs, j));
+        j--;
+      }
+      pairs.set(2 * j + 3, pointer);
+    }
+  }
+
+  private long medianOfThree(long a, long b, long c) {
+    if (compare(a, b) < 0) {
+      if (compare(b, c) < 0) {
+        return b;
+      }
+      return compare(a, c) < 0 ? c : a;
+    }
+    if (compare(a, c) < 0) {
+      return a;
+    }
+    return compare(b, c) < 0 ? c : b;
+  }
+
+  private static long pointer(LongArray pairs, long pair) {
+    return pairs.get(2 * pair + 1);
+  }
+
+  private int compare(long leftPointer, long rightPointer) {
+    return comparator.compare(
+      memoryManager.getPage(leftPointer), memoryManager.getOffsetInPage(leftPointer),
+      memoryManager.getPage(rightPointer), memoryManager.getOffsetInPage(rightPointer));
+  }
+}
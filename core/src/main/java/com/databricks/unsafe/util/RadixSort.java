@@ -0,0 +1,289 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util;
+
+import com.databricks.unsafe.util.memory.MemoryAllocator;
+import com.databricks.unsafe.util.memory.MemoryBlock;
+
+/**
+ * Least-significant-digit radix sort for {@link LongArray}s and {@link IntArray}s, in signed or
+ * unsigned order.
+ *
+ * Besides plain arrays of keys, this can sort arrays of interleaved key/value pairs, where position
+ * {@code 2 * i} holds the key of pair {@code i} and position {@code 2 * i + 1} its value (the
+ * layout used by {@link LongToLongMap}). Pairs are ordered by key only.
+ *
+ * The sort makes one pass per byte of the keys, each reading the data sequentially and scattering
+ * it into a scratch array of the same size, so it runs in O(n) time but needs O(n) extra memory.
+ * The histograms of all bytes are computed in a single initial scan, and bytes that are the
+ * same in all keys (e.g. the high bytes of small or non-negative values) are skipped. The sort is
+ * stable.
+ */
+public final class RadixSort {
+
+  private RadixSort() {}
+
+  /**
+   * Sorts the elements from {@code fromIndex} (inclusive) to {@code toIndex} (exclusive), using a
+   * scratch array allocated from {@code allocator} for the duration of the sort.
+   *
+   * @param signed whether to order the values as signed (true) or unsigned (false) longs
+   */
+  public static void sort(
+      LongArray array, long fromIndex, long toIndex, boolean signed, MemoryAllocator allocator) {
+    final long n = toIndex - fromIndex;
+    if (n <= 1) {
+      return;
+    }
+    final LongArray scratch = new LongArray(allocator.allocateUninitialized(n * 8));
+    try {
+      sort(array, fromIndex, toIndex, signed, scratch);
+    } finally {
+      allocator.free(scratch.memoryBlock());
+    }
+  }
+
+  /**
+   * Sorts the elements from {@code fromIndex} (inclusive) to {@code toIndex} (exclusive), using
+   * the first {@code toIndex - fromIndex} elements of {@code scratch} as temporary space.
+   *
+   * @param signed whether to order the values as signed (true) or unsigned (false) longs
+   */
+  public static void sort(
+      LongArray array, long fromIndex, long toIndex, boolean signed, LongArray scratch) {
+    sort(array, fromIndex, toIndex, signed, scratch, 0);
+  }
+
+  /**
+   * Same as {@link #sort(LongArray, long, long, boolean, LongArray)}, but uses the elements of
+   * {@code scratch} starting at {@code scratchOffset}.
+   */
+  static void sort(
+      LongArray array, long fromIndex, long toIndex, boolean signed,
+      LongArray scratch, long scratchOffset) {
+    assert fromIndex >= 0 && fromIndex <= toIndex && toIndex <= array.size() : "invalid range";
+    sortRecords(array, fromIndex, toIndex - fromIndex, 1, signed, scratch, scratchOffset);
+  }
+
+  /**
+   * Sorts the key/value pairs from {@code fromPair} (inclusive) to {@code toPair} (exclusive) by
+   * key, using a scratch array allocated from {@code allocator} for the duration of the sort.
+   *
+   * @param signed whether to order the keys as signed (true) or unsigned (false) longs
+   */
+  public static void sortPairs(
+      LongArray array, long fromPair, long toPair, boolean signed, MemoryAllocator allocator) {
+    final long n = toPair - fromPair;
+    if (n <= 1) {
+      return;
+    }
+    final LongArray scratch = new LongArray(allocator.allocateUninitialized(n * 16));
+    try {
+      sortPairs(array, fromPair, toPair, signed, scratch);
+    } finally {
+      allocator.free(scratch.memoryBlock());
+    }
+  }
+
+  /**
+   * Sorts the key/value pairs from {@code fromPair} (inclusive) to {@code toPair} (exclusive) by
+   * key, using the first {@code 2 * (toPair - fromPair)} elements of {@code scratch} as temporary
+   * space.
+   *
+   * @param signed whether to order the keys as signed (true) or unsigned (false) longs
+   */
+  public static void sortPairs(
+      LongArray array, long fromPair, long toPair, boolean signed, LongArray scratch) {
+    assert fromPair >= 0 && fromPair <= toPair && toPair * 2 <= array.size() : "invalid range";
+    sortRecords(array, fromPair * 2, toPair - fromPair, 2, signed, scratch, 0);
+  }
+
+  /**
+   * Sorts the elements from {@code fromIndex} (inclusive) to {@code toIndex} (exclusive), using a
+   * scratch array allocated from {@code allocator} for the duration of the sort.
+   *
+   * @param signed whether to order the values as signed (true) or unsigned (false) ints
+   */
+  public static void sort(
+      IntArray array, long fromIndex, long toIndex, boolean signed, MemoryAllocator allocator) {
+    final long n = toIndex - fromIndex;
+    if (n <= 1) {
+      return;
+    }
+    // Rounded up to whole longs for the heap allocator.
+    final MemoryBlock block = allocator.allocateUninitialized((n * 4 + 7) & ~7L);
+    try {
+      sort(array, fromIndex, toIndex, signed, new IntArray(block), 0);
+    } finally {
+      allocator.free(block);
+    }
+  }
+
+  /**
+   * Sorts the elements from {@code fromIndex} (inclusive) to {@code toIndex} (exclusive), using
+   * the first {@code toIndex - fromIndex} elements of {@code scratch} as temporary space.
+   *
+   * @param signed whether to order the values as signed (true) or unsigned (false) ints
+   */
+  public static void sort(
+      IntArray array, long fromIndex, long toIndex, boolean signed, IntArray scratch) {
+    sort(array, fromIndex, toIndex, signed, scratch, 0);
+  }
+
+  /**
+   * Same as {@link #sort(IntArray, long, long, boolean, IntArray)}, but uses the elements of
+   * {@code scratch} starting at {@code scratchOffset}.
+   */
+  static void sort(
+      IntArray array, long fromIndex, long toIndex, boolean signed,
+      IntArray scratch, long scratchOffset) {
+    assert fromIndex >= 0 && fromIndex <= toIndex && toIndex <= array.size() : "invalid range";
+    final long n = toIndex - fromIndex;
+    if (n <= 1) {
+      return;
+    }
+    assert scratch.size() - scratchOffset >= n : "scratch array too small";
+    final long[][] counts = new long[4][256];
+    for (long i = fromIndex; i < toIndex; i++) {
+      final int key = array.get(i);
+      counts[0][key & 0xff]++;
+      counts[1][(key >>> 8) & 0xff]++;
+      counts[2][(key >>> 16) & 0xff]++;
+      counts[3][key >>> 24]++;
+    }
+    final int firstKey = array.get(fromIndex);
+
+    IntArray src = array;
+    long srcOffset = fromIndex;
+    IntArray dst = scratch;
+    long dstOffset = scratchOffset;
+    final long[] positions = new long[256];
+    for (int b = 0; b < 4; b++) {
+      final int shift = b * 8;
+      final long[] count = counts[b];
+      if (count[(firstKey >>> shift) & 0xff] == n) {
+        continue;
+      }
+      final int flip = signed && b == 3 ? 0x80 : 0;
+      long position = 0;
+      for (int i = 0; i < 256; i++) {
+        final int bucket = i ^ flip;
+        positions[bucket] = position;
+        position += count[bucket];
+      }
+      for (long i = 0; i < n; i++) {
+        final int key = src.get(srcOffset + i);
+        dst.set(dstOffset + positions[(key >>> shift) & 0xff]++, key);
+      }
+
+      final IntArray tmp = src;
+      src = dst;
+      dst = tmp;
+      final long tmpOffset = srcOffset;
+      srcOffset = dstOffset;
+      dstOffset = tmpOffset;
+    }
+
+    if (src != array || srcOffset != fromIndex) {
+      IntArray.copy(src, srcOffset, array, fromIndex, n);
+    }
+  }
+
+  /**
+   * Sorts {@code n} records of {@code stride} longs starting at {@code offset}, by their first
+   * long.
+   */
+  private static void sortRecords(
+      LongArray array, long offset, long n, int stride, boolean signed,
+      LongArray scratch, long scratchOffset) {
+    if (n <= 1) {
+      return;
+    }
+    assert scratch.size() - scratchOffset >= n * stride : "scratch array too small";
+    final long[][] counts = countBytes(array, offset, n, stride);
+    final long firstKey = array.get(offset);
+
+    LongArray src = array;
+    long srcOffset = offset;
+    LongArray dst = scratch;
+    long dstOffset = scratchOffset;
+    final long[] positions = new long[256];
+    for (int b = 0; b < 8; b++) {
+      final int shift = b * 8;
+      final long[] count = counts[b];
+      if (count[(int) (firstKey >>> shift) & 0xff] == n) {
+        // All keys have the same byte here, so this pass would not move anything.
+        continue;
+      }
+      // In signed order, the top byte of negative keys (0x80 to 0xff) sorts first.
+      final int flip = signed && b == 7 ? 0x80 : 0;
+      long position = 0;
+      for (int i = 0; i < 256; i++) {
+        final int bucket = i ^ flip;
+        positions[bucket] = position;
+        position += count[bucket];
+      }
+
+      if (stride == 1) {
+        for (long i = 0; i < n; i++) {
+          final long key = src.get(srcOffset + i);
+          dst.set(dstOffset + positions[(int) (key >>> shift) & 0xff]++, key);
+        }
+      } else {
+        for (long i = 0; i < n; i++) {
+          final long key = src.get(srcOffset + 2 * i);
+          final long target = dstOffset + 2 * positions[(int) (key >>> shift) & 0xff]++;
+          dst.set(target, key);
+          dst.set(target + 1, src.get(srcOffset + 2 * i + 1));
+        }
+      }
+
+      final LongArray tmp = src;
+      src = dst;
+      dst = tmp;
+      final long tmpOffset = srcOffset;
+      srcOffset = dstOffset;
+      dstOffset = tmpOffset;
+    }
+
+    if (src != array || srcOffset != offset) {
+      // An odd number of passes left the result in the scratch array.
+      LongArray.copy(src, srcOffset, array, offset, n * stride);
+    }
+  }
+
+  /**
+   * Returns the number of keys with each value of each byte: {@code counts[b][v]} is the number of
+   * keys whose byte {@code b} (0 being the least significant) is {@code v}.
+   */
+  private static long[][] countBytes(LongArray array, long offset, long n, int stride) {
+    final long[][] counts = new long[8][256];
+    final long end = offset + n * stride;
+    for (long i = offset; i < end; i += stride) {
+      final long key = array.get(i);
+      counts[0][(int) key & 0xff]++;
+      counts[1][(int) (key >>> 8) & 0xff]++;
+      counts[2][(int) (key >>> 16) & 0xff]++;
+      counts[3][(int) (key >>> 24) & 0xff]++;
+      counts[4][(int) (key >>> 32) & 0xff]++;
+      counts[5][(int) (key >>> 40) & 0xff]++;
+      counts[6][(int) (key >>> 48) & 0xff]++;
+      counts[7][(int) (key >>> 56) & 0xff]++;
+    }
+    return counts;
+  }
+}
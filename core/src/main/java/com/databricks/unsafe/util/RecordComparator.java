@@ -0,0 +1,31 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util;
+
+/**
+ * Compares two records stored in memory, each given by a base object (null for off-heap memory)
+ * and an offset from it, as used by {@link PrefixSorter}.
+ */
+public interface RecordComparator {
+
+  /**
+   * Returns a negative integer, zero, or a positive integer as the left record sorts before, the
+   * same as, or after the right record.
+   */
+  public int compare(
+      Object leftBaseObject, long leftBaseOffset, Object rightBaseObject, long rightBaseOffset);
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util.memory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.databricks.unsafe.util.PlatformDependent;
+
+/**
+ * A region-based {@link MemoryAllocator} for data structures that all die together, e.g. at the
+ * end of a task.
+ *
+ * Blocks are bump-allocated from large chunks obtained from a parent allocator. Freeing an
+ * individual block is a no-op; instead all chunks are returned to the parent at once by
+ * {@link #reset()} or {@link #close()}, which invalidates every block allocated from this arena.
+ * Blocks larger than a quarter of the chunk size get a dedicated chunk, so they don't waste the
+ * remainder of the current chunk. Chunks are obtained uninitialized, and only the blocks carved
+ * out of them are zeroed (unless allocated with {@link #allocateUninitialized(long)}).
+ *
+ * This allocator is not thread-safe. Use one arena per thread or task.
+ */
+public class ArenaMemoryAllocator implements MemoryAllocator, Closeable {
+
+  public static final long DEFAULT_CHUNK_SIZE = 4L * 1024 * 1024;
+
+  /** Blocks are aligned to this many bytes within a chunk. */
+  private static final long ALIGNMENT = 16;
+
+  private final MemoryAllocator parent;
+
+  private final long chunkSize;
+
+  private final List<MemoryBlock> chunks = new ArrayList<MemoryBlock>();
+
+  /** The chunk that small blocks are currently carved from, or null. */
+  private MemoryBlock current;
+
+  /** Offset of the first free byte in the current chunk. */
+  private long cursor;
+
+  /** Offset one past the last byte of the current chunk. */
+  private long limit;
+
+  /** Number of bytes handed out since the last reset. */
+  private long allocatedBytes;
+
+  private boolean closed = false;
+
+  /**
+   * Creates an arena that obtains {@link #DEFAULT_CHUNK_SIZE} chunks from
+   * {@link MemoryAllocator#UNSAFE}.
+   */
+  public ArenaMemoryAllocator() {
+    this(MemoryAllocator.UNSAFE, DEFAULT_CHUNK_SIZE);
+  }
+
+  public ArenaMemoryAllocator(MemoryAllocator parent, long chunkSize) {
+    if (chunkSize < ALIGNMENT || chunkSize % ALIGNMENT != 0) {
+      throw new IllegalArgumentException(
+        "chunkSize (" + chunkSize + ") should be a positive multiple of " + ALIGNMENT);
+    }
+    this.parent = parent;
+    this.chunkSize = chunkSize;
+  }
+
+  @Override
+  public MemoryBlock allocate(long size) throws OutOfMemoryError {
+    return allocate(size, ALIGNMENT, true);
+  }
+
+  @Override
+  public MemoryBlock allocateUninitialized(long size) throws OutOfMemoryError {
+    return allocate(size, ALIGNMENT, false);
+  }
+
+  /**
+   * Aligns the current position in the chunk. Blocks that would not fit into a chunk together with
+   * their alignment padding get a dedicated aligned chunk from the parent instead.
+   */
+  @Override
+  public MemoryBlock allocateAligned(long size, long alignment) throws OutOfMemoryError {
+    assert Long.bitCount(alignment) == 1 : "alignment (" + alignment + ") should be a power of 2";
+    return allocate(size, Math.max(alignment, ALIGNMENT), true);
+  }
+
+  private MemoryBlock allocate(long size, long alignment, boolean zero) throws OutOfMemoryError {
+    if (closed) {
+      throw new IllegalStateException("arena is closed");
+    }
+    final long alignedSize = (size + ALIGNMENT - 1) & -ALIGNMENT;
+    if (alignedSize + alignment - ALIGNMENT > chunkSize / 4) {
+      final MemoryBlock chunk;
+      if (alignment > ALIGNMENT) {
+        chunk = parent.allocateAligned(size, alignment);
+      } else {
+        chunk = zero ? parent.allocate(size) : parent.allocateUninitialized(size);
+      }
+      chunks.add(chunk);
+      allocatedBytes += size;
+      return chunk;
+    }
+    // Chunks are at least 16-byte aligned, so the cursor only moves for larger alignments.
+    long start = (cursor + alignment - 1) & -alignment;
+    if (current == null || start + alignedSize > limit) {
+      current = parent.allocateUninitialized(chunkSize);
+      chunks.add(current);
+      start = (current.offset + alignment - 1) & -alignment;
+      limit = current.offset + chunkSize;
+    }
+    final MemoryBlock block = new MemoryBlock(current.obj, start, size);
+    if (zero) {
+      PlatformDependent.UNSAFE.setMemory(block.obj, block.offset, size, (byte) 0);
+    }
+    cursor = start + alignedSize;
+    allocatedBytes += size;
+    return block;
+  }
+
+  /**
+   * Resizes the most recently allocated block of the current chunk in place if the chunk has room,
+   * and blocks with a dedicated chunk through the parent allocator. Shrinking always keeps the
+   * block in place; other blocks are copied, and their old memory is only released with the arena.
+   */
+  @Override
+  public MemoryBlock reallocate(MemoryBlock memory, long newSize) throws OutOfMemoryError {
+    if (closed) {
+      throw new IllegalStateException("arena is closed");
+    }
+    final long oldAlignedSize = (memory.length + ALIGNMENT - 1) & -ALIGNMENT;
+    final long newAlignedSize = (newSize + ALIGNMENT - 1) & -ALIGNMENT;
+    final boolean isLastBlock = current != null && memory.obj == current.obj &&
+      memory.offset + oldAlignedSize == cursor;
+    if (newSize <= memory.length ||
+        (isLastBlock && memory.offset + newAlignedSize <= limit)) {
+      final MemoryBlock block = new MemoryBlock(memory.obj, memory.offset, newSize);
+      MemoryAllocators.zeroTail(block, memory.length);
+      if (isLastBlock) {
+        cursor = memory.offset + newAlignedSize;
+      }
+      allocatedBytes += newSize - memory.length;
+      return block;
+    }
+    for (int i = chunks.size() - 1; i >= 0; i--) {
+      if (chunks.get(i) == memory) {
+        final MemoryBlock chunk = parent.reallocate(memory, newSize);
+        chunks.set(i, chunk);
+        allocatedBytes += newSize - memory.length;
+        return chunk;
+      }
+    }
+    return MemoryAllocators.reallocateByCopy(this, memory, newSize);
+  }
+
+  /**
+   * Does nothing. Memory is released by {@link #reset()} or {@link #close()}.
+   */
+  @Override
+  public void free(MemoryBlock memory) {
+    // Do nothing
+  }
+
+  /**
+   * Returns all chunks to the parent allocator. All blocks allocated from this arena become
+   * invalid, but the arena itself can be used again.
+   */
+  public void reset() {
+    for (MemoryBlock chunk : chunks) {
+      parent.free(chunk);
+    }
+    chunks.clear();
+    current = null;
+    cursor = 0;
+    limit = 0;
+    allocatedBytes = 0;
+  }
+
+  /**
+   * Returns all chunks to the parent allocator. The arena cannot be used afterwards.
+   */
+  @Override
+  public void close() {
+    reset();
+    closed = true;
+  }
+
+  /**
+   * Returns the number of bytes allocated from this arena since the last reset.
+   */
+  public long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+
+  /**
+   * Returns the number of chunks obtained from the parent allocator, for testing.
+   */
+  int numChunks() {
+    return chunks.size();
+  }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.databricks.unsafe.util.memory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A buddy-system {@link MemoryAllocator} for variable-size blocks, from {@code minBlockSize} bytes
+ * up to a whole slab.
+ *
+ * Requests are rounded up to a power of 2 and served out of large slabs obtained from the parent
+ * allocator. Each slab is a complete binary tree of blocks: the root is the whole slab, and the
+ * children of a block are its two halves (buddies). Allocating a block finds a free node at the
+ * block's depth, and freeing it merges it with its buddy whenever both are free, so allocation and
+ * free take O(log(slabSize / minBlockSize)) steps and external fragmentation stays bounded. The
+ * tree is stored as one byte per node, as in jemalloc's and Netty's buddy allocators: each node
+ * holds the smallest depth at which its subtree still has a free block.
+ *
+ * Blocks are aligned to their (rounded) size up to {@link MemoryAllocator#PAGE_SIZE}, since slabs
+ * are page-aligned. {@link #reallocate(MemoryBlock, long)} grows a block in place when its buddies
+ * are free, and shrinks it in place by releasing the unused halves. Requests larger than a slab go
+ * straight to the parent allocator. A slab is returned to the parent once it is empty, except for
+ * the last one.
+ *
+ * This allocator is thread-safe. All operations on the slabs are guarded by a single lock.
+ */
+public class BuddyMemoryAllocator implements MemoryAllocator {
+
+  public static final long DEFAULT_SLAB_SIZE = 64L * 1024 * 1024;
+
+  public static final long DEFAULT_MIN_BLOCK_SIZE = 64;
+
+  /**
+   * The tree of a slab is a {@code byte[]} of {@code 2^(maxDepth + 1)} nodes, whose length has to
+   * be a positive int.
+   */
+  static final int MAX_DEPTH = 29;
+
+  private final MemoryAllocator parent;
+
+  private final long slabSize;
+
+  private final long minBlockSize;
+
+  /** Depth of the smallest blocks, i.e. of the leaves of the tree. */
+  private final int maxDepth;
+
+  private final List<Slab> slabs = new ArrayList<Slab>();
+
+  /**
+   * Creates a buddy allocator with {@link #DEFAULT_SLAB_SIZE} slabs obtained from
+   * {@link MemoryAllocator#UNSAFE}, and {@link #DEFAULT_MIN_BLOCK_SIZE} byte blocks.
+   */
+  public BuddyMemoryAllocator() {
+    this(MemoryAllocator.UNSAFE, DEFAULT_SLAB_SIZE, DEFAULT_MIN_BLOCK_SIZE);
+  }
+
+  /**
+   * @param parent the allocator to obtain slabs and blocks larger than a slab from
+   * @param slabSize size of a slab, a power of 2
+   * @param minBlockSize size of the smallest block, a power of 2 of at least 8 bytes
+   */
+  public BuddyMemoryAllocator(MemoryAllocator parent, long slabSize, long minBlockSize) {
+    if (Long.bitCount(minBlockSize) != 1 || minBlockSize < 8) {
+      throw new IllegalArgumentException(
+        "minBlockSize (" + minBlockSize + ") should be a power of 2 >= 8");
+    }
+    if (Long.bitCount(slabSize) != 1 || slabSize < minBlockSize) {
+      throw new IllegalArgumentException(
+        "slabSize (" + slabSize + ") should be a power of 2 >= minBlockSize");
+    }
+    final int depth = Long.numberOfTrailingZeros(slabSize / minBlockSize);
+    if (depth > MAX_DEPTH) {
+      throw new IllegalArgumentException(
+        "slabSize / minBlockSize (" + (slabSize / minBlockSize) + ") should <= 2^" + MAX_DEPTH);
+    }
+    this.parent = parent;
+    this.slabSize = slabSize;
+    this.minBlockSize = minBlockSize;
+    this.maxDepth = depth;
+  }
+
+  @Override
+  public MemoryBlock allocate(long size) throws OutOfMemoryError {
+    if (size > slabSize) {
+      return parent.allocate(size);
+    }
+    final MemoryBlock block = allocate(size, depthOf(size));
+    block.fill((byte) 0);
+    return block;
+  }
+
+  @Override
+  public MemoryBlock allocateUninitialized(long size) throws OutOfMemoryError {
+    if (size > slabSize) {
+      return parent.allocateUninitialized(size);
+    }
+    return allocate(size, depthOf(size));
+  }
+
+  @Override
+  public MemoryBlock allocateAligned(long size, long alignment) throws OutOfMemoryError {
+    assert Long.bitCount(alignment) == 1 : "alignment (" + alignment + ") should be a power of 2";
+    if (size > slabSize || alignment > PAGE_SIZE || alignment > slabSize) {
+      return parent.allocateAligned(size, alignment);
+    }
+    final MemoryBlock block = allocate(size, depthOf(Math.max(size, alignment)));
+    block.fill((byte) 0);
+    return block;
+  }
+
+  /**
+   * Grows a block in place if its buddies up to the new size are free, and shrinks it in place if
+   * the new size fits. Otherwise the block is copied.
+   */
+  @Override
+  public MemoryBlock reallocate(MemoryBlock memory, long newSize) throws OutOfMemoryError {
+    if (memory instanceof BuddyMemoryBlock && newSize <= slabSize) {
+      final BuddyMemoryBlock block = (BuddyMemoryBlock) memory;
+      final int newDepth = depthOf(newSize);
+      final int resized;
+      synchronized (this) {
+        resized = block.slab.resize(block.node, newDepth);
+      }
+      if (resized > 0) {
+        final MemoryBlock result = new BuddyMemoryBlock(
+          block.obj, block.offset, newSize, block.slab, resized);
+        MemoryAllocators.zeroTail(result, block.length);
+        return result;
+      }
+    } else if (!(memory instanceof BuddyMemoryBlock) && newSize > slabSize) {
+      return parent.reallocate(memory, newSize);
+    }
+    return MemoryAllocators.reallocateByCopy(this, memory, newSize);
+  }
+
+  @Override
+  public void free(MemoryBlock memory) {
+    if (memory instanceof BuddyMemoryBlock) {
+      final BuddyMemoryBlock block = (BuddyMemoryBlock) memory;
+      assert block.slab.allocator == this : "block was not allocated by this allocator";
+      MemoryBlock emptySlab = null;
+      synchronized (this) {
+        block.slab.free(block.node);
+        if (block.slab.isEmpty() && slabs.size() > 1) {
+          slabs.remove(block.slab);
+          emptySlab = block.slab.memory;
+        }
+      }
+      if (emptySlab != null) {
+        parent.free(emptySlab);
+      }
+    } else {
+      parent.free(memory);
+    }
+  }
+
+  /**
+   * Returns the number of slabs currently held by this allocator, for testing.
+   */
+  synchronized int numSlabs() {
+    return slabs.size();
+  }
+
+  /**
+   * Returns the depth of the smallest block that can hold {@code size} bytes.
+   */
+  private int depthOf(long size) {
+    if (size <= minBlockSize) {
+      return maxDepth;
+    }
+    final int log2 = 64 - Long.numberOfLeadingZeros(size - 1);
+    return Long.numberOfTrailingZeros(slabSize) - log2;
+  }
+
+  private MemoryBlock allocate(long size, int depth) {
+    Slab slab = null;
+    int node = -1;
+    synchronized (this) {
+      for (int i = 0; i < slabs.size() && node < 0; i++) {
+        slab = slabs.get(i);
+        node = slab.allocate(depth);
+      }
+      if (node < 0) {
+        slab = new Slab(this, parent.allocateAligned(slabSize, PAGE_SIZE), maxDepth);
+        slabs.add(slab);
+        node = slab.allocate(depth);
+      }
+    }
+    return new BuddyMemoryBlock(
+      slab.memory.obj, slab.memory.offset + slab.offsetOf(node), size, slab, node);
+  }
+
+  /**
+   * A block allocated out of a slab, which remembers its node in the slab's tree.
+   */
+  private static final class BuddyMemoryBlock extends MemoryBlock {
+    final Slab slab;
+    final int node;
+
+    BuddyMemoryBlock(Object obj, long offset, long length, Slab slab, int node) {
+      super(obj, offset, length);
+      this.slab = slab;
+      this.node = node;
+    }
+  }
+
+  /**
+   * A slab and the binary tree of its blocks. Node 1 is the root, and the children of node
+   * {@code n} are {@code 2n} and {@code 2n + 1}, so the depth of a node is the index of its highest
+   * bit. {@code tree[n]} is the smallest depth at which the subtree of node {@code n} has a free
+   * block: it equals the node's own depth if the whole subtree is free, and {@code unusable} if
+   * the subtree has no free block at all. Not thread-safe.
+   */
+  private static final class Slab {
+    final BuddyMemoryAllocator allocator;
+    final MemoryBlock memory;
+    private final int maxDepth;
+    private final byte unusable;
+    private final byte[] tree;
+
+    Slab(BuddyMemoryAllocator allocator, MemoryBlock memory, int maxDepth) {
+      this.allocator = allocator;
+      this.memory = memory;
+      this.maxDepth = maxDepth;
+      this.unusable = (byte) (maxDepth + 1);
+      this.tree = new byte[2 << maxDepth];
+      for (int node = 1; node < tree.length; node++) {
+        tree[node] = (byte) depth(node);
+      }
+    }
+
+    private static int depth(int node) {
+      return 31 - Integer.numberOfLeadingZeros(node);
+    }
+
+    /** Returns the offset of the node's block from the start of the slab. */
+    long offsetOf(int node) {
+      final int depth = depth(node);
+      return (long) (node - (1 << depth)) * (memory.length >> depth);
+    }
+
+    boolean isEmpty() {
+      return tree[1] == 0;
+    }
+
+    /**
+     * Allocates a free node at the given depth and returns it, or returns -1 if there is none.
+     */
+    int allocate(int depth) {
+      if (tree[1] > depth) {
+        return -1;
+      }
+      int node = 1;
+      for (int d = 0; d < depth; d++) {
+        // One of the children has a free block at the requested depth; prefer the left one.
+        node <<= 1;
+        if (tree[node] > depth) {
+          node ^= 1;
+        }
+      }
+      assert tree[node] == depth;
+      tree[node] = unusable;
+      updateParents(node);
+      return node;
+    }
+
+    void free(int node) {
+      assert tree[node] == unusable : "block freed twice";
+      tree[node] = (byte) depth(node);
+      updateParents(node);
+    }
+
+    /**
+     * Resizes an allocated node to a block at {@code newDepth} that starts at the same offset, and
+     * returns the new node, or returns -1 if this is not possible because a buddy is in use.
+     */
+    int resize(int node, int newDepth) {
+      final int depth = depth(node);
+      if (newDepth == depth) {
+        return node;
+      }
+      if (newDepth > depth) {
+        // Shrink: allocate the leftmost descendant, which frees the rest of the subtree. The
+        // subtree of an allocated node is untouched since it was free, so it is all free.
+        final int newNode = node << (newDepth - depth);
+        tree[newNode] = unusable;
+        updateParents(newNode);
+        return newNode;
+      }
+      // Grow: only possible if the node is the left half of each block up to the new depth, and
+      // the right halves are free.
+      int n = node;
+      for (int d = depth; d > newDepth; d--) {
+        if ((n & 1) != 0 || tree[n + 1] != d) {
+          return -1;
+        }
+        n >>= 1;
+      }
+      // Mark the subtree of the new node as free (it will not be reached while the new node is
+      // allocated), then allocate the new node.
+      for (int m = node, d = depth; d > newDepth; m >>= 1, d--) {
+        tree[m] = (byte) d;
+      }
+      tree[n] = unusable;
+      updateParents(n);
+      return n;
+    }
+
+    /** Recomputes the values of the ancestors of a node after it changed. */
+    private void updateParents(int node) {
+      int d = depth(node);
+      while (node > 1) {
+        final int parent = node >> 1;
+        final byte left = tree[node & ~1];
+        final byte right = tree[node | 1];
+        // Two free buddies merge into one free parent block.
+        if (left == d && right == d) {
+          tree[parent] = (byte) (d - 1);
+        } else {
+          tree[parent] = left < right ? left : right;
+        }
+        node = parent;
+        d--;
+      }
+    }
+  }
+}
@@ -16,17 +16,121 @@
 
 package com.databricks.unsafe.util.memory;
 
+import java.util.Arrays;
+
+import com.databricks.unsafe.util.PlatformDependent;
+
 /**
  * A simple {@link MemoryAllocator} that can allocate up to 16GB using a JVM long primitive array.
+ * Larger blocks can be allocated with {@link #allocateSegmented(long)}, which spreads them over
+ * several arrays.
  */
 public class HeapMemoryAllocator implements MemoryAllocator {
 
+  /**
+   * Largest block that fits into a single array. Some JVMs reserve a few header words in arrays,
+   * so arrays can't quite have {@code Integer.MAX_VALUE} elements.
+   */
+  public static final long MAX_ARRAY_BLOCK_SIZE = (Integer.MAX_VALUE - 8) * 8L;
+
+  /** Segments of 1GB keep the number of segments small while being easy for the GC to place. */
+  public static final int DEFAULT_SEGMENT_SHIFT = 30;
+
+  /**
+   * @throws OutOfMemoryError if the block would be larger than {@link #MAX_ARRAY_BLOCK_SIZE}
+   */
   @Override
   public MemoryBlock allocate(long size) throws OutOfMemoryError {
+    if (size > MAX_ARRAY_BLOCK_SIZE) {
+      throw new OutOfMemoryError("Cannot allocate " + size + " bytes in a single array " +
+        "(the maximum is " + MAX_ARRAY_BLOCK_SIZE + "); use allocateSegmented instead");
+    }
     long[] array = new long[(int) (size / 8)];
     return MemoryBlock.fromLongArray(array);
   }
 
+  /**
+   * Allocates a {@link SegmentedMemoryBlock} of {@code size} bytes made of 1GB arrays, which is
+   * not limited in size by the maximum length of a JVM array.
+   */
+  public SegmentedMemoryBlock allocateSegmented(long size) throws OutOfMemoryError {
+    return allocateSegmented(size, DEFAULT_SEGMENT_SHIFT);
+  }
+
+  /**
+   * Allocates a {@link SegmentedMemoryBlock} of {@code size} bytes made of arrays of
+   * {@code 2^segmentShift} bytes each.
+   */
+  public SegmentedMemoryBlock allocateSegmented(long size, int segmentShift)
+      throws OutOfMemoryError {
+    if (segmentShift < 3 || segmentShift > 33) {
+      throw new IllegalArgumentException(
+        "segmentShift (" + segmentShift + ") should be in [3, 33]");
+    }
+    return resizeSegments(new long[0][], segmentShift, size);
+  }
+
+  /**
+   * Same as {@link #allocate(long)}, since the JVM always zeroes newly allocated arrays.
+   */
+  @Override
+  public MemoryBlock allocateUninitialized(long size) throws OutOfMemoryError {
+    return allocate(size);
+  }
+
+  /**
+   * Same as {@link #allocate(long)}. The garbage collector may move in-heap memory, so its address
+   * cannot be aligned; offsets from the base object are aligned to 8 bytes.
+   */
+  @Override
+  public MemoryBlock allocateAligned(long size, long alignment) throws OutOfMemoryError {
+    return allocate(size);
+  }
+
+  /**
+   * Copies the backing array with {@link Arrays#copyOf(long[], int)}, which zeroes the new tail.
+   */
+  @Override
+  public MemoryBlock reallocate(MemoryBlock memory, long newSize) throws OutOfMemoryError {
+    if (memory instanceof SegmentedMemoryBlock) {
+      // Only the last segment is copied, the others are shared with the new block.
+      final SegmentedMemoryBlock block = (SegmentedMemoryBlock) memory;
+      return resizeSegments(block.getSegments(), block.getSegmentShift(), newSize);
+    }
+    if (newSize > MAX_ARRAY_BLOCK_SIZE) {
+      final MemoryBlock block = allocateSegmented(newSize);
+      MemoryBlock.copy(memory, 0, block, 0, Math.min(memory.length, block.length));
+      return block;
+    }
+    if (memory.obj instanceof long[] && memory.offset == PlatformDependent.LONG_ARRAY_OFFSET &&
+        memory.length == ((long[]) memory.obj).length * 8L) {
+      long[] array = Arrays.copyOf((long[]) memory.obj, (int) (newSize / 8));
+      return MemoryBlock.fromLongArray(array);
+    }
+    return MemoryAllocators.reallocateByCopy(this, memory, newSize);
+  }
+
+  /**
+   * Returns a segmented block of {@code size} bytes that reuses the given segments. All segments
+   * but the last are full, so only the last one may have to be copied.
+   */
+  private static SegmentedMemoryBlock resizeSegments(
+      long[][] oldSegments, int segmentShift, long size) {
+    final long words = size / 8;
+    final long wordsPerSegment = 1L << (segmentShift - 3);
+    final int numSegments = (int) Math.max(1, (words + wordsPerSegment - 1) / wordsPerSegment);
+    final long[][] segments = Arrays.copyOf(oldSegments, numSegments);
+    for (int i = 0; i < numSegments; i++) {
+      final int segmentWords = (int) Math.min(wordsPerSegment, words - i * wordsPerSegment);
+      if (segments[i] == null) {
+        segments[i] = new long[segmentWords];
+      } else if (segments[i].length != segmentWords) {
+        segments[i] = Arrays.copyOf(segments[i], segmentWords);
+      }
+    }
+    return new SegmentedMemoryBlock(segments, segmentShift, words * 8);
+  }
+
   @Override
   public void free(MemoryBlock memory) {
     // Do nothing
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.databricks.unsafe.util.memory;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * A {@link MemoryAllocator} that wraps another allocator and records how much memory is allocated
+ * through it: live and peak bytes, allocation and free counts, a histogram of allocation sizes and
+ * the time spent in zeroing allocations. For example, to track all off-heap memory of a component:
+ *
+ * <pre>
+ *   InstrumentedMemoryAllocator allocator =
+ *     new InstrumentedMemoryAllocator(MemoryAllocator.UNSAFE);
+ *   allocator.register("shuffle");
+ * </pre>
+ *
+ * Metrics are kept in {@link StripedCounters}, so threads allocating concurrently rarely update
+ * the same cache line. Reading a metric is comparatively expensive. The peak is only sampled every
+ * {@value #PEAK_SAMPLE_INTERVAL} allocations per stripe, on large allocations and when it is read,
+ * so short spikes between samples may be missed.
+ *
+ * The zeroing time is the time spent in the underlying allocator's {@link #allocate(long)}, which
+ * includes the allocation itself, since only the underlying allocator knows how to zero its blocks
+ * cheaply: e.g. fresh regions of a mapped file are already zero, and zeroing them here would fault
+ * them in. Blocks allocated by {@link #allocateAligned(long, long)} and the grown part of
+ * reallocated blocks are zeroed too, but not timed.
+ *
+ * This allocator is thread-safe if the underlying allocator is.
+ */
+public class InstrumentedMemoryAllocator implements MemoryAllocator, MemoryAllocatorMXBean {
+
+  /** Number of allocations per stripe between two samples of the peak. */
+  static final int PEAK_SAMPLE_INTERVAL = 64;
+
+  /** Allocations of at least this many bytes always sample the peak. */
+  private static final long PEAK_SAMPLE_SIZE = 1024 * 1024;
+
+  private static final int HISTOGRAM_SIZE = 64;
+
+  // Counter indices.
+  private static final int LIVE_BYTES = 0;
+  private static final int ALLOCATED_BYTES = 1;
+  private static final int ALLOCATION_COUNT = 2;
+  private static final int FREE_COUNT = 3;
+  private static final int ZEROING_TIME = 4;
+  private static final int HISTOGRAM = 5;
+
+  private final MemoryAllocator allocator;
+
+  private final StripedCounters counters = new StripedCounters(HISTOGRAM + HISTOGRAM_SIZE);
+
+  private final AtomicLong peakBytes = new AtomicLong();
+
+  public InstrumentedMemoryAllocator(MemoryAllocator allocator) {
+    this.allocator = allocator;
+  }
+
+  @Override
+  public MemoryBlock allocate(long size) throws OutOfMemoryError {
+    final long start = System.nanoTime();
+    final MemoryBlock block = allocator.allocate(size);
+    counters.add(ZEROING_TIME, System.nanoTime() - start);
+    recordAllocation(block.length);
+    return block;
+  }
+
+  @Override
+  public MemoryBlock allocateUninitialized(long size) throws OutOfMemoryError {
+    final MemoryBlock block = allocator.allocateUninitialized(size);
+    recordAllocation(block.length);
+    return block;
+  }
+
+  @Override
+  public MemoryBlock allocateAligned(long size, long alignment) throws OutOfMemoryError {
+    final MemoryBlock block = allocator.allocateAligned(size, alignment);
+    recordAllocation(block.length);
+    return block;
+  }
+
+  /**
+   * Records the size difference in the live and allocated bytes, but not as an allocation.
+   */
+  @Override
+  public MemoryBlock reallocate(MemoryBlock memory, long newSize) throws OutOfMemoryError {
+    final long oldSize = memory.length;
+    final MemoryBlock block = allocator.reallocate(memory, newSize);
+    final long delta = block.length - oldSize;
+    counters.add(LIVE_BYTES, delta);
+    if (delta > 0) {
+      counters.add(ALLOCATED_BYTES, delta);
+      if (delta >= PEAK_SAMPLE_SIZE) {
+        updatePeakBytes();
+      }
+    }
+    return block;
+  }
+
+  @Override
+  public void free(MemoryBlock memory) {
+    final long size = memory.length;
+    allocator.free(memory);
+    counters.add(LIVE_BYTES, -size);
+    counters.add(FREE_COUNT, 1);
+  }
+
+  private void recordAllocation(long size) {
+    counters.add(LIVE_BYTES, size);
+    counters.add(ALLOCATED_BYTES, size);
+    counters.add(HISTOGRAM + histogramBucket(size), 1);
+    final long count = counters.add(ALLOCATION_COUNT, 1);
+    if (count % PEAK_SAMPLE_INTERVAL == 0 || size >= PEAK_SAMPLE_SIZE) {
+      updatePeakBytes();
+    }
+  }
+
+  private void updatePeakBytes() {
+    final long live = counters.sum(LIVE_BYTES);
+    long peak = peakBytes.get();
+    while (live > peak && !peakBytes.compareAndSet(peak, live)) {
+      peak = peakBytes.get();
+    }
+  }
+
+  /**
+   * Returns the index of the histogram bucket that counts allocations of {@code size} bytes.
+   */
+  static int histogramBucket(long size) {
+    return size <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(size - 1);
+  }
+
+  @Override
+  public long getLiveBytes() {
+    return counters.sum(LIVE_BYTES);
+  }
+
+  @Override
+  public long getPeakBytes() {
+    updatePeakBytes();
+    return peakBytes.get();
+  }
+
+  @Override
+  public long getAllocatedBytes() {
+    return counters.sum(ALLOCATED_BYTES);
+  }
+
+  @Override
+  public long getAllocationCount() {
+    return counters.sum(ALLOCATION_COUNT);
+  }
+
+  @Override
+  public long getFreeCount() {
+    return counters.sum(FREE_COUNT);
+  }
+
+  @Override
+  public long getZeroingTimeNanos() {
+    return counters.sum(ZEROING_TIME);
+  }
+
+  @Override
+  public long[] getSizeHistogram() {
+    final long[] histogram = new long[HISTOGRAM_SIZE];
+    for (int i = 0; i < HISTOGRAM_SIZE; i++) {
+      histogram[i] = counters.sum(HISTOGRAM + i);
+    }
+    return histogram;
+  }
+
+  @Override
+  public void resetPeakBytes() {
+    peakBytes.set(counters.sum(LIVE_BYTES));
+  }
+
+  /**
+   * Registers this allocator with the platform MBean server under
+   * {@code com.databricks.unsafe:type=MemoryAllocator,name=<name>}, and returns the object name.
+   */
+  public ObjectName register(String name) throws JMException {
+    final ObjectName objectName =
+      new ObjectName("com.databricks.unsafe:type=MemoryAllocator,name=" + ObjectName.quote(name));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    return objectName;
+  }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util.memory;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.databricks.unsafe.util.thread.FastThreadLocal;
+
+/**
+ * A debugging {@link MemoryAllocator} wrapper that detects leaked and double freed blocks.
+ *
+ * For a sampled fraction of allocations, the allocation site is recorded and the block is watched
+ * through a {@link PhantomReference}. If a sampled block is garbage collected without having been
+ * freed, the leak and its allocation site are logged the next time this allocator allocates (or
+ * when {@link #reportLeaks()} is called). Freeing a sampled block twice throws an
+ * {@link IllegalStateException} carrying both the allocation and the first free site, instead of
+ * corrupting the underlying allocator.
+ *
+ * Optionally, freed memory is overwritten with {@link #POISON} so that reads after a free produce
+ * recognizable garbage rather than plausible data. Poisoning applies to every block, not just the
+ * sampled ones, and is most useful in front of pooling allocators, which keep freed memory mapped.
+ *
+ * Unsampled blocks are passed through untouched, so the overhead is proportional to the sampling
+ * rate (plus the cost of poisoning, if enabled). Sampled blocks are returned as new blocks over the
+ * same memory, so that they can be watched independently of the underlying allocator.
+ * {@link SegmentedMemoryBlock}s stay segmented; since they cannot be recognized by their class,
+ * freeing a segmented block looks its tracker up in a map.
+ */
+public class LeakDetectingMemoryAllocator implements MemoryAllocator {
+
+  private static final Logger logger = LoggerFactory.getLogger(LeakDetectingMemoryAllocator.class);
+
+  /** Byte pattern written into freed memory when poisoning is enabled. */
+  public static final byte POISON = (byte) 0xDE;
+
+  private final MemoryAllocator allocator;
+
+  private final double sampleRate;
+
+  private final boolean poisonFreedMemory;
+
+  private final ReferenceQueue<MemoryBlock> refQueue = new ReferenceQueue<MemoryBlock>();
+
+  /** Keeps the trackers of sampled blocks reachable until the blocks are freed or reported. */
+  private final Set<Tracker> liveTrackers =
+    Collections.newSetFromMap(new ConcurrentHashMap<Tracker, Boolean>());
+
+  /**
+   * Trackers of sampled segmented blocks, by returned block. The keys are weak so that leaked
+   * blocks can still be collected, and an entry is kept after a free to detect double frees.
+   * Guarded by itself.
+   */
+  private final Map<MemoryBlock, Tracker> segmentedTrackers =
+    new WeakHashMap<MemoryBlock, Tracker>();
+
+  private final AtomicLong numLeaks = new AtomicLong();
+
+  /** Per-thread number of allocations to skip before the next sampled allocation. */
+  private final FastThreadLocal<Sampler> sampler = new FastThreadLocal<Sampler>() {
+    @Override
+    protected Sampler initialValue() {
+      return new Sampler();
+    }
+  };
+
+  /**
+   * Creates a leak detector that tracks every block and poisons freed memory.
+   */
+  public LeakDetectingMemoryAllocator(MemoryAllocator allocator) {
+    this(allocator, 1.0, true);
+  }
+
+  /**
+   * @param allocator the allocator to wrap
+   * @param sampleRate fraction of allocations to track, between 0 and 1
+   * @param poisonFreedMemory whether to overwrite freed memory with {@link #POISON}
+   */
+  public LeakDetectingMemoryAllocator(
+      MemoryAllocator allocator, double sampleRate, boolean poisonFreedMemory) {
+    if (sampleRate < 0 || sampleRate > 1) {
+      throw new IllegalArgumentException("sampleRate (" + sampleRate + ") should be in [0, 1]");
+    }
+    this.allocator = allocator;
+    this.sampleRate = sampleRate;
+    this.poisonFreedMemory = poisonFreedMemory;
+  }
+
+  @Override
+  public MemoryBlock allocate(long size) throws OutOfMemoryError {
+    reportLeaks();
+    return track(allocator.allocate(size));
+  }
+
+  @Override
+  public MemoryBlock allocateUninitialized(long size) throws OutOfMemoryError {
+    reportLeaks();
+    return track(allocator.allocateUninitialized(size));
+  }
+
+  @Override
+  public MemoryBlock allocateAligned(long size, long alignment) throws OutOfMemoryError {
+    reportLeaks();
+    return track(allocator.allocateAligned(size, alignment));
+  }
+
+  private MemoryBlock track(MemoryBlock block) {
+    if (sampleRate == 0 || !sampler.get().sample()) {
+      return block;
+    }
+    if (block instanceof SegmentedMemoryBlock) {
+      final SegmentedMemoryBlock segmented = (SegmentedMemoryBlock) block;
+      final SegmentedMemoryBlock tracked = new SegmentedMemoryBlock(segmented.getSegmentObjects(),
+        segmented.getSegmentOffsets(), segmented.getSegmentShift(), segmented.size());
+      final Tracker tracker = new Tracker(tracked, block, refQueue);
+      liveTrackers.add(tracker);
+      synchronized (segmentedTrackers) {
+        segmentedTrackers.put(tracked, tracker);
+      }
+      return tracked;
+    }
+    final TrackedMemoryBlock tracked = new TrackedMemoryBlock(block);
+    tracked.tracker = new Tracker(tracked, block, refQueue);
+    liveTrackers.add(tracked.tracker);
+    return tracked;
+  }
+
+  /**
+   * Returns the tracker of a sampled block, or null if the block was not sampled.
+   */
+  private Tracker trackerOf(MemoryBlock memory) {
+    if (memory instanceof TrackedMemoryBlock) {
+      return ((TrackedMemoryBlock) memory).tracker;
+    }
+    if (memory instanceof SegmentedMemoryBlock && sampleRate > 0) {
+      synchronized (segmentedTrackers) {
+        return segmentedTrackers.get(memory);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Reallocating a block counts as freeing it, so reallocating a freed block or freeing a block
+   * that has been reallocated is reported as a double free. The new block is sampled afresh.
+   */
+  @Override
+  public MemoryBlock reallocate(MemoryBlock memory, long newSize) throws OutOfMemoryError {
+    reportLeaks();
+    final Tracker tracker = trackerOf(memory);
+    if (tracker == null) {
+      return track(allocator.reallocate(memory, newSize));
+    }
+    markFreed(tracker, "Reallocated here");
+    final MemoryBlock block;
+    try {
+      block = allocator.reallocate(tracker.block, newSize);
+    } catch (OutOfMemoryError e) {
+      // The old block is still valid.
+      synchronized (tracker) {
+        tracker.freeSite = null;
+      }
+      throw e;
+    }
+    liveTrackers.remove(tracker);
+    tracker.clear();
+    return track(block);
+  }
+
+  @Override
+  public void free(MemoryBlock memory) {
+    MemoryBlock block = memory;
+    final Tracker tracker = trackerOf(memory);
+    if (tracker != null) {
+      markFreed(tracker, "Freed here");
+      liveTrackers.remove(tracker);
+      tracker.clear();
+      block = tracker.block;
+    }
+    if (poisonFreedMemory) {
+      block.fill(POISON);
+    }
+    allocator.free(block);
+  }
+
+  /**
+   * Records where the block was freed, or throws if it has already been freed.
+   */
+  private static void markFreed(Tracker tracker, String reason) {
+    synchronized (tracker) {
+      if (tracker.freeSite != null) {
+        final IllegalStateException e = new IllegalStateException(
+          "Double free of a " + tracker.size + " byte block. It was first freed at: " +
+          stackTraceToString(tracker.freeSite));
+        e.initCause(tracker.allocationSite);
+        throw e;
+      }
+      tracker.freeSite = new Throwable(reason);
+    }
+  }
+
+  /**
+   * Logs the sampled blocks that have been garbage collected without being freed since the last
+   * call, and returns how many there were.
+   */
+  public long reportLeaks() {
+    long count = 0;
+    Tracker tracker;
+    while ((tracker = (Tracker) refQueue.poll()) != null) {
+      if (liveTrackers.remove(tracker)) {
+        count++;
+        logger.error("LEAK: a " + tracker.size + " byte block was garbage collected without " +
+          "being freed. Allocated at:", tracker.allocationSite);
+      }
+    }
+    numLeaks.addAndGet(count);
+    return count;
+  }
+
+  /**
+   * Returns the total number of leaks reported so far.
+   */
+  public long getNumLeaks() {
+    return numLeaks.get();
+  }
+
+  private static String stackTraceToString(Throwable t) {
+    final StringBuilder sb = new StringBuilder();
+    for (StackTraceElement element : t.getStackTrace()) {
+      sb.append("\n\tat ").append(element);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * A sampled contiguous block, which wraps the block returned by the underlying allocator so that
+   * it can be recognized on free without a lookup.
+   */
+  private static final class TrackedMemoryBlock extends MemoryBlock {
+    Tracker tracker;
+
+    TrackedMemoryBlock(MemoryBlock block) {
+      super(block.obj, block.offset, block.length);
+    }
+  }
+
+  /**
+   * Records where a sampled block was allocated, and is enqueued once the block is unreachable.
+   */
+  private static final class Tracker extends PhantomReference<MemoryBlock> {
+    /** The block returned by the underlying allocator. */
+    final MemoryBlock block;
+    final long size;
+    final Throwable allocationSite;
+
+    /** Where the block was freed, or null if it has not been freed. Guarded by this. */
+    Throwable freeSite;
+
+    Tracker(MemoryBlock tracked, MemoryBlock block, ReferenceQueue<MemoryBlock> queue) {
+      super(tracked, queue);
+      this.block = block;
+      this.size = block.size();
+      this.allocationSite = new Throwable("Allocated here");
+    }
+  }
+
+  /**
+   * Decides which allocations to sample, with geometrically distributed gaps so that every
+   * allocation is equally likely to be sampled regardless of allocation patterns.
+   */
+  private final class Sampler {
+    private final Random random = new Random();
+    private long skip = nextSkip();
+
+    boolean sample() {
+      if (skip-- > 0) {
+        return false;
+      }
+      skip = nextSkip();
+      return true;
+    }
+
+    private long nextSkip() {
+      if (sampleRate >= 1.0) {
+        return 0;
+      }
+      return (long) (Math.log(1.0 - random.nextDouble()) / Math.log(1.0 - sampleRate));
+    }
+  }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util.memory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.databricks.unsafe.util.PlatformDependent;
+
+/**
+ * A {@link MemoryAllocator} that returns off-heap blocks backed by a memory-mapped file, so data
+ * structures larger than physical memory are paged to disk through the OS page cache.
+ *
+ * Every block is mapped from its own region of the file. {@link FileChannel#map} cannot map more
+ * than 2GB at once, so blocks larger than a chunk ({@code 2^}{@link #DEFAULT_CHUNK_SHIFT} bytes by
+ * default) are mapped as several consecutive chunks and returned as a
+ * {@link SegmentedMemoryBlock}, which the array classes address with 64-bit indexes like in-heap
+ * segmented blocks. Blocks are unmapped as soon as they are freed, and their file regions are
+ * reused for later allocations of the same or smaller size. Blocks that are reallocated stay in
+ * place in the file when their region is large enough or at the end of the file.
+ *
+ * The file's existing content is discarded. Closing the allocator unmaps all blocks, and deletes
+ * the file if it was a temporary file created by this allocator.
+ *
+ * This allocator is thread-safe.
+ */
+public class MappedFileMemoryAllocator implements MemoryAllocator, Closeable {
+
+  /** Chunks of 1GB keep the number of mappings small while staying below the 2GB limit. */
+  public static final int DEFAULT_CHUNK_SHIFT = 30;
+
+  /** File regions are aligned to the OS page size. */
+  private static final long REGION_ALIGNMENT = 4096;
+
+  private final File file;
+
+  private final boolean deleteOnClose;
+
+  private final RandomAccessFile raf;
+
+  private final FileChannel channel;
+
+  private final int chunkShift;
+
+  private final long chunkSize;
+
+  /** Size of the part of the file that is in use or in {@code freeRegions}. */
+  private long fileSize;
+
+  /** Freed regions by size, which are reused for allocations of the same or smaller size. */
+  private final TreeMap<Long, List<Long>> freeRegions = new TreeMap<Long, List<Long>>();
+
+  /** The mapping of every block that has not been freed. */
+  private final Map<MemoryBlock, Mapping> liveBlocks = new IdentityHashMap<MemoryBlock, Mapping>();
+
+  private boolean closed = false;
+
+  /**
+   * Creates an allocator backed by a temporary file, which is deleted on {@link #close()}.
+   */
+  public MappedFileMemoryAllocator() throws IOException {
+    this(File.createTempFile("unsafe-mmap-", ".bin"), true, DEFAULT_CHUNK_SHIFT);
+  }
+
+  /**
+   * Creates an allocator backed by the given file. The file is kept on {@link #close()}.
+   */
+  public MappedFileMemoryAllocator(File file) throws IOException {
+    this(file, false, DEFAULT_CHUNK_SHIFT);
+  }
+
+  /**
+   * Creates an allocator that maps blocks larger than {@code 2^chunkShift} bytes in chunks of
+   * that size. Smaller chunks are only useful for testing.
+   */
+  MappedFileMemoryAllocator(File file, boolean deleteOnClose, int chunkShift) throws IOException {
+    if (chunkShift < 12 || chunkShift > 30) {
+      throw new IllegalArgumentException("chunkShift (" + chunkShift + ") should be in [12, 30]");
+    }
+    this.file = file;
+    this.deleteOnClose = deleteOnClose;
+    this.chunkShift = chunkShift;
+    this.chunkSize = 1L << chunkShift;
+    this.raf = new RandomAccessFile(file, "rw");
+    this.raf.setLength(0);
+    this.channel = raf.getChannel();
+  }
+
+  /**
+   * Returns the file backing this allocator.
+   */
+  public File getFile() {
+    return file;
+  }
+
+  @Override
+  public MemoryBlock allocate(long size) throws OutOfMemoryError {
+    return allocate(size, REGION_ALIGNMENT, true);
+  }
+
+  @Override
+  public MemoryBlock allocateUninitialized(long size) throws OutOfMemoryError {
+    return allocate(size, REGION_ALIGNMENT, false);
+  }
+
+  /**
+   * Blocks always start on an OS page. Larger alignments are satisfied by mapping a larger region
+   * and starting the block at the first aligned address inside it, which is only supported for
+   * blocks that fit in a single chunk.
+   */
+  @Override
+  public MemoryBlock allocateAligned(long size, long alignment) throws OutOfMemoryError {
+    assert Long.bitCount(alignment) == 1 : "alignment (" + alignment + ") should be a power of 2";
+    return allocate(size, Math.max(alignment, REGION_ALIGNMENT), true);
+  }
+
+  private synchronized MemoryBlock allocate(
+      long size, long alignment, boolean zero) throws OutOfMemoryError {
+    if (closed) {
+      throw new IllegalStateException("allocator is closed");
+    }
+
+    // Mappings start on an OS page, so only alignments beyond that need extra room.
+    final long mappedSize = size + alignment - REGION_ALIGNMENT;
+    if (alignment > REGION_ALIGNMENT && mappedSize > chunkSize) {
+      throw new IllegalArgumentException("alignment (" + alignment + ") is only supported for " +
+        "blocks of up to " + (chunkSize - alignment + REGION_ALIGNMENT) + " bytes");
+    }
+    final long regionSize =
+      Math.max(REGION_ALIGNMENT, (mappedSize + REGION_ALIGNMENT - 1) & -REGION_ALIGNMENT);
+    final long regionOffset;
+    final long mappedRegionSize;
+    final boolean dirty;
+    final Map.Entry<Long, List<Long>> free = freeRegions.ceilingEntry(regionSize);
+    if (free != null) {
+      final List<Long> offsets = free.getValue();
+      regionOffset = offsets.remove(offsets.size() - 1);
+      if (offsets.isEmpty()) {
+        freeRegions.remove(free.getKey());
+      }
+      mappedRegionSize = free.getKey();
+      dirty = true;
+    } else {
+      regionOffset = fileSize;
+      mappedRegionSize = regionSize;
+      fileSize += regionSize;
+      dirty = false;
+    }
+
+    final MappedByteBuffer[] buffers;
+    try {
+      buffers = map(regionOffset, mappedSize);
+    } catch (IOException e) {
+      releaseRegion(regionOffset, mappedRegionSize);
+      throw mapFailure(mappedSize, e);
+    }
+    final MemoryBlock block;
+    if (buffers.length == 1) {
+      final long address =
+        (PlatformDependent.directBufferAddress(buffers[0]) + alignment - 1) & -alignment;
+      block = new MemoryBlock(null, address, size);
+    } else {
+      block = segmentedBlock(buffers, size);
+    }
+    if (zero && dirty) {
+      // Regions appended to the file read as zeros; reused regions have to be cleared.
+      block.fill(0, size, (byte) 0);
+    }
+    liveBlocks.put(block, new Mapping(buffers, regionOffset, mappedRegionSize));
+    return block;
+  }
+
+  /**
+   * Remaps the block's file region if it is large enough, or can be extended because it is at the
+   * end of the file. The data then stays in place in the file and does not have to be copied.
+   */
+  @Override
+  public synchronized MemoryBlock reallocate(
+      MemoryBlock memory, long newSize) throws OutOfMemoryError {
+    final Mapping mapping = liveBlocks.get(memory);
+    assert mapping != null : "block was not allocated by this allocator";
+    final boolean atEndOfFile = mapping.regionOffset + mapping.regionSize == fileSize;
+    if (memory.getBaseOffset() != PlatformDependent.directBufferAddress(mapping.buffers[0]) ||
+        (newSize > mapping.regionSize && !atEndOfFile)) {
+      return MemoryAllocators.reallocateByCopy(this, memory, newSize);
+    }
+    final long regionSize = Math.max(mapping.regionSize,
+      (newSize + REGION_ALIGNMENT - 1) & -REGION_ALIGNMENT);
+    final MappedByteBuffer[] buffers;
+    try {
+      buffers = map(mapping.regionOffset, newSize);
+    } catch (IOException e) {
+      throw mapFailure(newSize, e);
+    }
+    liveBlocks.remove(memory);
+    unmap(mapping.buffers);
+    fileSize = Math.max(fileSize, mapping.regionOffset + regionSize);
+    final MemoryBlock resized = buffers.length == 1 ?
+      new MemoryBlock(null, PlatformDependent.directBufferAddress(buffers[0]), newSize) :
+      segmentedBlock(buffers, newSize);
+    // A reused region may hold stale data past the old end of the block. Bytes past the old end
+    // of the region were appended to the file and read as zeros.
+    final long dirtyEnd = Math.min(newSize, mapping.regionSize);
+    if (dirtyEnd > memory.size()) {
+      resized.fill(memory.size(), dirtyEnd - memory.size(), (byte) 0);
+    }
+    liveBlocks.put(resized, new Mapping(buffers, mapping.regionOffset, regionSize));
+    return resized;
+  }
+
+  @Override
+  public synchronized void free(MemoryBlock memory) {
+    final Mapping mapping = liveBlocks.remove(memory);
+    assert mapping != null : "block freed twice, or not allocated by this allocator";
+    unmap(mapping.buffers);
+    releaseRegion(mapping.regionOffset, mapping.regionSize);
+  }
+
+  /**
+   * Unmaps all blocks that have not been freed and closes the file. Blocks allocated by this
+   * allocator must not be accessed afterwards.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    for (Mapping mapping : liveBlocks.values()) {
+      unmap(mapping.buffers);
+    }
+    liveBlocks.clear();
+    freeRegions.clear();
+    try {
+      channel.close();
+      raf.close();
+    } finally {
+      if (deleteOnClose && !file.delete()) {
+        throw new IOException("Unable to delete " + file);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of bytes of the file that are in use or available for reuse, for testing.
+   */
+  synchronized long fileSize() {
+    return fileSize;
+  }
+
+  private void releaseRegion(long regionOffset, long regionSize) {
+    if (regionOffset + regionSize == fileSize) {
+      // Give the tail of the file back to the file system.
+      fileSize = regionOffset;
+      try {
+        raf.setLength(fileSize);
+      } catch (IOException e) {
+        // The file is simply longer than necessary, and will be overwritten when it grows again.
+      }
+      return;
+    }
+    List<Long> offsets = freeRegions.get(regionSize);
+    if (offsets == null) {
+      offsets = new ArrayList<Long>();
+      freeRegions.put(regionSize, offsets);
+    }
+    offsets.add(regionOffset);
+  }
+
+  /**
+   * Maps {@code size} bytes of the file from {@code regionOffset}, in as many chunks as needed.
+   */
+  private MappedByteBuffer[] map(long regionOffset, long size) throws IOException {
+    final int numChunks = (int) Math.max(1, (size + chunkSize - 1) >>> chunkShift);
+    final MappedByteBuffer[] buffers = new MappedByteBuffer[numChunks];
+    try {
+      for (int i = 0; i < numChunks; i++) {
+        final long chunkOffset = (long) i << chunkShift;
+        buffers[i] = channel.map(FileChannel.MapMode.READ_WRITE, regionOffset + chunkOffset,
+          Math.min(chunkSize, size - chunkOffset));
+      }
+    } catch (IOException e) {
+      unmap(buffers);
+      throw e;
+    }
+    return buffers;
+  }
+
+  private static void unmap(MappedByteBuffer[] buffers) {
+    for (MappedByteBuffer buffer : buffers) {
+      if (buffer != null) {
+        PlatformDependent.freeDirectBuffer(buffer);
+      }
+    }
+  }
+
+  private SegmentedMemoryBlock segmentedBlock(MappedByteBuffer[] buffers, long size) {
+    final long[] addresses = new long[buffers.length];
+    for (int i = 0; i < buffers.length; i++) {
+      addresses[i] = PlatformDependent.directBufferAddress(buffers[i]);
+    }
+    return new SegmentedMemoryBlock(new Object[buffers.length], addresses, chunkShift, size);
+  }
+
+  private OutOfMemoryError mapFailure(long size, IOException e) {
+    final OutOfMemoryError oom = new OutOfMemoryError(
+      "Unable to map " + size + " bytes of " + file + ": " + e.getMessage());
+    oom.initCause(e);
+    return oom;
+  }
+
+  /**
+   * The chunks a block is mapped from, and the file region they belong to.
+   */
+  private static final class Mapping {
+    final MappedByteBuffer[] buffers;
+    final long regionOffset;
+    final long regionSize;
+
+    Mapping(MappedByteBuffer[] buffers, long regionOffset, long regionSize) {
+      this.buffers = buffers;
+      this.regionOffset = regionOffset;
+      this.regionSize = regionSize;
+    }
+  }
+}
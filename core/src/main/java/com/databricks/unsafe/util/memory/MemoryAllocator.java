@@ -18,10 +18,50 @@ package com.databricks.unsafe.util.memory;
 
 public interface MemoryAllocator {
 
+  /**
+   * Allocates a block of {@code size} bytes, with all bytes set to zero.
+   */
   public MemoryBlock allocate(long size) throws OutOfMemoryError;
 
+  /**
+   * Allocates a block of {@code size} bytes without clearing it, so its content is undefined. This
+   * saves a full pass over the memory when the caller overwrites the entire block anyway.
+   */
+  public MemoryBlock allocateUninitialized(long size) throws OutOfMemoryError;
+
+  /**
+   * Allocates a block of {@code size} zeroed bytes whose address is a multiple of
+   * {@code alignment}, which must be a power of 2 (e.g. {@link #CACHE_LINE_SIZE} or
+   * {@link #PAGE_SIZE}). The block must be freed through {@link #free(MemoryBlock)} as usual.
+   *
+   * Alignment only applies to off-heap memory. In-heap blocks may be moved by the garbage
+   * collector, so in-heap allocators are free to ignore the requested alignment.
+   */
+  public MemoryBlock allocateAligned(long size, long alignment) throws OutOfMemoryError;
+
+  /**
+   * Resizes a block to {@code newSize} bytes, keeping its first {@code min(size, newSize)} bytes.
+   * Bytes past the old size are zeroed. The given block must not be used afterwards, even if the
+   * returned block starts at the same address; if the allocation fails, the given block is left
+   * untouched and {@link OutOfMemoryError} is thrown.
+   *
+   * Allocators grow blocks in place where they can, which avoids holding both the old and the new
+   * block during the copy. Blocks allocated by {@link #allocateAligned(long, long)} do not
+   * necessarily keep their alignment.
+   */
+  public MemoryBlock reallocate(MemoryBlock memory, long newSize) throws OutOfMemoryError;
+
   public void free(MemoryBlock memory);
 
+  /** Size of a CPU cache line on common hardware. */
+  public static final long CACHE_LINE_SIZE = 64;
+
+  /** Size of a regular memory page on common hardware. */
+  public static final long PAGE_SIZE = 4096;
+
+  /** Size of a huge (large) memory page on x86-64. */
+  public static final long HUGE_PAGE_SIZE = 2L * 1024 * 1024;
+
   public static final MemoryAllocator UNSAFE = new UnsafeMemoryAllocator();
 
   public static final MemoryAllocator HEAP = new HeapMemoryAllocator();
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.databricks.unsafe.util.memory;
+
+/**
+ * Management interface of an {@link InstrumentedMemoryAllocator}, for reading its metrics through
+ * JMX.
+ */
+public interface MemoryAllocatorMXBean {
+
+  /**
+   * Returns the number of bytes allocated and not yet freed.
+   */
+  public long getLiveBytes();
+
+  /**
+   * Returns the (approximate) highest number of live bytes seen so far.
+   */
+  public long getPeakBytes();
+
+  /**
+   * Returns the total number of bytes allocated so far.
+   */
+  public long getAllocatedBytes();
+
+  public long getAllocationCount();
+
+  public long getFreeCount();
+
+  /**
+   * Returns the total time spent allocating zeroed memory, including the allocation itself, in
+   * nanoseconds.
+   */
+  public long getZeroingTimeNanos();
+
+  /**
+   * Returns the number of allocations per size. Element {@code i} counts the allocations of more
+   * than {@code 2^(i-1)} and at most {@code 2^i} bytes (element 0 counts sizes 0 and 1).
+   */
+  public long[] getSizeHistogram();
+
+  /**
+   * Resets the peak to the current number of live bytes.
+   */
+  public void resetPeakBytes();
+}
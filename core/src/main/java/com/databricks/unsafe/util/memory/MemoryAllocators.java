@@ -0,0 +1,49 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util.memory;
+
+/**
+ * Helpers shared by {@link MemoryAllocator} implementations.
+ */
+final class MemoryAllocators {
+
+  private MemoryAllocators() {}
+
+  /**
+   * Implements {@link MemoryAllocator#reallocate(MemoryBlock, long)} by allocating a new block from
+   * {@code allocator}, copying the contents over and freeing the old block. Either block may be
+   * segmented.
+   */
+  static MemoryBlock reallocateByCopy(
+      MemoryAllocator allocator, MemoryBlock memory, long newSize) throws OutOfMemoryError {
+    final MemoryBlock block = allocator.allocateUninitialized(newSize);
+    final long copied = Math.min(memory.length, block.length);
+    MemoryBlock.copy(memory, 0, block, 0, copied);
+    zeroTail(block, copied);
+    allocator.free(memory);
+    return block;
+  }
+
+  /**
+   * Zeroes the bytes of {@code block} from {@code from} to its end.
+   */
+  static void zeroTail(MemoryBlock block, long from) {
+    if (block.length > from) {
+      block.fill(from, block.length - from, (byte) 0);
+    }
+  }
+}
@@ -16,17 +16,34 @@
 
 package com.databricks.unsafe.util.memory;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import javax.annotation.Nullable;
 
 import com.databricks.unsafe.util.PlatformDependent;
 
 /**
- * A consecutive block of memory, starting at a {@link MemoryLocation} with a fixed size.
+ * A block of memory with a fixed size, starting at a {@link MemoryLocation}.
+ *
+ * A block is usually consecutive memory, but a {@link SegmentedMemoryBlock} is made of several
+ * segments, and its base object and offset only address the first one. {@link #fill}, {@link #copy}
+ * and the array classes handle both kinds of blocks. The operations that need a consecutive block,
+ * {@link #slice(long, long)}, {@link #toByteBuffer()}, {@link #rangeEquals},
+ * {@link #contentEquals}, {@link #compare} and {@link #compareContent}, throw an
+ * {@link UnsupportedOperationException} on segmented blocks.
  */
 public class MemoryBlock extends MemoryLocation {
 
+  private static final boolean LITTLE_ENDIAN =
+    ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
   final long length;
 
+  /**
+   * Page number of this block if it was allocated by a {@link PagedMemoryManager}, or -1 otherwise.
+   */
+  int pageNumber = -1;
+
   MemoryBlock(@Nullable Object obj, long offset, long length) {
     super(obj, offset);
     this.length = length;
@@ -39,6 +56,179 @@ public class MemoryBlock extends MemoryLocation {
     return length;
   }
 
+  /**
+   * Returns a block pointing to {@code length} bytes of this block, starting at {@code offset}
+   * bytes from its start, without copying. The slice is only valid while this block is, and must
+   * not be freed.
+   */
+  public MemoryBlock slice(long offset, long length) {
+    assert offset >= 0 : "offset (" + offset + ") should >= 0";
+    assert length >= 0 : "length (" + length + ") should >= 0";
+    assert offset + length <= this.length :
+      "slice end (" + (offset + length) + ") should <= size (" + this.length + ")";
+    return new SlicedMemoryBlock(obj, this.offset + offset, length, this);
+  }
+
+  /**
+   * Sets all bytes of this block to {@code value}.
+   */
+  public void fill(byte value) {
+    fill(0, length, value);
+  }
+
+  /**
+   * Sets {@code length} bytes of this block, starting at {@code offset}, to {@code value}.
+   */
+  public void fill(long offset, long length, byte value) {
+    assert offset >= 0 && offset + length <= this.length : "range out of bounds";
+    PlatformDependent.UNSAFE.setMemory(obj, this.offset + offset, length, value);
+  }
+
+  /**
+   * Copies {@code length} bytes from {@code src} to {@code dst}, both of which can be in-heap or
+   * off-heap. Large copies are done in chunks so that they don't delay safepoints, and the ranges
+   * may overlap.
+   */
+  public static void copy(
+      MemoryBlock src, long srcOffset, MemoryBlock dst, long dstOffset, long length) {
+    assert srcOffset >= 0 && srcOffset + length <= src.length : "source range out of bounds";
+    assert dstOffset >= 0 && dstOffset + length <= dst.length : "destination range out of bounds";
+    if (!(src instanceof SegmentedMemoryBlock) && !(dst instanceof SegmentedMemoryBlock)) {
+      PlatformDependent.copyMemory(
+        src.obj, src.offset + srcOffset, dst.obj, dst.offset + dstOffset, length);
+    } else if (src == dst && dstOffset > srcOffset) {
+      // Copy contiguous runs backwards, in case the ranges overlap.
+      long srcEnd = srcOffset + length;
+      long dstEnd = dstOffset + length;
+      while (length > 0) {
+        final long run = Math.min(length,
+          Math.min(src.contiguousBytesBefore(srcEnd), dst.contiguousBytesBefore(dstEnd)));
+        srcEnd -= run;
+        dstEnd -= run;
+        PlatformDependent.copyMemory(
+          src.objAt(srcEnd), src.offsetAt(srcEnd), dst.objAt(dstEnd), dst.offsetAt(dstEnd), run);
+        length -= run;
+      }
+    } else {
+      while (length > 0) {
+        final long run = Math.min(length,
+          Math.min(src.contiguousBytesAt(srcOffset), dst.contiguousBytesAt(dstOffset)));
+        PlatformDependent.copyMemory(src.objAt(srcOffset), src.offsetAt(srcOffset),
+          dst.objAt(dstOffset), dst.offsetAt(dstOffset), run);
+        srcOffset += run;
+        dstOffset += run;
+        length -= run;
+      }
+    }
+  }
+
+  /** Returns the base object of the byte at {@code offset} from the start of this block. */
+  Object objAt(long offset) {
+    return obj;
+  }
+
+  /** Returns the base offset of the byte at {@code offset} from the start of this block. */
+  long offsetAt(long offset) {
+    return this.offset + offset;
+  }
+
+  /** Returns the number of contiguous bytes starting at {@code offset}, up to the block's end. */
+  long contiguousBytesAt(long offset) {
+    return length - offset;
+  }
+
+  /** Returns the number of contiguous bytes that end at {@code end}, back to the block's start. */
+  long contiguousBytesBefore(long end) {
+    return end;
+  }
+
+  /**
+   * Returns whether this block has the same size and content as {@code other}.
+   */
+  public boolean contentEquals(MemoryBlock other) {
+    return length == other.length && rangeEquals(this, 0, other, 0, length);
+  }
+
+  /**
+   * Returns whether {@code length} bytes of {@code a} and {@code b} at the given offsets are equal.
+   */
+  public static boolean rangeEquals(
+      MemoryBlock a, long aOffset, MemoryBlock b, long bOffset, long length) {
+    checkContiguous(a, b);
+    assert aOffset >= 0 && aOffset + length <= a.length : "range of a out of bounds";
+    assert bOffset >= 0 && bOffset + length <= b.length : "range of b out of bounds";
+    final Object aObj = a.obj;
+    final Object bObj = b.obj;
+    final long aStart = a.offset + aOffset;
+    final long bStart = b.offset + bOffset;
+    long i = 0;
+    for (; i <= length - 8; i += 8) {
+      if (PlatformDependent.UNSAFE.getLong(aObj, aStart + i) !=
+          PlatformDependent.UNSAFE.getLong(bObj, bStart + i)) {
+        return false;
+      }
+    }
+    for (; i < length; i++) {
+      if (PlatformDependent.UNSAFE.getByte(aObj, aStart + i) !=
+          PlatformDependent.UNSAFE.getByte(bObj, bStart + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Compares the content of this block with {@code other} like {@link #compare}.
+   */
+  public int compareContent(MemoryBlock other) {
+    return compare(this, 0, length, other, 0, other.length);
+  }
+
+  /**
+   * Compares two byte ranges lexicographically, treating bytes as unsigned, and returns a negative
+   * number, zero or a positive number if the first range is smaller than, equal to or larger than
+   * the second. A range that is a prefix of the other one is smaller.
+   */
+  public static int compare(
+      MemoryBlock a, long aOffset, long aLength, MemoryBlock b, long bOffset, long bLength) {
+    checkContiguous(a, b);
+    assert aOffset >= 0 && aOffset + aLength <= a.length : "range of a out of bounds";
+    assert bOffset >= 0 && bOffset + bLength <= b.length : "range of b out of bounds";
+    final Object aObj = a.obj;
+    final Object bObj = b.obj;
+    final long aStart = a.offset + aOffset;
+    final long bStart = b.offset + bOffset;
+    final long length = Math.min(aLength, bLength);
+    long i = 0;
+    for (; i <= length - 8; i += 8) {
+      long x = PlatformDependent.UNSAFE.getLong(aObj, aStart + i);
+      long y = PlatformDependent.UNSAFE.getLong(bObj, bStart + i);
+      if (x != y) {
+        if (LITTLE_ENDIAN) {
+          // Make the first byte in memory the most significant one.
+          x = Long.reverseBytes(x);
+          y = Long.reverseBytes(y);
+        }
+        // Unsigned comparison.
+        return (x ^ Long.MIN_VALUE) < (y ^ Long.MIN_VALUE) ? -1 : 1;
+      }
+    }
+    for (; i < length; i++) {
+      final int x = PlatformDependent.UNSAFE.getByte(aObj, aStart + i) & 0xff;
+      final int y = PlatformDependent.UNSAFE.getByte(bObj, bStart + i) & 0xff;
+      if (x != y) {
+        return x - y;
+      }
+    }
+    return aLength < bLength ? -1 : (aLength == bLength ? 0 : 1);
+  }
+
+  private static void checkContiguous(MemoryBlock a, MemoryBlock b) {
+    if (a instanceof SegmentedMemoryBlock || b instanceof SegmentedMemoryBlock) {
+      throw new UnsupportedOperationException("segmented blocks cannot be compared");
+    }
+  }
+
   /**
    * Creates a memory block pointing to the memory used by the byte array.
    */
@@ -52,4 +242,113 @@ public class MemoryBlock extends MemoryLocation {
   public static MemoryBlock fromLongArray(final long[] array) {
     return new MemoryBlock(array, PlatformDependent.LONG_ARRAY_OFFSET, array.length * 8);
   }
+
+  /**
+   * Creates a memory block pointing to the memory used by the int array.
+   */
+  public static MemoryBlock fromIntArray(final int[] array) {
+    return new MemoryBlock(array, PlatformDependent.INT_ARRAY_OFFSET, array.length * 4L);
+  }
+
+  /**
+   * Creates a memory block pointing to the memory used by the short array.
+   */
+  public static MemoryBlock fromShortArray(final short[] array) {
+    return new MemoryBlock(array, PlatformDependent.SHORT_ARRAY_OFFSET, array.length * 2L);
+  }
+
+  /**
+   * Creates a memory block pointing to the memory used by the float array.
+   */
+  public static MemoryBlock fromFloatArray(final float[] array) {
+    return new MemoryBlock(array, PlatformDependent.FLOAT_ARRAY_OFFSET, array.length * 4L);
+  }
+
+  /**
+   * Creates a memory block pointing to the memory used by the double array.
+   */
+  public static MemoryBlock fromDoubleArray(final double[] array) {
+    return new MemoryBlock(array, PlatformDependent.DOUBLE_ARRAY_OFFSET, array.length * 8L);
+  }
+
+  /**
+   * Creates a memory block pointing to the remaining bytes of the buffer, i.e. from its position
+   * to its limit. Both direct buffers and buffers backed by an accessible array are supported. The
+   * block keeps the buffer reachable, so a direct buffer's memory is not freed while the block is
+   * in use.
+   *
+   * @throws IllegalArgumentException if the buffer is read-only
+   */
+  public static MemoryBlock fromByteBuffer(final ByteBuffer buffer) {
+    if (buffer.isReadOnly()) {
+      throw new IllegalArgumentException("read-only buffers cannot be wrapped");
+    }
+    if (buffer.isDirect()) {
+      return new ByteBufferMemoryBlock(
+        null,
+        PlatformDependent.directBufferAddress(buffer) + buffer.position(),
+        buffer.remaining(),
+        buffer);
+    }
+    return new ByteBufferMemoryBlock(
+      buffer.array(),
+      PlatformDependent.BYTE_ARRAY_OFFSET + buffer.arrayOffset() + buffer.position(),
+      buffer.remaining(),
+      buffer);
+  }
+
+  /**
+   * Returns a {@link ByteBuffer} view of this block, for NIO reads and writes without copying. The
+   * buffer uses the native byte order, so it agrees with the array classes such as
+   * {@link com.databricks.unsafe.util.LongArray} on the layout of multi-byte values.
+   *
+   * An off-heap block is viewed as a direct buffer, which must not be used after the block has been
+   * freed. An in-heap block can only be viewed if it is backed by a {@code byte[]}.
+   *
+   * @throws UnsupportedOperationException if the block is larger than 2GB, or in-heap but not
+   *         backed by a {@code byte[]}
+   */
+  public ByteBuffer toByteBuffer() {
+    if (length > Integer.MAX_VALUE) {
+      throw new UnsupportedOperationException(
+        "block size (" + length + ") is too large for a ByteBuffer");
+    }
+    final ByteBuffer buffer;
+    if (obj == null) {
+      buffer = PlatformDependent.newDirectBuffer(offset, (int) length);
+    } else if (obj instanceof byte[]) {
+      buffer = ByteBuffer.wrap(
+        (byte[]) obj, (int) (offset - PlatformDependent.BYTE_ARRAY_OFFSET), (int) length).slice();
+    } else {
+      throw new UnsupportedOperationException(
+        "in-heap blocks can only be viewed as a ByteBuffer if they are backed by a byte[]");
+    }
+    return buffer.order(ByteOrder.nativeOrder());
+  }
+
+  /**
+   * A block created by {@link #fromByteBuffer(ByteBuffer)}, which keeps the buffer reachable.
+   */
+  private static final class ByteBufferMemoryBlock extends MemoryBlock {
+    @SuppressWarnings("unused")
+    private final ByteBuffer buffer;
+
+    ByteBufferMemoryBlock(@Nullable Object obj, long offset, long length, ByteBuffer buffer) {
+      super(obj, offset, length);
+      this.buffer = buffer;
+    }
+  }
+
+  /**
+   * A block created by {@link #slice(long, long)}, which keeps the sliced block reachable.
+   */
+  private static final class SlicedMemoryBlock extends MemoryBlock {
+    @SuppressWarnings("unused")
+    private final MemoryBlock parent;
+
+    SlicedMemoryBlock(@Nullable Object obj, long offset, long length, MemoryBlock parent) {
+      super(obj, offset, length);
+      this.parent = parent;
+    }
+  }
 }
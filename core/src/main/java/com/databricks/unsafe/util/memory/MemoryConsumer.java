@@ -0,0 +1,197 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util.memory;
+
+import java.io.Closeable;
+
+/**
+ * A {@link MemoryAllocator} that charges every allocation against the budget of a
+ * {@link MemoryManager} before delegating to another allocator.
+ *
+ * A consumer can be passed wherever a {@link MemoryAllocator} is expected, e.g. to a
+ * {@code LongToLongMap}, to cap the memory that data structure may use. Consumers that can release
+ * memory on demand (for example by writing their data to disk) should override
+ * {@link #spill(long, MemoryConsumer)}, which the manager calls when another allocation cannot be
+ * satisfied.
+ *
+ * Each block is charged its actual size, which the underlying allocator may round differently
+ * from the requested size, so that freeing it releases exactly what was charged.
+ */
+public class MemoryConsumer implements MemoryAllocator, Closeable {
+
+  private final MemoryManager manager;
+
+  private final MemoryAllocator allocator;
+
+  /** Number of bytes acquired by this consumer. Guarded by the manager's lock. */
+  long used;
+
+  public MemoryConsumer(MemoryManager manager, MemoryAllocator allocator) {
+    this.manager = manager;
+    this.allocator = allocator;
+    manager.register(this);
+  }
+
+  /**
+   * Returns the number of bytes currently allocated through this consumer.
+   */
+  public long getUsed() {
+    synchronized (manager) {
+      return used;
+    }
+  }
+
+  /**
+   * Allocates a block after acquiring {@code size} bytes from the manager, which may spill other
+   * consumers (or this one) to make room.
+   *
+   * @throws OutOfMemoryError if the budget cannot accommodate the request
+   */
+  @Override
+  public MemoryBlock allocate(long size) throws OutOfMemoryError {
+    manager.acquire(this, size);
+    final MemoryBlock block;
+    try {
+      block = allocator.allocate(size);
+    } catch (OutOfMemoryError e) {
+      manager.release(this, size);
+      throw e;
+    }
+    return charge(block, size);
+  }
+
+  /**
+   * Allocates a block without clearing it, after acquiring {@code size} bytes from the manager.
+   *
+   * @throws OutOfMemoryError if the budget cannot accommodate the request
+   */
+  @Override
+  public MemoryBlock allocateUninitialized(long size) throws OutOfMemoryError {
+    manager.acquire(this, size);
+    final MemoryBlock block;
+    try {
+      block = allocator.allocateUninitialized(size);
+    } catch (OutOfMemoryError e) {
+      manager.release(this, size);
+      throw e;
+    }
+    return charge(block, size);
+  }
+
+  /**
+   * Allocates an aligned block after acquiring {@code size} bytes from the manager. Padding the
+   * underlying allocator may add for alignment is not charged.
+   *
+   * @throws OutOfMemoryError if the budget cannot accommodate the request
+   */
+  @Override
+  public MemoryBlock allocateAligned(long size, long alignment) throws OutOfMemoryError {
+    manager.acquire(this, size);
+    final MemoryBlock block;
+    try {
+      block = allocator.allocateAligned(size, alignment);
+    } catch (OutOfMemoryError e) {
+      manager.release(this, size);
+      throw e;
+    }
+    return charge(block, size);
+  }
+
+  /**
+   * Acquires the growth of the block from the manager before resizing it, and releases the
+   * difference after shrinking it. If this consumer is asked to spill while the block grows, it
+   * must not free the block being reallocated.
+   *
+   * @throws OutOfMemoryError if the budget cannot accommodate the growth
+   */
+  @Override
+  public MemoryBlock reallocate(MemoryBlock memory, long newSize) throws OutOfMemoryError {
+    final long oldSize = memory.size();
+    final long growth = Math.max(0, newSize - oldSize);
+    if (growth > 0) {
+      manager.acquire(this, growth);
+    }
+    final MemoryBlock block;
+    try {
+      block = allocator.reallocate(memory, newSize);
+    } catch (OutOfMemoryError e) {
+      if (growth > 0) {
+        manager.release(this, growth);
+      }
+      throw e;
+    }
+    return charge(block, oldSize + growth);
+  }
+
+  /**
+   * Frees a block, releasing its size, which is what was charged for it.
+   */
+  @Override
+  public void free(MemoryBlock memory) {
+    final long size = memory.size();
+    allocator.free(memory);
+    manager.release(this, size);
+  }
+
+  /**
+   * Adjusts the {@code charged} bytes acquired for a new block to the block's actual size, which
+   * the underlying allocator may have rounded, so that {@link #free(MemoryBlock)} releases exactly
+   * what was acquired. If a larger block does not fit in the budget, it is freed.
+   */
+  private MemoryBlock charge(MemoryBlock block, long charged) {
+    final long actual = block.size();
+    if (actual < charged) {
+      manager.release(this, charged - actual);
+    } else if (actual > charged) {
+      try {
+        manager.acquire(this, actual - charged);
+      } catch (OutOfMemoryError e) {
+        allocator.free(block);
+        manager.release(this, charged);
+        throw e;
+      }
+    }
+    return block;
+  }
+
+  /**
+   * Releases memory by spilling this consumer's data, typically to disk. Implementations must free
+   * the released memory through {@link #free(MemoryBlock)} before returning.
+   *
+   * Called by the manager from the thread of the consumer whose allocation triggered the spill,
+   * which may not be the thread using this consumer, so implementations must synchronize with
+   * their own use of the data they spill. The manager does not hold its lock during the call, so
+   * implementations may take their own locks. The default implementation cannot spill and
+   * returns 0.
+   *
+   * @param size the number of bytes the manager is trying to release
+   * @param trigger the consumer whose allocation triggered the spill, possibly this one
+   * @return the number of bytes released
+   */
+  protected long spill(long size, MemoryConsumer trigger) throws Exception {
+    return 0L;
+  }
+
+  /**
+   * Unregisters this consumer from the manager. Memory that has not been freed stays charged
+   * against the budget.
+   */
+  @Override
+  public void close() {
+    manager.unregister(this);
+  }
+}
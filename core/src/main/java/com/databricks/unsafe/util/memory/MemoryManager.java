@@ -0,0 +1,158 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util.memory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Enforces a global memory budget shared by a set of {@link MemoryConsumer}s.
+ *
+ * When a consumer requests more memory than is left in the budget, the manager asks the other
+ * registered consumers to spill, largest first, and then the requesting consumer itself. Only if
+ * that does not free up enough memory is an {@link OutOfMemoryError} thrown to the requester.
+ *
+ * This class is thread-safe. Spilling happens outside of the manager's lock, on the thread of the
+ * requesting consumer, so other threads may acquire memory released by a spill before the
+ * requester does; the requester then asks the next consumer to spill, or fails.
+ */
+public class MemoryManager {
+
+  private final long maxMemory;
+
+  /** Number of bytes acquired by all consumers. */
+  private long used;
+
+  private final Set<MemoryConsumer> consumers =
+    Collections.newSetFromMap(new IdentityHashMap<MemoryConsumer, Boolean>());
+
+  private static final Comparator<MemoryConsumer> LARGEST_FIRST = new Comparator<MemoryConsumer>() {
+    @Override
+    public int compare(MemoryConsumer a, MemoryConsumer b) {
+      return a.used < b.used ? 1 : (a.used == b.used ? 0 : -1);
+    }
+  };
+
+  public MemoryManager(long maxMemory) {
+    this.maxMemory = maxMemory;
+  }
+
+  /**
+   * Returns the memory budget in bytes.
+   */
+  public long getMaxMemory() {
+    return maxMemory;
+  }
+
+  /**
+   * Returns the number of bytes currently acquired by all consumers.
+   */
+  public synchronized long getUsedMemory() {
+    return used;
+  }
+
+  synchronized void register(MemoryConsumer consumer) {
+    consumers.add(consumer);
+  }
+
+  synchronized void unregister(MemoryConsumer consumer) {
+    consumers.remove(consumer);
+  }
+
+  /**
+   * Acquires {@code required} bytes on behalf of {@code consumer}, spilling consumers if needed.
+   *
+   * Spill victims are chosen under the lock, but spilled outside of it, so that a consumer whose
+   * spill takes its own locks cannot deadlock with a thread that holds them while it waits to
+   * acquire memory.
+   *
+   * @throws OutOfMemoryError if the memory cannot be acquired even after spilling
+   */
+  void acquire(MemoryConsumer consumer, long required) throws OutOfMemoryError {
+    assert required >= 0 : "required (" + required + ") should >= 0";
+    final List<MemoryConsumer> candidates;
+    synchronized (this) {
+      if (tryAcquire(consumer, required)) {
+        return;
+      }
+      candidates = new ArrayList<MemoryConsumer>(consumers.size());
+      for (MemoryConsumer c : consumers) {
+        if (c != consumer && c.used > 0) {
+          candidates.add(c);
+        }
+      }
+      Collections.sort(candidates, LARGEST_FIRST);
+      // As a last resort, ask the requesting consumer to make room for itself.
+      if (consumer.used > 0) {
+        candidates.add(consumer);
+      }
+    }
+
+    for (MemoryConsumer c : candidates) {
+      final long missing;
+      synchronized (this) {
+        if (tryAcquire(consumer, required)) {
+          return;
+        }
+        missing = used + required - maxMemory;
+      }
+      spill(c, missing, consumer);
+    }
+
+    synchronized (this) {
+      if (!tryAcquire(consumer, required)) {
+        throw new OutOfMemoryError("Unable to acquire " + required + " bytes of memory (" +
+          used + " of " + maxMemory + " bytes in use after spilling)");
+      }
+    }
+  }
+
+  /**
+   * Charges {@code required} bytes to {@code consumer} if they fit in the budget. Must be called
+   * while holding the lock.
+   */
+  private boolean tryAcquire(MemoryConsumer consumer, long required) {
+    if (used + required > maxMemory) {
+      return false;
+    }
+    used += required;
+    consumer.used += required;
+    return true;
+  }
+
+  /**
+   * Releases {@code size} bytes previously acquired by {@code consumer}.
+   */
+  synchronized void release(MemoryConsumer consumer, long size) {
+    assert size <= consumer.used :
+      "releasing " + size + " bytes but consumer only holds " + consumer.used;
+    used -= size;
+    consumer.used -= size;
+  }
+
+  private void spill(MemoryConsumer c, long size, MemoryConsumer trigger) {
+    try {
+      c.spill(size, trigger);
+    } catch (Exception e) {
+      throw new RuntimeException("Error while spilling " + c, e);
+    }
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util.memory;
+
+import java.util.BitSet;
+
+/**
+ * Hands out large pages of memory from a {@link MemoryAllocator} and addresses bytes within them
+ * using 64-bit encoded pointers, so that records stored in pages can be referenced from a
+ * {@code LongArray} rather than through object references.
+ *
+ * An encoded pointer stores the page number in its upper {@link #PAGE_NUMBER_BITS} bits and the
+ * offset from the start of the page in its lower {@link #OFFSET_BITS} bits. This works for both
+ * in-heap pages (whose base object may be moved by the garbage collector, so raw addresses cannot
+ * be stored) and off-heap pages. Decoding a pointer costs one page table lookup and an addition:
+ * <pre>
+ * <code>
+ *   Object baseObj = manager.getPage(pointer);
+ *   long baseOffset = manager.getOffsetInPage(pointer);
+ *   long value = PlatformDependent.UNSAFE.getLong(baseObj, baseOffset);
+ * </code>
+ * </pre>
+ *
+ * Allocating and freeing pages is thread-safe. Decoding a pointer does not take any lock, and thus
+ * must not race with freeing the page it points into.
+ */
+public class PagedMemoryManager {
+
+  /** Number of bits used to encode the page number. */
+  public static final int PAGE_NUMBER_BITS = 13;
+
+  /** Number of bits used to encode the offset within a page. */
+  public static final int OFFSET_BITS = 64 - PAGE_NUMBER_BITS;
+
+  /** Maximum number of pages that can be allocated at the same time. */
+  public static final int PAGE_TABLE_SIZE = 1 << PAGE_NUMBER_BITS;
+
+  /** Bit mask for the lower {@link #OFFSET_BITS} bits of a long. */
+  private static final long MASK_LONG_LOWER_OFFSET_BITS = (1L << OFFSET_BITS) - 1;
+
+  /** Maximum size of a single page. */
+  public static final long MAX_PAGE_SIZE = MASK_LONG_LOWER_OFFSET_BITS;
+
+  private final MemoryAllocator allocator;
+
+  /** Page table indexed by page number. Entries are null for unused page numbers. */
+  private final MemoryBlock[] pageTable = new MemoryBlock[PAGE_TABLE_SIZE];
+
+  /** Tracks the page numbers that are in use. */
+  private final BitSet allocatedPages = new BitSet(PAGE_TABLE_SIZE);
+
+  public PagedMemoryManager(MemoryAllocator allocator) {
+    this.allocator = allocator;
+  }
+
+  /**
+   * Allocates a page of {@code size} bytes and assigns it a page number.
+   *
+   * @throws IllegalStateException if {@link #PAGE_TABLE_SIZE} pages are already allocated
+   */
+  public MemoryBlock allocatePage(long size) throws OutOfMemoryError {
+    if (size > MAX_PAGE_SIZE) {
+      throw new IllegalArgumentException(
+        "page size (" + size + ") should <= " + MAX_PAGE_SIZE);
+    }
+    final int pageNumber;
+    synchronized (this) {
+      pageNumber = allocatedPages.nextClearBit(0);
+      if (pageNumber >= PAGE_TABLE_SIZE) {
+        throw new IllegalStateException(
+          "have already allocated the maximum of " + PAGE_TABLE_SIZE + " pages");
+      }
+      allocatedPages.set(pageNumber);
+    }
+    final MemoryBlock page;
+    try {
+      page = allocator.allocate(size);
+    } catch (OutOfMemoryError e) {
+      synchronized (this) {
+        allocatedPages.clear(pageNumber);
+      }
+      throw e;
+    }
+    page.pageNumber = pageNumber;
+    synchronized (this) {
+      pageTable[pageNumber] = page;
+    }
+    return page;
+  }
+
+  /**
+   * Frees a page allocated by {@link #allocatePage(long)}. Pointers into the page become invalid.
+   */
+  public void freePage(MemoryBlock page) {
+    final int pageNumber = page.pageNumber;
+    assert pageNumber >= 0 : "page was not allocated by a PagedMemoryManager";
+    synchronized (this) {
+      assert pageTable[pageNumber] == page : "page (" + pageNumber + ") freed twice";
+      pageTable[pageNumber] = null;
+      allocatedPages.clear(pageNumber);
+    }
+    page.pageNumber = -1;
+    allocator.free(page);
+  }
+
+  /**
+   * Frees all pages that are still allocated, and returns the number of bytes they held.
+   */
+  public long freeAllPages() {
+    long freed = 0L;
+    synchronized (this) {
+      for (int i = allocatedPages.nextSetBit(0); i >= 0; i = allocatedPages.nextSetBit(i + 1)) {
+        final MemoryBlock page = pageTable[i];
+        if (page != null) {
+          freed += page.size();
+          pageTable[i] = null;
+          page.pageNumber = -1;
+          allocator.free(page);
+        }
+      }
+      allocatedPages.clear();
+    }
+    return freed;
+  }
+
+  /**
+   * Encodes a page number and an address within the page into a single long.
+   *
+   * @param page a page allocated by this manager
+   * @param address a memory address within the page, relative to the page's base object (i.e. in
+   *                the same space as {@link MemoryBlock#getBaseOffset()})
+   */
+  public static long encodePageNumberAndOffset(MemoryBlock page, long address) {
+    assert page.pageNumber >= 0 : "page was not allocated by a PagedMemoryManager";
+    final long offsetInPage = address - page.offset;
+    assert offsetInPage >= 0 && offsetInPage <= page.length :
+      "address (" + address + ") is outside of page (" + page.pageNumber + ")";
+    return (((long) page.pageNumber) << OFFSET_BITS) | offsetInPage;
+  }
+
+  /**
+   * Returns the page number of an encoded pointer.
+   */
+  public static int decodePageNumber(long pointer) {
+    return (int) (pointer >>> OFFSET_BITS);
+  }
+
+  /**
+   * Returns the offset from the start of the page of an encoded pointer.
+   */
+  public static long decodeOffset(long pointer) {
+    return pointer & MASK_LONG_LOWER_OFFSET_BITS;
+  }
+
+  /**
+   * Returns the base object of the page an encoded pointer points into, which is null for
+   * off-heap pages.
+   */
+  public Object getPage(long pointer) {
+    final MemoryBlock page = pageTable[decodePageNumber(pointer)];
+    assert page != null : "page (" + decodePageNumber(pointer) + ") is not allocated";
+    return page.obj;
+  }
+
+  /**
+   * Returns the address an encoded pointer points to, relative to {@link #getPage(long)}.
+   */
+  public long getOffsetInPage(long pointer) {
+    final MemoryBlock page = pageTable[decodePageNumber(pointer)];
+    assert page != null : "page (" + decodePageNumber(pointer) + ") is not allocated";
+    return page.offset + (pointer & MASK_LONG_LOWER_OFFSET_BITS);
+  }
+}
@@ -0,0 +1,454 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util.memory;
+
+import com.databricks.unsafe.util.PlatformDependent;
+
+/**
+ * A jemalloc-style {@link MemoryAllocator} that serves small blocks out of size-classed slabs.
+ *
+ * Requests are rounded up to one of the following size classes:
+ * <ul>
+ *   <li>16 to 512 bytes, in steps of 16 bytes</li>
+ *   <li>512 bytes to {@link #MAX_SMALL_SIZE}, with four classes per doubling</li>
+ * </ul>
+ *
+ * Each size class carves fixed-size slots out of page-aligned slabs obtained from the parent
+ * allocator, so slots are aligned to the largest power of 2 that divides their size (up to the
+ * page size). Freed slots are recycled within their size class, and a slab is only returned to
+ * the parent allocator once all its slots are free (one empty slab per size class is retained to
+ * avoid thrashing).
+ * Requests larger than {@link #MAX_SMALL_SIZE} go straight to the parent allocator.
+ *
+ * This allocator is thread-safe. Each size class is guarded by its own lock.
+ */
+public class PooledMemoryAllocator implements MemoryAllocator {
+
+  /** Size classes up to this size are spaced {@code QUANTUM} bytes apart. */
+  private static final int MAX_TINY_SIZE = 512;
+
+  private static final int QUANTUM = 16;
+
+  private static final int NUM_TINY_CLASSES = MAX_TINY_SIZE / QUANTUM;
+
+  /** Number of size classes per doubling above {@code MAX_TINY_SIZE}. */
+  private static final int CLASSES_PER_DOUBLING = 4;
+
+  /** Largest request served out of slabs. */
+  public static final int MAX_SMALL_SIZE = 128 * 1024;
+
+  /** Minimum size of a slab. */
+  private static final long MIN_SLAB_SIZE = 64 * 1024;
+
+  /** Minimum number of slots in a slab, which determines the slab size for large classes. */
+  private static final int MIN_SLOTS_PER_SLAB = 8;
+
+  /** Slot sizes of all size classes, in ascending order. */
+  private static final int[] SLOT_SIZES;
+
+  static {
+    final int log2MaxTiny = Integer.numberOfTrailingZeros(MAX_TINY_SIZE);
+    final int log2MaxSmall = Integer.numberOfTrailingZeros(MAX_SMALL_SIZE);
+    SLOT_SIZES = new int[NUM_TINY_CLASSES + (log2MaxSmall - log2MaxTiny) * CLASSES_PER_DOUBLING];
+    for (int i = 0; i < NUM_TINY_CLASSES; i++) {
+      SLOT_SIZES[i] = (i + 1) * QUANTUM;
+    }
+    for (int i = NUM_TINY_CLASSES; i < SLOT_SIZES.length; i++) {
+      final int group = (i - NUM_TINY_CLASSES) / CLASSES_PER_DOUBLING;
+      final int step = (i - NUM_TINY_CLASSES) % CLASSES_PER_DOUBLING + 1;
+      SLOT_SIZES[i] = (MAX_TINY_SIZE << group) + step * ((MAX_TINY_SIZE << group) >> 2);
+    }
+  }
+
+  private final MemoryAllocator parent;
+
+  private final SizeClass[] sizeClasses;
+
+  /**
+   * Creates a pooled allocator that obtains slabs from {@link MemoryAllocator#UNSAFE}.
+   */
+  public PooledMemoryAllocator() {
+    this(MemoryAllocator.UNSAFE);
+  }
+
+  /**
+   * Creates a pooled allocator that obtains slabs (and large blocks) from the given allocator.
+   */
+  public PooledMemoryAllocator(MemoryAllocator parent) {
+    this.parent = parent;
+    this.sizeClasses = new SizeClass[SLOT_SIZES.length];
+    for (int i = 0; i < sizeClasses.length; i++) {
+      sizeClasses[i] = new SizeClass(i, SLOT_SIZES[i]);
+    }
+  }
+
+  @Override
+  public MemoryBlock allocate(long size) throws OutOfMemoryError {
+    if (size > MAX_SMALL_SIZE || size <= 0) {
+      return parent.allocate(size);
+    }
+    return allocateSmall(sizeClasses[sizeClassIndex((int) size)], size, true);
+  }
+
+  @Override
+  public MemoryBlock allocateUninitialized(long size) throws OutOfMemoryError {
+    if (size > MAX_SMALL_SIZE || size <= 0) {
+      return parent.allocateUninitialized(size);
+    }
+    return allocateSmall(sizeClasses[sizeClassIndex((int) size)], size, false);
+  }
+
+  /**
+   * Serves the request from the smallest size class whose slots are multiples of the alignment,
+   * which keeps every slot aligned since slabs are page-aligned. Requests that no size class can
+   * serve, including alignments above {@link MemoryAllocator#PAGE_SIZE}, go to the parent.
+   */
+  @Override
+  public MemoryBlock allocateAligned(long size, long alignment) throws OutOfMemoryError {
+    assert Long.bitCount(alignment) == 1 : "alignment (" + alignment + ") should be a power of 2";
+    if (size > 0 && size <= MAX_SMALL_SIZE && alignment <= PAGE_SIZE) {
+      for (int i = sizeClassIndex((int) size); i < SLOT_SIZES.length; i++) {
+        if (SLOT_SIZES[i] % alignment == 0) {
+          return allocateSmall(sizeClasses[i], size, true);
+        }
+      }
+    }
+    return parent.allocateAligned(size, alignment);
+  }
+
+  /**
+   * Keeps a block in its slot if the new size still belongs to the slot's size class or a smaller
+   * one that is at least half the slot size. Blocks beyond {@link #MAX_SMALL_SIZE} are resized by
+   * the parent allocator, and all other blocks are copied.
+   */
+  @Override
+  public MemoryBlock reallocate(MemoryBlock memory, long newSize) throws OutOfMemoryError {
+    if (memory instanceof PooledMemoryBlock) {
+      final PooledMemoryBlock block = (PooledMemoryBlock) memory;
+      if (fitsInSlot(block, newSize)) {
+        final PooledMemoryBlock resized =
+          new PooledMemoryBlock(block.obj, block.offset, newSize, block.slab, block.slot);
+        MemoryAllocators.zeroTail(resized, block.length);
+        return resized;
+      }
+    } else if (newSize > MAX_SMALL_SIZE) {
+      return parent.reallocate(memory, newSize);
+    }
+    return MemoryAllocators.reallocateByCopy(this, memory, newSize);
+  }
+
+  @Override
+  public void free(MemoryBlock memory) {
+    if (memory instanceof PooledMemoryBlock) {
+      final PooledMemoryBlock block = (PooledMemoryBlock) memory;
+      assert block.slab.sizeClass == sizeClasses[block.slab.sizeClass.index] :
+        "block was not allocated by this allocator";
+      freeSmall(block.slab, block.slot);
+    } else {
+      parent.free(memory);
+    }
+  }
+
+  /**
+   * Returns whether {@link #reallocate(MemoryBlock, long)} keeps the block in its current slot.
+   */
+  static boolean fitsInSlot(PooledMemoryBlock block, long newSize) {
+    final int slotSize = block.slab.sizeClass.slotSize;
+    return newSize <= slotSize && newSize > slotSize / 2;
+  }
+
+  /**
+   * Returns the index of the smallest size class that can hold {@code size} bytes.
+   */
+  static int sizeClassIndex(int size) {
+    assert size > 0 && size <= MAX_SMALL_SIZE : "size (" + size + ") out of range";
+    if (size <= MAX_TINY_SIZE) {
+      return (size - 1) / QUANTUM;
+    }
+    // 2^log2 < size <= 2^(log2 + 1), and classes in this group are 2^(log2 - 2) bytes apart.
+    final int log2 = 31 - Integer.numberOfLeadingZeros(size - 1);
+    final int group = log2 - Integer.numberOfTrailingZeros(MAX_TINY_SIZE);
+    final int step = (size - 1 - (1 << log2)) >> (log2 - 2);
+    return NUM_TINY_CLASSES + group * CLASSES_PER_DOUBLING + step;
+  }
+
+  /**
+   * Returns the slot size of the given size class.
+   */
+  static int slotSize(int sizeClassIndex) {
+    return SLOT_SIZES[sizeClassIndex];
+  }
+
+  /**
+   * Returns the number of slabs currently held by this allocator, for testing.
+   */
+  int numSlabs() {
+    int sum = 0;
+    for (SizeClass sizeClass : sizeClasses) {
+      synchronized (sizeClass) {
+        sum += sizeClass.numSlabs;
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Returns the number of slots handed out by this allocator and not yet freed, for testing.
+   */
+  long numUsedSlots() {
+    long sum = 0;
+    for (SizeClass sizeClass : sizeClasses) {
+      synchronized (sizeClass) {
+        sum += sizeClass.numUsedSlots;
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Allocates a slot of the size class. Fresh slots come zeroed from the parent allocator, so only
+   * recycled slots have to be cleared.
+   */
+  private MemoryBlock allocateSmall(SizeClass sizeClass, long size, boolean zero) {
+    final Slab slab;
+    final int slot;
+    final boolean dirty;
+    synchronized (sizeClass) {
+      slab = availableSlab(sizeClass);
+      dirty = slab.numRecycledSlots > 0;
+      slot = takeSlot(sizeClass, slab);
+    }
+    return newBlock(slab, slot, size, zero && dirty);
+  }
+
+  /**
+   * Takes {@code n} slots from the given size class under a single lock acquisition, storing
+   * them at {@code pos} onwards. Used by {@link ThreadCachingMemoryAllocator} to refill its caches.
+   */
+  void takeSlots(int sizeClassIndex, Slab[] slabs, int[] slots, boolean[] dirty, int pos, int n) {
+    final SizeClass sizeClass = sizeClasses[sizeClassIndex];
+    synchronized (sizeClass) {
+      for (int i = pos; i < pos + n; i++) {
+        final Slab slab = availableSlab(sizeClass);
+        dirty[i] = slab.numRecycledSlots > 0;
+        slots[i] = takeSlot(sizeClass, slab);
+        slabs[i] = slab;
+      }
+    }
+  }
+
+  /**
+   * Releases {@code n} slots starting at {@code pos} under a single lock acquisition. All slots
+   * must belong to the given size class.
+   */
+  void releaseSlots(int sizeClassIndex, Slab[] slabs, int[] slots, int pos, int n) {
+    final SizeClass sizeClass = sizeClasses[sizeClassIndex];
+    synchronized (sizeClass) {
+      for (int i = pos; i < pos + n; i++) {
+        assert slabs[i].sizeClass == sizeClass;
+        releaseSlot(sizeClass, slabs[i], slots[i]);
+      }
+    }
+  }
+
+  /**
+   * Creates a block for a slot taken from this allocator, zeroing the first {@code size} bytes of
+   * the slot if {@code zero} is true.
+   */
+  static MemoryBlock newBlock(Slab slab, int slot, long size, boolean zero) {
+    final Object baseObj = slab.memory.getBaseObject();
+    final long baseOffset = slab.memory.getBaseOffset() + (long) slot * slab.sizeClass.slotSize;
+    if (zero) {
+      PlatformDependent.UNSAFE.setMemory(baseObj, baseOffset, size, (byte) 0);
+    }
+    return new PooledMemoryBlock(baseObj, baseOffset, size, slab, slot);
+  }
+
+  private void freeSmall(Slab slab, int slot) {
+    final SizeClass sizeClass = slab.sizeClass;
+    synchronized (sizeClass) {
+      releaseSlot(sizeClass, slab, slot);
+    }
+  }
+
+  /** Returns a slab of the size class with at least one free slot. Must hold the class lock. */
+  private Slab availableSlab(SizeClass sizeClass) {
+    Slab slab = sizeClass.head;
+    if (slab == null) {
+      slab = new Slab(sizeClass, parent.allocateAligned(sizeClass.slabSize, PAGE_SIZE));
+      sizeClass.numSlabs++;
+      sizeClass.addFirst(slab);
+    }
+    return slab;
+  }
+
+  /** Takes a slot out of the slab, preferring recycled slots. Must hold the class lock. */
+  private static int takeSlot(SizeClass sizeClass, Slab slab) {
+    final int slot = slab.numRecycledSlots > 0 ? slab.takeRecycledSlot() : slab.takeFreshSlot();
+    if (slab.isFull()) {
+      sizeClass.remove(slab);
+    }
+    sizeClass.numUsedSlots++;
+    return slot;
+  }
+
+  /** Returns a slot to its slab, and releases the slab if it became empty. Must hold the lock. */
+  private void releaseSlot(SizeClass sizeClass, Slab slab, int slot) {
+    final boolean wasFull = slab.isFull();
+    slab.releaseSlot(slot);
+    sizeClass.numUsedSlots--;
+    if (wasFull) {
+      sizeClass.addFirst(slab);
+    }
+    if (slab.numUsedSlots == 0 && sizeClass.numSlabs > 1) {
+      sizeClass.remove(slab);
+      sizeClass.numSlabs--;
+      parent.free(slab.memory);
+    }
+  }
+
+  /**
+   * A {@link MemoryBlock} that occupies one slot of a {@link Slab}.
+   */
+  static final class PooledMemoryBlock extends MemoryBlock {
+    final Slab slab;
+    final int slot;
+
+    PooledMemoryBlock(Object obj, long offset, long length, Slab slab, int slot) {
+      super(obj, offset, length);
+      this.slab = slab;
+      this.slot = slot;
+    }
+  }
+
+  /**
+   * All slabs of one slot size. Slabs that have at least one free slot are kept in a doubly linked
+   * list, so both allocation and free are O(1) apart from the bitmap scan in {@link Slab}.
+   */
+  static final class SizeClass {
+    final int index;
+    final int slotSize;
+    final long slabSize;
+
+    /** Head of the list of slabs that are not full. */
+    Slab head;
+
+    /** Total number of slabs (full or not) of this size class. */
+    int numSlabs;
+
+    /** Total number of slots handed out across all slabs of this size class. */
+    long numUsedSlots;
+
+    SizeClass(int index, int slotSize) {
+      this.index = index;
+      this.slotSize = slotSize;
+      this.slabSize = Math.max(MIN_SLAB_SIZE, (long) slotSize * MIN_SLOTS_PER_SLAB);
+    }
+
+    void addFirst(Slab slab) {
+      assert slab.prev == null && slab.next == null && head != slab;
+      slab.next = head;
+      if (head != null) {
+        head.prev = slab;
+      }
+      head = slab;
+    }
+
+    void remove(Slab slab) {
+      if (slab.prev != null) {
+        slab.prev.next = slab.next;
+      } else {
+        assert head == slab;
+        head = slab.next;
+      }
+      if (slab.next != null) {
+        slab.next.prev = slab.prev;
+      }
+      slab.prev = null;
+      slab.next = null;
+    }
+  }
+
+  /**
+   * A large block of memory divided into equally sized slots. Slots that have never been handed
+   * out are allocated by bumping {@code nextFreshSlot}; slots that have been freed are tracked in a
+   * bitmap and preferred over fresh ones to keep the working set small.
+   */
+  static final class Slab {
+    final SizeClass sizeClass;
+    final MemoryBlock memory;
+    final int numSlots;
+
+    /** Bitmap of slots that have been freed and can be recycled. */
+    private final long[] recycledSlots;
+
+    /** Index of the first word in {@code recycledSlots} that may have a bit set. */
+    private int recycledHint;
+
+    int numRecycledSlots;
+    int nextFreshSlot;
+    int numUsedSlots;
+
+    Slab prev;
+    Slab next;
+
+    Slab(SizeClass sizeClass, MemoryBlock memory) {
+      this.sizeClass = sizeClass;
+      this.memory = memory;
+      this.numSlots = (int) (memory.size() / sizeClass.slotSize);
+      this.recycledSlots = new long[(numSlots + 63) >> 6];
+    }
+
+    boolean isFull() {
+      return numUsedSlots == numSlots;
+    }
+
+    int takeFreshSlot() {
+      assert nextFreshSlot < numSlots;
+      numUsedSlots++;
+      return nextFreshSlot++;
+    }
+
+    int takeRecycledSlot() {
+      assert numRecycledSlots > 0;
+      int wi = recycledHint;
+      while (recycledSlots[wi] == 0) {
+        wi++;
+      }
+      final long word = recycledSlots[wi];
+      final int bit = Long.numberOfTrailingZeros(word);
+      recycledSlots[wi] = word & ~(1L << bit);
+      recycledHint = wi;
+      numRecycledSlots--;
+      numUsedSlots++;
+      return (wi << 6) + bit;
+    }
+
+    void releaseSlot(int slot) {
+      assert slot >= 0 && slot < nextFreshSlot : "slot (" + slot + ") was never allocated";
+      final int wi = slot >> 6;
+      final long mask = 1L << (slot & 0x3f);
+      assert (recycledSlots[wi] & mask) == 0 : "slot (" + slot + ") freed twice";
+      recycledSlots[wi] |= mask;
+      if (wi < recycledHint) {
+        recycledHint = wi;
+      }
+      numRecycledSlots++;
+      numUsedSlots--;
+    }
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.databricks.unsafe.util.memory;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.databricks.unsafe.util.PlatformDependent;
+
+/**
+ * A block made of several segments, for blocks larger than a single JVM array or memory mapping
+ * can hold. The segments are either {@code long[]} arrays, as created by
+ * {@link HeapMemoryAllocator#allocateSegmented(long)}, or off-heap regions, as created by
+ * {@link MappedFileMemoryAllocator} for blocks larger than a mapped chunk.
+ *
+ * All segments have the same power-of-2 size in bytes, except for the last one, which may be
+ * shorter. Byte {@code i} of the block is byte {@code i & (segmentSize - 1)} of segment
+ * {@code i >>> segmentShift}, which starts at {@code getSegmentOffsets()[s]} relative to
+ * {@code getSegmentObjects()[s]}. The array classes such as
+ * {@link com.databricks.unsafe.util.LongArray} detect segmented blocks and address them with 64-bit
+ * indexes, and {@link #fill} and {@link #copy} handle them too. Other operations that need
+ * contiguous memory, e.g. {@link #slice(long, long)}, {@link #compare} and
+ * {@link #toByteBuffer()}, are not supported.
+ *
+ * {@link #getBaseObject()} and {@link #getBaseOffset()} point at the start of the first segment.
+ */
+public final class SegmentedMemoryBlock extends MemoryBlock {
+
+  /** The base object of each segment; for in-heap blocks, the {@code long[][]} of segments. */
+  private final Object[] segmentObjects;
+
+  private final long[] segmentOffsets;
+
+  private final int segmentShift;
+
+  private final long segmentMask;
+
+  /**
+   * Creates a block of in-heap segments.
+   */
+  SegmentedMemoryBlock(long[][] segments, int segmentShift, long length) {
+    this(segments, heapOffsets(segments.length), segmentShift, length);
+  }
+
+  /**
+   * Creates a block of segments that start at {@code segmentOffsets} relative to
+   * {@code segmentObjects}, which are null for off-heap segments.
+   */
+  SegmentedMemoryBlock(
+      Object[] segmentObjects, long[] segmentOffsets, int segmentShift, long length) {
+    super(segmentObjects[0], segmentOffsets[0], length);
+    assert segmentObjects.length == segmentOffsets.length : "one offset per segment expected";
+    this.segmentObjects = segmentObjects;
+    this.segmentOffsets = segmentOffsets;
+    this.segmentShift = segmentShift;
+    this.segmentMask = (1L << segmentShift) - 1;
+  }
+
+  private static long[] heapOffsets(int numSegments) {
+    final long[] offsets = new long[numSegments];
+    Arrays.fill(offsets, PlatformDependent.LONG_ARRAY_OFFSET);
+    return offsets;
+  }
+
+  /**
+   * Returns the {@code long[]} segments of an in-heap block. Must not be modified.
+   *
+   * @throws UnsupportedOperationException if the segments are off-heap
+   */
+  public long[][] getSegments() {
+    if (!(segmentObjects instanceof long[][])) {
+      throw new UnsupportedOperationException("segments are not long arrays");
+    }
+    return (long[][]) segmentObjects;
+  }
+
+  /**
+   * Returns the base object of each segment, which is null for off-heap segments. Must not be
+   * modified.
+   */
+  public Object[] getSegmentObjects() {
+    return segmentObjects;
+  }
+
+  /**
+   * Returns the address of the start of each segment, relative to its base object. Must not be
+   * modified.
+   */
+  public long[] getSegmentOffsets() {
+    return segmentOffsets;
+  }
+
+  /**
+   * Returns the base-2 logarithm of the segment size in bytes.
+   */
+  public int getSegmentShift() {
+    return segmentShift;
+  }
+
+  @Override
+  Object objAt(long offset) {
+    return segmentObjects[(int) (offset >>> segmentShift)];
+  }
+
+  @Override
+  long offsetAt(long offset) {
+    return segmentOffsets[(int) (offset >>> segmentShift)] + (offset & segmentMask);
+  }
+
+  @Override
+  long contiguousBytesAt(long offset) {
+    return Math.min(segmentMask + 1 - (offset & segmentMask), length - offset);
+  }
+
+  @Override
+  long contiguousBytesBefore(long end) {
+    return ((end - 1) & segmentMask) + 1;
+  }
+
+  @Override
+  public void fill(long offset, long length, byte value) {
+    assert offset >= 0 && offset + length <= this.length : "range out of bounds";
+    while (length > 0) {
+      final long run = Math.min(length, contiguousBytesAt(offset));
+      PlatformDependent.UNSAFE.setMemory(objAt(offset), offsetAt(offset), run, value);
+      offset += run;
+      length -= run;
+    }
+  }
+
+  /**
+   * Not supported, since a slice may span several segments.
+   */
+  @Override
+  public MemoryBlock slice(long offset, long length) {
+    throw new UnsupportedOperationException("segmented blocks cannot be sliced");
+  }
+
+  /**
+   * Not supported, since a buffer has to be contiguous.
+   */
+  @Override
+  public ByteBuffer toByteBuffer() {
+    throw new UnsupportedOperationException("segmented blocks cannot be viewed as a ByteBuffer");
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.databricks.unsafe.util.memory;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed number of long counters that are cheap to update from many threads at once.
+ *
+ * Every counter is split into one cell per stripe, and each thread updates the cells of the stripe
+ * its thread id hashes to. All counters of a stripe are laid out next to each other, and stripes
+ * are separated by a cache line of padding, so threads on different stripes don't contend on the
+ * same cache line. Reading a counter sums all its cells and is therefore comparatively slow, and
+ * not atomic with respect to concurrent updates.
+ */
+final class StripedCounters {
+
+  /** Number of longs in a cache line. */
+  private static final int PADDING = 8;
+
+  private final AtomicLongArray cells;
+
+  private final int numCounters;
+
+  /** Distance between the cells of one counter in two adjacent stripes. */
+  private final int stride;
+
+  private final int stripeMask;
+
+  StripedCounters(int numCounters) {
+    this(numCounters, Runtime.getRuntime().availableProcessors() * 2);
+  }
+
+  StripedCounters(int numCounters, int minStripes) {
+    final int numStripes = Integer.highestOneBit(Math.max(1, Math.min(minStripes, 64)) * 2 - 1);
+    this.numCounters = numCounters;
+    this.stride = (numCounters + PADDING - 1) / PADDING * PADDING + PADDING;
+    this.stripeMask = numStripes - 1;
+    this.cells = new AtomicLongArray(numStripes * stride);
+  }
+
+  /**
+   * Adds {@code delta} to the given counter and returns the new value of the calling thread's cell
+   * (not of the whole counter).
+   */
+  long add(int counter, long delta) {
+    assert counter >= 0 && counter < numCounters : "counter (" + counter + ") out of range";
+    return cells.addAndGet(stripe() * stride + counter, delta);
+  }
+
+  /**
+   * Returns the sum of all cells of the given counter.
+   */
+  long sum(int counter) {
+    assert counter >= 0 && counter < numCounters : "counter (" + counter + ") out of range";
+    long sum = 0;
+    for (int i = counter; i < cells.length(); i += stride) {
+      sum += cells.get(i);
+    }
+    return sum;
+  }
+
+  private int stripe() {
+    // Fibonacci hashing spreads sequential thread ids over the stripes.
+    final long h = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+    return (int) (h >>> 32) & stripeMask;
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util.memory;
+
+import java.util.Arrays;
+
+import com.databricks.unsafe.util.thread.DefaultThreadFactory;
+import com.databricks.unsafe.util.thread.FastThreadLocal;
+import com.databricks.unsafe.util.thread.FastThreadLocalThread;
+
+/**
+ * A {@link MemoryAllocator} that keeps a small per-thread cache of free slots in front of a shared
+ * {@link PooledMemoryAllocator}, similar to the thread caches in jemalloc.
+ *
+ * Allocating and freeing a block whose size class has a cached slot only touches the calling
+ * thread's cache and thus takes no lock. A cache miss refills half of the cache from the shared
+ * pool, and a full cache flushes half of its slots back to the shared pool, both under a single
+ * lock acquisition. Blocks larger than {@link #MAX_CACHED_SIZE} bypass the cache.
+ *
+ * The caches are stored in a {@link FastThreadLocal}, so they are returned to the shared pool by
+ * {@link FastThreadLocal#removeAll()}, which threads created by {@link DefaultThreadFactory} call
+ * when they terminate. Other threads should call {@link #flushThreadCache()} (or
+ * {@link FastThreadLocal#removeAll()}) before exiting; the lock-free fast path also requires a
+ * {@link FastThreadLocalThread}.
+ */
+public class ThreadCachingMemoryAllocator implements MemoryAllocator {
+
+  /** Largest block that is cached per thread. */
+  public static final int MAX_CACHED_SIZE = 32 * 1024;
+
+  /** Upper bound on the number of bytes a single size class caches per thread. */
+  private static final int MAX_CACHED_BYTES_PER_SIZE_CLASS = 64 * 1024;
+
+  private static final int MAX_SLOTS_PER_SIZE_CLASS = 64;
+
+  private static final int MIN_SLOTS_PER_SIZE_CLASS = 4;
+
+  private final PooledMemoryAllocator pool;
+
+  private final FastThreadLocal<ThreadCache> threadCache = new FastThreadLocal<ThreadCache>() {
+    @Override
+    protected ThreadCache initialValue() {
+      return new ThreadCache();
+    }
+
+    @Override
+    protected void onRemoval(ThreadCache cache) {
+      cache.flushAll();
+    }
+  };
+
+  /**
+   * Creates a thread caching allocator in front of a new {@link PooledMemoryAllocator}.
+   */
+  public ThreadCachingMemoryAllocator() {
+    this(new PooledMemoryAllocator());
+  }
+
+  /**
+   * Creates a thread caching allocator in front of the given shared pool.
+   */
+  public ThreadCachingMemoryAllocator(PooledMemoryAllocator pool) {
+    this.pool = pool;
+  }
+
+  @Override
+  public MemoryBlock allocate(long size) throws OutOfMemoryError {
+    if (size > MAX_CACHED_SIZE || size <= 0) {
+      return pool.allocate(size);
+    }
+    final int sizeClassIndex = PooledMemoryAllocator.sizeClassIndex((int) size);
+    return threadCache.get().allocate(sizeClassIndex, size, true);
+  }
+
+  @Override
+  public MemoryBlock allocateUninitialized(long size) throws OutOfMemoryError {
+    if (size > MAX_CACHED_SIZE || size <= 0) {
+      return pool.allocateUninitialized(size);
+    }
+    final int sizeClassIndex = PooledMemoryAllocator.sizeClassIndex((int) size);
+    return threadCache.get().allocate(sizeClassIndex, size, false);
+  }
+
+  /**
+   * Aligned blocks bypass the cache and are allocated from the shared pool.
+   */
+  @Override
+  public MemoryBlock allocateAligned(long size, long alignment) throws OutOfMemoryError {
+    return pool.allocateAligned(size, alignment);
+  }
+
+  /**
+   * Blocks that stay in their slot are resized without touching the cache. Blocks that move are
+   * allocated and freed through the cache like any other block.
+   */
+  @Override
+  public MemoryBlock reallocate(MemoryBlock memory, long newSize) throws OutOfMemoryError {
+    if (memory instanceof PooledMemoryAllocator.PooledMemoryBlock) {
+      final PooledMemoryAllocator.PooledMemoryBlock block =
+        (PooledMemoryAllocator.PooledMemoryBlock) memory;
+      if (!PooledMemoryAllocator.fitsInSlot(block, newSize)) {
+        return MemoryAllocators.reallocateByCopy(this, memory, newSize);
+      }
+    }
+    return pool.reallocate(memory, newSize);
+  }
+
+  @Override
+  public void free(MemoryBlock memory) {
+    if (memory instanceof PooledMemoryAllocator.PooledMemoryBlock) {
+      final PooledMemoryAllocator.PooledMemoryBlock block =
+        (PooledMemoryAllocator.PooledMemoryBlock) memory;
+      // Check the slot size rather than the block size, as the block may have been reallocated.
+      if (block.slab.sizeClass.slotSize <= MAX_CACHED_SIZE) {
+        threadCache.get().free(block.slab.sizeClass.index, block.slab, block.slot);
+        return;
+      }
+    }
+    pool.free(memory);
+  }
+
+  /**
+   * Returns all slots cached by the calling thread to the shared pool.
+   */
+  public void flushThreadCache() {
+    threadCache.remove();
+  }
+
+  /**
+   * Per-thread cache. Buckets are created lazily, so a thread only pays for the classes it uses.
+   */
+  private final class ThreadCache {
+    private final Bucket[] buckets =
+      new Bucket[PooledMemoryAllocator.sizeClassIndex(MAX_CACHED_SIZE) + 1];
+
+    MemoryBlock allocate(int sizeClassIndex, long size, boolean zero) {
+      final Bucket bucket = bucket(sizeClassIndex);
+      if (bucket.count == 0) {
+        final int n = bucket.capacity / 2;
+        pool.takeSlots(sizeClassIndex, bucket.slabs, bucket.slots, bucket.dirty, 0, n);
+        bucket.count = n;
+      }
+      final int i = --bucket.count;
+      final PooledMemoryAllocator.Slab slab = bucket.slabs[i];
+      bucket.slabs[i] = null;
+      return PooledMemoryAllocator.newBlock(slab, bucket.slots[i], size, zero && bucket.dirty[i]);
+    }
+
+    void free(int sizeClassIndex, PooledMemoryAllocator.Slab slab, int slot) {
+      final Bucket bucket = bucket(sizeClassIndex);
+      if (bucket.count == bucket.capacity) {
+        // Flush the least recently freed half, keeping the hottest slots in the cache.
+        final int n = bucket.capacity / 2;
+        pool.releaseSlots(sizeClassIndex, bucket.slabs, bucket.slots, 0, n);
+        System.arraycopy(bucket.slabs, n, bucket.slabs, 0, bucket.count - n);
+        System.arraycopy(bucket.slots, n, bucket.slots, 0, bucket.count - n);
+        System.arraycopy(bucket.dirty, n, bucket.dirty, 0, bucket.count - n);
+        Arrays.fill(bucket.slabs, bucket.count - n, bucket.count, null);
+        bucket.count -= n;
+      }
+      final int i = bucket.count++;
+      bucket.slabs[i] = slab;
+      bucket.slots[i] = slot;
+      bucket.dirty[i] = true;
+    }
+
+    void flushAll() {
+      for (int i = 0; i < buckets.length; i++) {
+        final Bucket bucket = buckets[i];
+        if (bucket != null && bucket.count > 0) {
+          pool.releaseSlots(i, bucket.slabs, bucket.slots, 0, bucket.count);
+          Arrays.fill(bucket.slabs, 0, bucket.count, null);
+          bucket.count = 0;
+        }
+      }
+    }
+
+    private Bucket bucket(int sizeClassIndex) {
+      Bucket bucket = buckets[sizeClassIndex];
+      if (bucket == null) {
+        bucket = new Bucket(PooledMemoryAllocator.slotSize(sizeClassIndex));
+        buckets[sizeClassIndex] = bucket;
+      }
+      return bucket;
+    }
+  }
+
+  /**
+   * A LIFO stack of cached slots of one size class.
+   */
+  private static final class Bucket {
+    final int capacity;
+    final PooledMemoryAllocator.Slab[] slabs;
+    final int[] slots;
+
+    /** Whether the slot may hold stale data and needs to be zeroed before it is handed out. */
+    final boolean[] dirty;
+
+    int count;
+
+    Bucket(int slotSize) {
+      capacity = Math.max(MIN_SLOTS_PER_SIZE_CLASS,
+        Math.min(MAX_SLOTS_PER_SIZE_CLASS, MAX_CACHED_BYTES_PER_SIZE_CLASS / slotSize));
+      slabs = new PooledMemoryAllocator.Slab[capacity];
+      slots = new int[capacity];
+      dirty = new boolean[capacity];
+    }
+  }
+}
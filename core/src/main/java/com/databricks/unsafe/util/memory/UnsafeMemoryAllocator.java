@@ -30,10 +30,60 @@ public class UnsafeMemoryAllocator implements MemoryAllocator {
     return new MemoryBlock(null, address, size);
   }
 
+  @Override
+  public MemoryBlock allocateUninitialized(long size) throws OutOfMemoryError {
+    long address = PlatformDependent.UNSAFE.allocateMemory(size);
+    return new MemoryBlock(null, address, size);
+  }
+
+  /**
+   * Over-allocates by {@code alignment - 1} bytes and returns the aligned part of the allocation,
+   * remembering the original address so the whole allocation is released on free.
+   */
+  @Override
+  public MemoryBlock allocateAligned(long size, long alignment) throws OutOfMemoryError {
+    assert Long.bitCount(alignment) == 1 : "alignment (" + alignment + ") should be a power of 2";
+    long address = PlatformDependent.UNSAFE.allocateMemory(size + alignment - 1);
+    long alignedAddress = (address + alignment - 1) & -alignment;
+    PlatformDependent.UNSAFE.setMemory(alignedAddress, size, (byte) 0);
+    return new AlignedMemoryBlock(alignedAddress, size, address);
+  }
+
+  /**
+   * Grows or shrinks the block with {@code Unsafe.reallocateMemory}, which moves it only if the
+   * native allocator cannot resize it in place. Aligned blocks are copied to a plain allocation.
+   */
+  @Override
+  public MemoryBlock reallocate(MemoryBlock memory, long newSize) throws OutOfMemoryError {
+    if (memory instanceof AlignedMemoryBlock) {
+      return MemoryAllocators.reallocateByCopy(this, memory, newSize);
+    }
+    assert memory.obj == null : "block was not allocated by this allocator";
+    long address = PlatformDependent.UNSAFE.reallocateMemory(memory.offset, newSize);
+    MemoryBlock block = new MemoryBlock(null, address, newSize);
+    MemoryAllocators.zeroTail(block, memory.length);
+    return block;
+  }
+
   @Override
   public void free(MemoryBlock memory) {
-    if (memory.obj != null) {
+    if (memory instanceof AlignedMemoryBlock) {
+      PlatformDependent.UNSAFE.freeMemory(((AlignedMemoryBlock) memory).allocatedAddress);
+    } else if (memory.obj == null) {
       PlatformDependent.UNSAFE.freeMemory(memory.offset);
     }
   }
+
+  /**
+   * A block allocated by {@link #allocateAligned(long, long)}, which does not start at the address
+   * returned by {@code Unsafe.allocateMemory}.
+   */
+  private static final class AlignedMemoryBlock extends MemoryBlock {
+    final long allocatedAddress;
+
+    AlignedMemoryBlock(long address, long length, long allocatedAddress) {
+      super(null, address, length);
+      this.allocatedAddress = allocatedAddress;
+    }
+  }
 }
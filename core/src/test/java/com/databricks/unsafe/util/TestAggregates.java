@@ -0,0 +1,316 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.databricks.unsafe.util;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.databricks.unsafe.util.memory.HeapMemoryAllocator;
+import com.databricks.unsafe.util.memory.MemoryAllocator;
+import com.databricks.unsafe.util.memory.MemoryBlock;
+import com.databricks.unsafe.util.thread.DefaultThreadFactory;
+
+public class TestAggregates {
+
+  private static ExecutorService executor;
+
+  @BeforeClass
+  public static void setUp() {
+    executor = Executors.newCachedThreadPool(new DefaultThreadFactory("aggregate", true));
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    executor.shutdown();
+  }
+
+  private static final int N = 1003;
+
+  private static long[] randomLongs(int n, long seed) {
+    final Random random = new Random(seed);
+    final long[] values = new long[n];
+    for (int i = 0; i < n; i++) {
+      values[i] = random.nextLong();
+    }
+    return values;
+  }
+
+  private static double[] randomDoubles(int n, long seed) {
+    final Random random = new Random(seed);
+    final double[] values = new double[n];
+    for (int i = 0; i < n; i++) {
+      values[i] = random.nextInt(2000) - 1000;
+    }
+    return values;
+  }
+
+  /** Returns the same values in a JVM array, off-heap and in a segmented block. */
+  private static LongArray[] longArrays(long[] values) {
+    final LongArray offHeap = new LongArray(MemoryAllocator.UNSAFE.allocate(values.length * 8L));
+    final LongArray segmented =
+      new LongArray(new HeapMemoryAllocator().allocateSegmented(values.length * 8L, 7));
+    offHeap.copyFrom(values, 0, 0, values.length);
+    segmented.copyFrom(values, 0, 0, values.length);
+    return new LongArray[] {
+      new LongArray(MemoryBlock.fromLongArray(values)), offHeap, segmented };
+  }
+
+  private static DoubleArray[] doubleArrays(double[] values) {
+    final DoubleArray offHeap =
+      new DoubleArray(MemoryAllocator.UNSAFE.allocate(values.length * 8L));
+    final DoubleArray segmented =
+      new DoubleArray(new HeapMemoryAllocator().allocateSegmented(values.length * 8L, 7));
+    offHeap.copyFrom(values, 0, 0, values.length);
+    segmented.copyFrom(values, 0, 0, values.length);
+    return new DoubleArray[] {
+      new DoubleArray(MemoryBlock.fromDoubleArray(values)), offHeap, segmented };
+  }
+
+  private static void free(LongArray[] arrays) {
+    MemoryAllocator.UNSAFE.free(arrays[1].memoryBlock());
+  }
+
+  private static void free(DoubleArray[] arrays) {
+    MemoryAllocator.UNSAFE.free(arrays[1].memoryBlock());
+  }
+
+  @Test
+  public void longSumMinMax() {
+    final long[] values = randomLongs(N, 1);
+    final LongArray[] arrays = longArrays(values);
+    try {
+      for (LongArray arr : arrays) {
+        for (int from = 0; from < 20; from += 7) {
+          for (int to = N; to > N - 20; to -= 9) {
+            long sum = 0;
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (int i = from; i < to; i++) {
+              sum += values[i];
+              min = Math.min(min, values[i]);
+              max = Math.max(max, values[i]);
+            }
+            Assert.assertEquals(sum, Aggregates.sum(arr, from, to));
+            Assert.assertEquals((double) sum / (to - from), Aggregates.mean(arr, from, to), 0);
+            Assert.assertEquals(min, Aggregates.min(arr, from, to));
+            Assert.assertEquals(max, Aggregates.max(arr, from, to));
+          }
+        }
+        Assert.assertEquals(0, Aggregates.sum(arr, 5, 5));
+        Assert.assertTrue(Double.isNaN(Aggregates.mean(arr, 5, 5)));
+        Assert.assertEquals(Long.MAX_VALUE, Aggregates.min(arr, 5, 5));
+        Assert.assertEquals(Long.MIN_VALUE, Aggregates.max(arr, 5, 5));
+      }
+    } finally {
+      free(arrays);
+    }
+  }
+
+  @Test
+  public void doubleSumMeanMinMax() {
+    // Small integers, so that sums are exact whatever the order of additions.
+    final double[] values = randomDoubles(N, 2);
+    final DoubleArray[] arrays = doubleArrays(values);
+    try {
+      for (DoubleArray arr : arrays) {
+        for (int from = 0; from < 20; from += 7) {
+          for (int to = N; to > N - 20; to -= 9) {
+            double sum = 0;
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = from; i < to; i++) {
+              sum += values[i];
+              min = Math.min(min, values[i]);
+              max = Math.max(max, values[i]);
+            }
+            Assert.assertEquals(sum, Aggregates.sum(arr, from, to), 0);
+            Assert.assertEquals(sum / (to - from), Aggregates.mean(arr, from, to), 0);
+            Assert.assertEquals(min, Aggregates.min(arr, from, to), 0);
+            Assert.assertEquals(max, Aggregates.max(arr, from, to), 0);
+          }
+        }
+        Assert.assertEquals(0, Aggregates.sum(arr, 5, 5), 0);
+        Assert.assertTrue(Double.isNaN(Aggregates.mean(arr, 5, 5)));
+        Assert.assertEquals(Double.POSITIVE_INFINITY, Aggregates.min(arr, 5, 5), 0);
+        Assert.assertEquals(Double.NEGATIVE_INFINITY, Aggregates.max(arr, 5, 5), 0);
+      }
+    } finally {
+      free(arrays);
+    }
+  }
+
+  @Test
+  public void minMaxWithNaN() {
+    final double[] values = randomDoubles(N, 3);
+    values[500] = Double.NaN;
+    final DoubleArray[] arrays = doubleArrays(values);
+    try {
+      for (DoubleArray arr : arrays) {
+        Assert.assertTrue(Double.isNaN(Aggregates.min(arr, 0, N)));
+        Assert.assertTrue(Double.isNaN(Aggregates.max(arr, 0, N)));
+        Assert.assertFalse(Double.isNaN(Aggregates.max(arr, 0, 500)));
+      }
+    } finally {
+      free(arrays);
+    }
+  }
+
+  @Test
+  public void dot() {
+    final double[] a = randomDoubles(N, 4);
+    final double[] b = randomDoubles(N, 5);
+    final DoubleArray[] arraysA = doubleArrays(a);
+    final DoubleArray[] arraysB = doubleArrays(b);
+    try {
+      for (int from = 0; from < 10; from += 3) {
+        double expected = 0;
+        for (int i = from; i < N - 1; i++) {
+          expected += a[i] * b[i];
+        }
+        for (DoubleArray arrA : arraysA) {
+          for (DoubleArray arrB : arraysB) {
+            Assert.assertEquals(expected, Aggregates.dot(arrA, arrB, from, N - 1), 0);
+          }
+        }
+      }
+    } finally {
+      free(arraysA);
+      free(arraysB);
+    }
+  }
+
+  @Test
+  public void maskedSum() {
+    final long[] longs = randomLongs(N, 6);
+    final double[] doubles = randomDoubles(N, 7);
+    final BitSet mask = new BitSet(MemoryBlock.fromLongArray(new long[(N + 63) / 64]));
+    final Random random = new Random(8);
+    for (int i = 0; i < N; i++) {
+      // A mix of full, empty and partial words.
+      final int word = i / 64;
+      if (word % 3 == 0 || (word % 3 == 1 && random.nextBoolean())) {
+        mask.set(i);
+      }
+    }
+    final LongArray[] longArrays = longArrays(longs);
+    final DoubleArray[] doubleArrays = doubleArrays(doubles);
+    try {
+      for (int from = 0; from < 70; from += 13) {
+        for (int to = N; to > N - 70; to -= 17) {
+          long count = 0;
+          long longSum = 0;
+          double doubleSum = 0;
+          for (int i = from; i < to; i++) {
+            if (mask.isSet(i)) {
+              count++;
+              longSum += longs[i];
+              doubleSum += doubles[i];
+            }
+          }
+          Assert.assertEquals(count, Aggregates.count(mask, from, to));
+          for (LongArray arr : longArrays) {
+            Assert.assertEquals(longSum, Aggregates.maskedSum(arr, mask, from, to));
+          }
+          for (DoubleArray arr : doubleArrays) {
+            Assert.assertEquals(doubleSum, Aggregates.maskedSum(arr, mask, from, to), 0);
+          }
+        }
+      }
+    } finally {
+      free(longArrays);
+      free(doubleArrays);
+    }
+  }
+
+  @Test
+  public void countSkipsNaN() {
+    final double[] values = randomDoubles(N, 9);
+    for (int i = 0; i < N; i += 5) {
+      values[i] = Double.NaN;
+    }
+    final DoubleArray[] arrays = doubleArrays(values);
+    try {
+      for (DoubleArray arr : arrays) {
+        for (int from = 0; from < 20; from += 7) {
+          for (int to = N; to > N - 20; to -= 9) {
+            long count = 0;
+            for (int i = from; i < to; i++) {
+              if (!Double.isNaN(values[i])) {
+                count++;
+              }
+            }
+            Assert.assertEquals(count, Aggregates.count(arr, from, to));
+          }
+        }
+        Assert.assertEquals(0, Aggregates.count(arr, 5, 5));
+      }
+    } finally {
+      free(arrays);
+    }
+  }
+
+  @Test
+  public void histogram() {
+    final double[] values = {-1, 0, 0.5, 2.49, 2.5, 9.99, 10, 10.01, Double.NaN, 5};
+    final DoubleArray[] arrays = doubleArrays(values);
+    try {
+      for (DoubleArray arr : arrays) {
+        final long[] counts = new long[4];
+        Assert.assertEquals(7, Aggregates.histogram(arr, 0, values.length, 0, 10, counts));
+        Assert.assertArrayEquals(new long[] {3, 1, 1, 2}, counts);
+        // Counts are added to.
+        Assert.assertEquals(1, Aggregates.histogram(arr, 0, 2, 0, 10, counts));
+        Assert.assertArrayEquals(new long[] {4, 1, 1, 2}, counts);
+      }
+    } finally {
+      free(arrays);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void histogramRejectsEmptyRange() {
+    Aggregates.histogram(
+      new DoubleArray(MemoryBlock.fromDoubleArray(new double[1])), 0, 1, 1, 1, new long[4]);
+  }
+
+  @Test
+  public void parallel() {
+    final int n = (int) (Aggregates.MIN_PARALLEL_CHUNK_SIZE * 3 + 17);
+    final long[] longs = randomLongs(n, 9);
+    final double[] doubles = randomDoubles(n, 10);
+    final LongArray longArray = new LongArray(MemoryBlock.fromLongArray(longs));
+    final DoubleArray doubleArray = new DoubleArray(MemoryBlock.fromDoubleArray(doubles));
+    for (int parallelism = 1; parallelism <= 4; parallelism++) {
+      Assert.assertEquals(
+        Aggregates.sum(longArray, 3, n),
+        Aggregates.sum(longArray, 3, n, executor, parallelism));
+      Assert.assertEquals(
+        Aggregates.sum(doubleArray, 3, n),
+        Aggregates.sum(doubleArray, 3, n, executor, parallelism), 0);
+      Assert.assertEquals(
+        Aggregates.dot(doubleArray, doubleArray, 3, n),
+        Aggregates.dot(doubleArray, doubleArray, 3, n, executor, parallelism), 0);
+    }
+  }
+}
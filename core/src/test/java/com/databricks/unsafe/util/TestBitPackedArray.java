@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.databricks.unsafe.util.memory.MemoryAllocator;
+import com.databricks.unsafe.util.memory.MemoryBlock;
+
+public class TestBitPackedArray {
+
+  @Test
+  public void bitsRequired() {
+    Assert.assertEquals(0, BitPackedArray.bitsRequired(0));
+    Assert.assertEquals(1, BitPackedArray.bitsRequired(1));
+    Assert.assertEquals(8, BitPackedArray.bitsRequired(255));
+    Assert.assertEquals(9, BitPackedArray.bitsRequired(256));
+    Assert.assertEquals(63, BitPackedArray.bitsRequired(Long.MAX_VALUE));
+    Assert.assertEquals(64, BitPackedArray.bitsRequired(-1));
+  }
+
+  @Test
+  public void setAndGetAllWidths() {
+    final Random random = new Random(1);
+    for (MemoryAllocator allocator : new MemoryAllocator[] {
+        MemoryAllocator.HEAP, MemoryAllocator.UNSAFE }) {
+      for (int bitWidth = 0; bitWidth <= 64; bitWidth++) {
+        final long mask = bitWidth == 64 ? -1L : (1L << bitWidth) - 1;
+        final long[] values = new long[201];
+        for (int i = 0; i < values.length; i++) {
+          values[i] = random.nextLong() & mask;
+        }
+        final BitPackedArray packed = new BitPackedArray(allocator, values.length, bitWidth);
+        try {
+          Assert.assertEquals(bitWidth, packed.bitWidth());
+          Assert.assertEquals(values.length, packed.size());
+          for (int i = 0; i < values.length; i++) {
+            Assert.assertEquals(0, packed.get(i));
+            packed.set(i, values[i]);
+          }
+          // Overwriting a value leaves its neighbours alone.
+          packed.set(100, mask);
+          packed.set(100, values[100]);
+          for (int i = 0; i < values.length; i++) {
+            Assert.assertEquals(values[i], packed.get(i));
+          }
+        } finally {
+          packed.free();
+        }
+      }
+    }
+  }
+
+  @Test
+  public void encodeAndDecode() {
+    final Random random = new Random(2);
+    final long[] values = new long[1000];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = random.nextInt(1 << 13);
+    }
+    final LongArray src = new LongArray(MemoryBlock.fromLongArray(values));
+    final BitPackedArray packed = BitPackedArray.encode(src, 10, 990, MemoryAllocator.HEAP);
+    try {
+      Assert.assertEquals(980, packed.size());
+      Assert.assertEquals(13, packed.bitWidth());
+      Assert.assertEquals((980 * 13 + 63) / 64 * 8, packed.sizeInBytes());
+      for (int i = 0; i < 980; i++) {
+        Assert.assertEquals(values[10 + i], packed.get(i));
+      }
+      for (int from = 0; from < 70; from += 23) {
+        final LongArray dst = new LongArray(MemoryBlock.fromLongArray(new long[983]));
+        packed.decode(from, 980 - from, dst, 3);
+        for (int i = from; i < 980 - from; i++) {
+          Assert.assertEquals(values[10 + i], dst.get(3 + i - from));
+        }
+      }
+    } finally {
+      packed.free();
+    }
+  }
+
+  @Test
+  public void decodeZeroWidth() {
+    final BitPackedArray packed = new BitPackedArray(MemoryAllocator.HEAP, 100, 0);
+    final LongArray dst = new LongArray(MemoryBlock.fromLongArray(new long[100]));
+    dst.fill(0, 100, 7);
+    packed.decode(0, 100, dst, 0);
+    for (int i = 0; i < 100; i++) {
+      Assert.assertEquals(0, dst.get(i));
+    }
+  }
+}
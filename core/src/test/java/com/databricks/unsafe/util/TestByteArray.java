@@ -0,0 +1,67 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.databricks.unsafe.util.memory.HeapMemoryAllocator;
+import com.databricks.unsafe.util.memory.MemoryAllocator;
+import com.databricks.unsafe.util.memory.MemoryBlock;
+
+public class TestByteArray {
+
+  @Test
+  public void basicTest() {
+    byte[] bytes = new byte[3];
+    ByteArray arr = new ByteArray(MemoryBlock.fromByteArray(bytes));
+    arr.set(0, (byte) 1);
+    arr.set(1, (byte) -2);
+    arr.set(2, (byte) 3);
+    Assert.assertEquals(3, arr.size());
+    Assert.assertEquals((byte) -2, arr.get(1));
+    Assert.assertArrayEquals(new byte[] {1, -2, 3}, bytes);
+    Assert.assertArrayEquals(bytes, arr.toJvmArray());
+  }
+
+  @Test
+  public void offHeapCopyAndFill() {
+    ByteArray arr = new ByteArray(MemoryAllocator.UNSAFE.allocate(101));
+    try {
+      arr.fill(0, 101, (byte) 7);
+      arr.copyFrom(new byte[] {1, 2, 3, 4}, 1, 50, 3);
+      ByteArray.copy(arr, 49, arr, 51, 4);
+      byte[] dst = new byte[8];
+      arr.copyTo(48, dst, 0, 8);
+      Assert.assertArrayEquals(new byte[] {7, 7, 2, 7, 2, 3, 4, 7}, dst);
+      Assert.assertEquals((byte) 7, arr.get(100));
+    } finally {
+      MemoryAllocator.UNSAFE.free(arr.memoryBlock());
+    }
+  }
+
+  @Test
+  public void segmented() {
+    ByteArray arr = new ByteArray(new HeapMemoryAllocator().allocateSegmented(64, 4));
+    for (int i = 0; i < 64; i++) {
+      arr.set(i, (byte) i);
+    }
+    for (int i = 0; i < 64; i++) {
+      Assert.assertEquals((byte) i, arr.get(i));
+    }
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.databricks.unsafe.util.memory.MemoryAllocator;
+import com.databricks.unsafe.util.memory.MemoryBlock;
+
+public class TestDeltaEncodedArray {
+
+  private static void checkRoundTrip(long[] values, MemoryAllocator allocator) {
+    final LongArray src = new LongArray(MemoryBlock.fromLongArray(values));
+    final DeltaEncodedArray array = DeltaEncodedArray.encode(src, 0, values.length, allocator);
+    try {
+      Assert.assertEquals(values.length, array.size());
+      for (int i = 0; i < values.length; i++) {
+        Assert.assertEquals(values[i], array.get(i));
+      }
+      final LongArray dst = new LongArray(MemoryBlock.fromLongArray(new long[values.length + 1]));
+      for (int from = 0; from < Math.min(values.length / 2 + 1, 300); from += 61) {
+        final int to = values.length - from / 2;
+        array.decode(from, to, dst, 1);
+        for (int i = from; i < to; i++) {
+          Assert.assertEquals(values[i], dst.get(1 + i - from));
+        }
+      }
+    } finally {
+      array.free();
+    }
+  }
+
+  @Test
+  public void sortedIds() {
+    final Random random = new Random(1);
+    final long[] values = new long[1000];
+    long id = 1L << 40;
+    for (int i = 0; i < values.length; i++) {
+      id += 1 + random.nextInt(8);
+      values[i] = id;
+    }
+    checkRoundTrip(values, MemoryAllocator.HEAP);
+    checkRoundTrip(values, MemoryAllocator.UNSAFE);
+    final DeltaEncodedArray array = DeltaEncodedArray.encode(
+      new LongArray(MemoryBlock.fromLongArray(values)), 0, values.length, MemoryAllocator.HEAP);
+    // Differences between 1 and 8 take 3 bits each.
+    Assert.assertTrue(array.sizeInBytes() < values.length * 8 / 8);
+    array.free();
+  }
+
+  @Test
+  public void constantStep() {
+    final long[] values = new long[300];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = 1000 - 7L * i;
+    }
+    checkRoundTrip(values, MemoryAllocator.HEAP);
+    final DeltaEncodedArray array = DeltaEncodedArray.encode(
+      new LongArray(MemoryBlock.fromLongArray(values)), 0, values.length, MemoryAllocator.HEAP);
+    // Only the headers of the three blocks and one word of data.
+    Assert.assertEquals(3 * 24 + 8, array.sizeInBytes());
+    array.free();
+  }
+
+  @Test
+  public void unsortedValuesWrapAround() {
+    final Random random = new Random(2);
+    final long[] values = new long[300];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = random.nextLong();
+    }
+    values[128] = Long.MIN_VALUE;
+    values[129] = Long.MAX_VALUE;
+    values[257] = 5;
+    checkRoundTrip(values, MemoryAllocator.HEAP);
+    checkRoundTrip(new long[0], MemoryAllocator.HEAP);
+    checkRoundTrip(new long[1], MemoryAllocator.HEAP);
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.databricks.unsafe.util;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.databricks.unsafe.util.memory.MemoryAllocator;
+import com.databricks.unsafe.util.memory.PagedMemoryManager;
+
+public class TestDictionaryEncoder {
+
+  private static final long BYTE_ARRAY_OFFSET = PlatformDependent.BYTE_ARRAY_OFFSET;
+
+  private static int add(DictionaryEncoder encoder, String value) {
+    final byte[] bytes = value.getBytes();
+    return encoder.add(bytes, BYTE_ARRAY_OFFSET, bytes.length);
+  }
+
+  private static int lookup(DictionaryEncoder encoder, String value) {
+    final byte[] bytes = value.getBytes();
+    return encoder.lookup(bytes, BYTE_ARRAY_OFFSET, bytes.length);
+  }
+
+  private static void encodeAndDecode(MemoryAllocator allocator) {
+    final PagedMemoryManager memoryManager = new PagedMemoryManager(allocator);
+    final DictionaryEncoder encoder = new DictionaryEncoder(memoryManager, allocator, 64);
+    final String[] countries = {"US", "FR", "US", "", "DE", "FR", "US", ""};
+    try {
+      for (String country : countries) {
+        add(encoder, country);
+      }
+      Assert.assertEquals(countries.length, encoder.size());
+      Assert.assertEquals(4, encoder.numDistinct());
+      final IntArray codes = encoder.codes();
+      final int[] expected = {0, 1, 0, 2, 3, 1, 0, 2};
+      for (int i = 0; i < countries.length; i++) {
+        Assert.assertEquals(expected[i], codes.get(i));
+        Assert.assertEquals(expected[i], encoder.getCode(i));
+        Assert.assertEquals(countries[i], new String(encoder.getBytes(encoder.getCode(i))));
+      }
+      Assert.assertEquals(3, lookup(encoder, "DE"));
+      Assert.assertEquals(-1, lookup(encoder, "UK"));
+      Assert.assertEquals(-1, lookup(encoder, "USA"));
+      Assert.assertEquals(countries.length, encoder.size());
+      Assert.assertEquals(2, encoder.getLength(0));
+      Assert.assertEquals('U', PlatformDependent.UNSAFE.getByte(
+        encoder.getBaseObject(0), encoder.getBaseOffset(0)));
+    } finally {
+      encoder.free();
+    }
+    Assert.assertEquals(0, memoryManager.freeAllPages());
+  }
+
+  @Test
+  public void encodeAndDecodeInHeap() {
+    encodeAndDecode(MemoryAllocator.HEAP);
+  }
+
+  @Test
+  public void encodeAndDecodeOffHeap() {
+    encodeAndDecode(MemoryAllocator.UNSAFE);
+  }
+
+  @Test
+  public void manyDistinctValues() {
+    final PagedMemoryManager memoryManager = new PagedMemoryManager(MemoryAllocator.UNSAFE);
+    final DictionaryEncoder encoder = new DictionaryEncoder(memoryManager, MemoryAllocator.UNSAFE);
+    try {
+      // Enough values to grow the hash table several times, each added twice.
+      for (int round = 0; round < 2; round++) {
+        for (int i = 0; i < 10000; i++) {
+          Assert.assertEquals(i, add(encoder, "value-" + i));
+        }
+      }
+      Assert.assertEquals(20000, encoder.size());
+      Assert.assertEquals(10000, encoder.numDistinct());
+      for (int i = 0; i < 10000; i++) {
+        Assert.assertEquals(i, lookup(encoder, "value-" + i));
+        Assert.assertEquals("value-" + i, new String(encoder.getBytes(i)));
+        Assert.assertEquals(i, encoder.getCode(10000 + i));
+      }
+    } finally {
+      encoder.free();
+    }
+  }
+
+  @Test
+  public void stringsLargerThanPages() {
+    final PagedMemoryManager memoryManager = new PagedMemoryManager(MemoryAllocator.HEAP);
+    final DictionaryEncoder encoder =
+      new DictionaryEncoder(memoryManager, MemoryAllocator.HEAP, 16);
+    final char[] chars = new char[1001];
+    try {
+      for (int i = 0; i < 5; i++) {
+        Arrays.fill(chars, (char) ('a' + i));
+        final String large = new String(chars);
+        Assert.assertEquals(2 * i, add(encoder, large));
+        Assert.assertEquals(2 * i + 1, add(encoder, "small" + i));
+        Assert.assertEquals(2 * i, add(encoder, large));
+        Assert.assertEquals(large, new String(encoder.getBytes(2 * i)));
+      }
+      Assert.assertEquals(10, encoder.numDistinct());
+    } finally {
+      encoder.free();
+    }
+  }
+}
@@ -19,6 +19,7 @@ package com.databricks.unsafe.util;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.databricks.unsafe.util.memory.MemoryAllocator;
 import com.databricks.unsafe.util.memory.MemoryBlock;
 
 public class TestDoubleArray {
@@ -46,4 +47,79 @@ public class TestDoubleArray {
     double[] expected = {1.0, 3.0};
     Assert.assertArrayEquals(expected, arr.toJvmArray(), 0.00000000001);
   }
+
+  private static DoubleArray offHeap(long length) {
+    return new DoubleArray(MemoryAllocator.UNSAFE.allocate(length * 8));
+  }
+
+  @Test
+  public void copyFromAndToJvmArray() {
+    double[] src = new double[100];
+    for (int i = 0; i < src.length; i++) {
+      src[i] = i * 0.5;
+    }
+    DoubleArray arr = offHeap(50);
+    try {
+      arr.copyFrom(src, 10, 5, 40);
+      Assert.assertEquals(5.0, arr.get(5), 0.0);
+      Assert.assertEquals(24.5, arr.get(44), 0.0);
+      Assert.assertEquals(0.0, arr.get(4), 0.0);
+      Assert.assertEquals(0.0, arr.get(45), 0.0);
+
+      double[] dst = new double[20];
+      arr.copyTo(5, dst, 2, 18);
+      Assert.assertEquals(0.0, dst[1], 0.0);
+      Assert.assertEquals(5.0, dst[2], 0.0);
+      Assert.assertEquals(13.5, dst[19], 0.0);
+    } finally {
+      MemoryAllocator.UNSAFE.free(arr.memoryBlock());
+    }
+  }
+
+  @Test
+  public void copyBetweenArrays() {
+    DoubleArray heap = new DoubleArray(MemoryAllocator.HEAP.allocate(16 * 8));
+    DoubleArray arr = offHeap(16);
+    try {
+      for (int i = 0; i < heap.size(); i++) {
+        heap.set(i, i * 0.5);
+      }
+      DoubleArray.copy(heap, 0, arr, 0, 16);
+      // Overlapping copy within the same array.
+      DoubleArray.copy(arr, 0, arr, 4, 12);
+      for (int i = 0; i < 4; i++) {
+        Assert.assertEquals(i * 0.5, arr.get(i), 0.0);
+      }
+      for (int i = 4; i < 16; i++) {
+        Assert.assertEquals((i - 4) * 0.5, arr.get(i), 0.0);
+      }
+    } finally {
+      MemoryAllocator.UNSAFE.free(arr.memoryBlock());
+    }
+  }
+
+  @Test
+  public void fill() {
+    // Every byte of this value is the same, so it can be filled bytewise.
+    final double pattern = Double.longBitsToDouble(0x0101010101010101L);
+    DoubleArray arr = offHeap(1000);
+    try {
+      arr.fill(0, 1000, pattern);
+      arr.fill(3, 997, -7.25);
+      arr.fill(10, 20, 0.0);
+      for (int i = 0; i < 1000; i++) {
+        double expected = -7.25;
+        if (i >= 10 && i < 20) {
+          expected = 0.0;
+        } else if (i < 3 || i >= 997) {
+          expected = pattern;
+        }
+        Assert.assertEquals(expected, arr.get(i), 0.0);
+      }
+      arr.fill(5, 5, 3.5);
+      Assert.assertEquals(-7.25, arr.get(5), 0.0);
+    } finally {
+      MemoryAllocator.UNSAFE.free(arr.memoryBlock());
+    }
+  }
 }
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.databricks.unsafe.util.memory.MemoryAllocator;
+
+public class TestDoubleVector {
+
+  @Test
+  public void addAndGet() {
+    DoubleVector vector = new DoubleVector(MemoryAllocator.UNSAFE, 1);
+    DoubleVector segmented = DoubleVector.segmented(MemoryAllocator.UNSAFE, 8);
+    try {
+      for (int i = 0; i < 100; i++) {
+        vector.add(i * 0.25);
+        segmented.add(i * 0.25);
+      }
+      Assert.assertEquals(128, vector.capacity());
+      Assert.assertEquals(104, segmented.capacity());
+      for (int i = 0; i < 100; i++) {
+        Assert.assertEquals(i * 0.25, vector.get(i), 0.0);
+        Assert.assertEquals(i * 0.25, segmented.get(i), 0.0);
+      }
+      Assert.assertArrayEquals(vector.toJvmArray(), segmented.toJvmArray(), 0.0);
+    } finally {
+      vector.free();
+      segmented.free();
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util;
+
+import java.io.File;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.databricks.unsafe.util.memory.MemoryAllocator;
+
+public class TestExternalSorter {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Inserts pairs with few distinct keys, whose values are their insertion order, and checks that
+   * they come out sorted by key and then by value.
+   */
+  private void checkSort(MemoryAllocator allocator, int bufferCapacity, int n, boolean signed,
+      int expectedSpills) throws Exception {
+    final File dir = folder.newFolder("spills" + bufferCapacity + signed);
+    final ExternalSorter sorter = new ExternalSorter(allocator, bufferCapacity, dir, signed);
+    final Random random = new Random(42);
+    final long[] keys = new long[n];
+    try {
+      for (int i = 0; i < n; i++) {
+        keys[i] = (random.nextInt(2000) - 1000) * 0x0000100000000001L;
+        sorter.insert(keys[i], i);
+      }
+      Assert.assertEquals(expectedSpills, sorter.numSpills());
+      Assert.assertEquals(expectedSpills, dir.listFiles().length);
+
+      final ExternalSorter.SortedIterator it = sorter.sortedIterator();
+      final long flip = signed ? 0 : Long.MIN_VALUE;
+      long count = 0;
+      long prevKey = 0;
+      long prevValue = -1;
+      while (it.next()) {
+        Assert.assertEquals(keys[(int) it.getValue()], it.getKey());
+        if (count > 0) {
+          Assert.assertTrue((prevKey ^ flip) <= (it.getKey() ^ flip));
+          if (prevKey == it.getKey()) {
+            Assert.assertTrue(prevValue < it.getValue());
+          }
+        }
+        prevKey = it.getKey();
+        prevValue = it.getValue();
+        count++;
+      }
+      Assert.assertEquals(n, count);
+      Assert.assertFalse(it.next());
+    } finally {
+      sorter.close();
+    }
+    Assert.assertEquals(0, dir.listFiles().length);
+  }
+
+  @Test
+  public void inMemory() throws Exception {
+    checkSort(MemoryAllocator.UNSAFE, 10000, 10000, true, 0);
+  }
+
+  @Test
+  public void spillOffHeap() throws Exception {
+    checkSort(MemoryAllocator.UNSAFE, 1000, 10500, true, 10);
+  }
+
+  @Test
+  public void spillOnHeapUnsigned() throws Exception {
+    // Runs larger than the I/O buffer, written through the staging buffer.
+    checkSort(MemoryAllocator.HEAP, 5000, 12345, false, 2);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void noInsertAfterIterating() throws Exception {
+    final ExternalSorter sorter =
+      new ExternalSorter(MemoryAllocator.HEAP, 10, folder.getRoot(), true);
+    try {
+      sorter.insert(1, 1);
+      sorter.sortedIterator();
+      sorter.insert(2, 2);
+    } finally {
+      sorter.close();
+    }
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.databricks.unsafe.util.memory.HeapMemoryAllocator;
+import com.databricks.unsafe.util.memory.MemoryAllocator;
+import com.databricks.unsafe.util.memory.MemoryBlock;
+
+public class TestFloatArray {
+
+  @Test
+  public void basicTest() {
+    FloatArray arr = new FloatArray(MemoryBlock.fromFloatArray(new float[3]));
+    arr.set(0, 1.5f);
+    arr.set(2, Float.NaN);
+    Assert.assertEquals(3, arr.size());
+    Assert.assertEquals(1.5f, arr.get(0), 0.0f);
+    Assert.assertTrue(Float.isNaN(arr.get(2)));
+    Assert.assertArrayEquals(new float[] {1.5f, 0.0f, Float.NaN}, arr.toJvmArray(), 0.0f);
+  }
+
+  @Test
+  public void fill() {
+    FloatArray arr = new FloatArray(MemoryAllocator.UNSAFE.allocate(100 * 4));
+    try {
+      arr.fill(0, 100, 0.0f);
+      arr.fill(1, 99, -3.25f);
+      for (int i = 0; i < 100; i++) {
+        Assert.assertEquals(i == 0 || i == 99 ? 0.0f : -3.25f, arr.get(i), 0.0f);
+      }
+    } finally {
+      MemoryAllocator.UNSAFE.free(arr.memoryBlock());
+    }
+  }
+
+  @Test
+  public void segmented() {
+    FloatArray arr = new FloatArray(new HeapMemoryAllocator().allocateSegmented(64, 4));
+    for (int i = 0; i < 16; i++) {
+      arr.set(i, i / 4.0f);
+    }
+    for (int i = 0; i < 16; i++) {
+      Assert.assertEquals(i / 4.0f, arr.get(i), 0.0f);
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.databricks.unsafe.util.memory.MemoryAllocator;
+import com.databricks.unsafe.util.memory.MemoryBlock;
+
+public class TestFrameOfReferenceArray {
+
+  private static void checkRoundTrip(long[] values, MemoryAllocator allocator) {
+    final LongArray src = new LongArray(MemoryBlock.fromLongArray(values));
+    final FrameOfReferenceArray array =
+      FrameOfReferenceArray.encode(src, 0, values.length, allocator);
+    try {
+      Assert.assertEquals(values.length, array.size());
+      for (int i = 0; i < values.length; i++) {
+        Assert.assertEquals(values[i], array.get(i));
+      }
+      final LongArray dst = new LongArray(MemoryBlock.fromLongArray(new long[values.length + 1]));
+      for (int from = 0; from < Math.min(values.length / 2 + 1, 300); from += 61) {
+        final int to = values.length - from / 2;
+        array.decode(from, to, dst, 1);
+        for (int i = from; i < to; i++) {
+          Assert.assertEquals(values[i], dst.get(1 + i - from));
+        }
+      }
+    } finally {
+      array.free();
+    }
+  }
+
+  @Test
+  public void timestamps() {
+    final Random random = new Random(1);
+    final long[] values = new long[1000];
+    long timestamp = 1400000000000L;
+    for (int i = 0; i < values.length; i++) {
+      timestamp += random.nextInt(1000);
+      values[i] = timestamp;
+    }
+    checkRoundTrip(values, MemoryAllocator.HEAP);
+    checkRoundTrip(values, MemoryAllocator.UNSAFE);
+    final FrameOfReferenceArray array = FrameOfReferenceArray.encode(
+      new LongArray(MemoryBlock.fromLongArray(values)), 0, values.length, MemoryAllocator.HEAP);
+    // A block spans at most 128 * 1000 milliseconds, i.e. 17 bits, instead of 64.
+    Assert.assertTrue(array.sizeInBytes() < values.length * 8 / 3);
+    array.free();
+  }
+
+  @Test
+  public void extremeValues() {
+    final Random random = new Random(2);
+    final long[] values = new long[300];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = random.nextLong();
+    }
+    values[0] = Long.MIN_VALUE;
+    values[1] = Long.MAX_VALUE;
+    checkRoundTrip(values, MemoryAllocator.HEAP);
+  }
+
+  @Test
+  public void constantAndEmpty() {
+    final long[] values = new long[257];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = -42;
+    }
+    checkRoundTrip(values, MemoryAllocator.HEAP);
+    final FrameOfReferenceArray array = FrameOfReferenceArray.encode(
+      new LongArray(MemoryBlock.fromLongArray(values)), 0, values.length, MemoryAllocator.HEAP);
+    // Only the headers of the three blocks and one word of data.
+    Assert.assertEquals(3 * 16 + 8, array.sizeInBytes());
+    array.free();
+    checkRoundTrip(new long[0], MemoryAllocator.HEAP);
+  }
+}
@@ -19,6 +19,7 @@ package com.databricks.unsafe.util;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.databricks.unsafe.util.memory.MemoryAllocator;
 import com.databricks.unsafe.util.memory.MemoryBlock;
 
 public class TestIntArray {
@@ -50,4 +51,77 @@ public class TestIntArray {
     int[] expected = {1, 2, 3, 5};
     Assert.assertArrayEquals(expected, arr.toJvmArray());
   }
+
+  private static IntArray offHeap(long length) {
+    return new IntArray(MemoryAllocator.UNSAFE.allocate(length * 4));
+  }
+
+  @Test
+  public void copyFromAndToJvmArray() {
+    int[] src = new int[100];
+    for (int i = 0; i < src.length; i++) {
+      src[i] = i;
+    }
+    IntArray arr = offHeap(50);
+    try {
+      arr.copyFrom(src, 10, 5, 40);
+      Assert.assertEquals(10, arr.get(5));
+      Assert.assertEquals(49, arr.get(44));
+      Assert.assertEquals(0, arr.get(4));
+      Assert.assertEquals(0, arr.get(45));
+
+      int[] dst = new int[20];
+      arr.copyTo(5, dst, 2, 18);
+      Assert.assertEquals(0, dst[1]);
+      Assert.assertEquals(10, dst[2]);
+      Assert.assertEquals(27, dst[19]);
+    } finally {
+      MemoryAllocator.UNSAFE.free(arr.memoryBlock());
+    }
+  }
+
+  @Test
+  public void copyBetweenArrays() {
+    IntArray heap = new IntArray(MemoryAllocator.HEAP.allocate(16 * 8));
+    IntArray arr = offHeap(16);
+    try {
+      for (int i = 0; i < heap.size(); i++) {
+        heap.set(i, i);
+      }
+      IntArray.copy(heap, 0, arr, 0, 16);
+      // Overlapping copy within the same array.
+      IntArray.copy(arr, 0, arr, 4, 12);
+      for (int i = 0; i < 4; i++) {
+        Assert.assertEquals(i, arr.get(i));
+      }
+      for (int i = 4; i < 16; i++) {
+        Assert.assertEquals((i - 4), arr.get(i));
+      }
+    } finally {
+      MemoryAllocator.UNSAFE.free(arr.memoryBlock());
+    }
+  }
+
+  @Test
+  public void fill() {
+    IntArray arr = offHeap(1000);
+    try {
+      arr.fill(0, 1000, 0x01010101);
+      arr.fill(3, 997, -7);
+      arr.fill(10, 20, 0);
+      for (int i = 0; i < 1000; i++) {
+        int expected = -7;
+        if (i >= 10 && i < 20) {
+          expected = 0;
+        } else if (i < 3 || i >= 997) {
+          expected = 0x01010101;
+        }
+        Assert.assertEquals(expected, arr.get(i));
+      }
+      arr.fill(5, 5, 3);
+      Assert.assertEquals(-7, arr.get(5));
+    } finally {
+      MemoryAllocator.UNSAFE.free(arr.memoryBlock());
+    }
+  }
 }
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.databricks.unsafe.util.memory.MemoryAllocator;
+
+public class TestIntVector {
+
+  @Test
+  public void oddCapacitiesOnHeap() {
+    // The heap allocator only hands out whole longs, so odd capacities are rounded up.
+    IntVector vector = new IntVector(MemoryAllocator.HEAP, 3);
+    Assert.assertEquals(4, vector.capacity());
+    for (int i = 0; i < 101; i++) {
+      vector.add(i);
+    }
+    vector.trimToSize();
+    Assert.assertEquals(102, vector.capacity());
+    int[] values = vector.toJvmArray();
+    Assert.assertEquals(101, values.length);
+    for (int i = 0; i < values.length; i++) {
+      Assert.assertEquals(i, values[i]);
+    }
+  }
+
+  @Test
+  public void segmented() {
+    IntVector vector = IntVector.segmented(MemoryAllocator.UNSAFE, 32);
+    try {
+      int[] src = new int[1000];
+      for (int i = 0; i < src.length; i++) {
+        src[i] = i * 7;
+      }
+      vector.addAll(src, 0, src.length);
+      vector.add(-1);
+      Assert.assertEquals(1001, vector.size());
+      Assert.assertEquals(32 * 32, vector.capacity());
+      for (int i = 0; i < 1000; i++) {
+        Assert.assertEquals(i * 7, vector.get(i));
+      }
+      Assert.assertEquals(-1, vector.get(1000));
+    } finally {
+      vector.free();
+    }
+  }
+}
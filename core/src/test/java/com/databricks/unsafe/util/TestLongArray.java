@@ -19,6 +19,8 @@ package com.databricks.unsafe.util;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.databricks.unsafe.util.memory.HeapMemoryAllocator;
+import com.databricks.unsafe.util.memory.MemoryAllocator;
 import com.databricks.unsafe.util.memory.MemoryBlock;
 
 public class TestLongArray {
@@ -46,4 +48,100 @@ public class TestLongArray {
     long[] expected = {1L, 3L};
     Assert.assertArrayEquals(expected, arr.toJvmArray());
   }
+
+  private static LongArray offHeap(long length) {
+    return new LongArray(MemoryAllocator.UNSAFE.allocate(length * 8));
+  }
+
+  @Test
+  public void copyFromAndToJvmArray() {
+    long[] src = new long[100];
+    for (int i = 0; i < src.length; i++) {
+      src[i] = (long) i;
+    }
+    LongArray arr = offHeap(50);
+    try {
+      arr.copyFrom(src, 10, 5, 40);
+      Assert.assertEquals(10L, arr.get(5));
+      Assert.assertEquals(49L, arr.get(44));
+      Assert.assertEquals(0L, arr.get(4));
+      Assert.assertEquals(0L, arr.get(45));
+
+      long[] dst = new long[20];
+      arr.copyTo(5, dst, 2, 18);
+      Assert.assertEquals(0L, dst[1]);
+      Assert.assertEquals(10L, dst[2]);
+      Assert.assertEquals(27L, dst[19]);
+    } finally {
+      MemoryAllocator.UNSAFE.free(arr.memoryBlock());
+    }
+  }
+
+  @Test
+  public void copyBetweenArrays() {
+    LongArray heap = new LongArray(MemoryAllocator.HEAP.allocate(16 * 8));
+    LongArray arr = offHeap(16);
+    try {
+      for (int i = 0; i < heap.size(); i++) {
+        heap.set(i, (long) i);
+      }
+      LongArray.copy(heap, 0, arr, 0, 16);
+      // Overlapping copy within the same array.
+      LongArray.copy(arr, 0, arr, 4, 12);
+      for (int i = 0; i < 4; i++) {
+        Assert.assertEquals((long) i, arr.get(i));
+      }
+      for (int i = 4; i < 16; i++) {
+        Assert.assertEquals((long) (i - 4), arr.get(i));
+      }
+    } finally {
+      MemoryAllocator.UNSAFE.free(arr.memoryBlock());
+    }
+  }
+
+  @Test
+  public void fill() {
+    LongArray arr = offHeap(1000);
+    try {
+      arr.fill(0, 1000, 0x0101010101010101L);
+      arr.fill(3, 997, -7L);
+      arr.fill(10, 20, 0L);
+      for (int i = 0; i < 1000; i++) {
+        long expected = -7L;
+        if (i >= 10 && i < 20) {
+          expected = 0L;
+        } else if (i < 3 || i >= 997) {
+          expected = 0x0101010101010101L;
+        }
+        Assert.assertEquals(expected, arr.get(i));
+      }
+      arr.fill(5, 5, 3L);
+      Assert.assertEquals(-7L, arr.get(5));
+    } finally {
+      MemoryAllocator.UNSAFE.free(arr.memoryBlock());
+    }
+  }
+
+  @Test
+  public void bulkOperationsAcrossSegments() {
+    // 8 longs per segment, so every range below spans several segments.
+    LongArray arr = new LongArray(new HeapMemoryAllocator().allocateSegmented(40 * 8, 6));
+    arr.fill(0, 40, 0x1234567890L);
+    long[] src = new long[30];
+    for (int i = 0; i < src.length; i++) {
+      src[i] = i;
+    }
+    arr.copyFrom(src, 0, 5, 30);
+    LongArray.copy(arr, 5, arr, 7, 30);
+    long[] dst = arr.toJvmArray();
+    for (int i = 0; i < 40; i++) {
+      long expected = 0x1234567890L;
+      if (i >= 7 && i < 37) {
+        expected = i - 7;
+      } else if (i >= 5 && i < 7) {
+        expected = i - 5;
+      }
+      Assert.assertEquals(expected, dst[i]);
+    }
+  }
 }
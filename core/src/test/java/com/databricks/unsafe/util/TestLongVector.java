@@ -0,0 +1,146 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.databricks.unsafe.util.memory.InstrumentedMemoryAllocator;
+import com.databricks.unsafe.util.memory.MemoryAllocator;
+
+public class TestLongVector {
+
+  private static void checkAddAndGet(LongVector vector) {
+    for (long i = 0; i < 10000; i++) {
+      vector.add(i * 3);
+    }
+    vector.addAll(new long[] {-1L, -2L, -3L}, 1, 2);
+    Assert.assertEquals(10002, vector.size());
+    Assert.assertTrue(vector.capacity() >= vector.size());
+    for (long i = 0; i < 10000; i++) {
+      Assert.assertEquals(i * 3, vector.get(i));
+    }
+    Assert.assertEquals(-2L, vector.get(10000));
+    Assert.assertEquals(-3L, vector.get(10001));
+
+    vector.set(5, 42L);
+    Assert.assertEquals(42L, vector.get(5));
+    long[] values = vector.toJvmArray();
+    Assert.assertEquals(10002, values.length);
+    Assert.assertEquals(42L, values[5]);
+    Assert.assertEquals(29997L, values[9999]);
+    Assert.assertEquals(-3L, values[10001]);
+  }
+
+  @Test
+  public void contiguous() {
+    LongVector vector = new LongVector(MemoryAllocator.UNSAFE);
+    try {
+      checkAddAndGet(vector);
+      Assert.assertEquals(16384, vector.capacity());
+      Assert.assertEquals(16384, vector.array().size());
+    } finally {
+      vector.free();
+    }
+  }
+
+  @Test
+  public void contiguousOnHeap() {
+    LongVector vector = new LongVector(MemoryAllocator.HEAP, 0);
+    checkAddAndGet(vector);
+    vector.free();
+  }
+
+  @Test
+  public void segmented() {
+    LongVector vector = LongVector.segmented(MemoryAllocator.UNSAFE, 1024);
+    try {
+      Assert.assertEquals(0, vector.capacity());
+      checkAddAndGet(vector);
+      Assert.assertEquals(10 * 1024, vector.capacity());
+    } finally {
+      vector.free();
+    }
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void segmentedHasNoArray() {
+    LongVector vector = LongVector.segmented(MemoryAllocator.HEAP, 16);
+    vector.array();
+  }
+
+  @Test(expected = AssertionError.class)
+  public void setBeyondSize() {
+    LongVector vector = new LongVector(MemoryAllocator.HEAP, 16);
+    vector.add(1L);
+    // Within the capacity, but not within the size.
+    vector.set(1, 2L);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void segmentCapacityMustBePowerOf2() {
+    LongVector.segmented(MemoryAllocator.HEAP, 1000);
+  }
+
+  @Test
+  public void trimToSize() {
+    InstrumentedMemoryAllocator allocator =
+      new InstrumentedMemoryAllocator(MemoryAllocator.UNSAFE);
+    LongVector vector = new LongVector(allocator, 100);
+    for (long i = 0; i < 30; i++) {
+      vector.add(i);
+    }
+    vector.trimToSize();
+    Assert.assertEquals(30, vector.capacity());
+    Assert.assertEquals(30 * 8, allocator.getLiveBytes());
+    vector.add(30);
+    Assert.assertEquals(60, vector.capacity());
+    for (long i = 0; i <= 30; i++) {
+      Assert.assertEquals(i, vector.get(i));
+    }
+    vector.free();
+    Assert.assertEquals(0, allocator.getLiveBytes());
+  }
+
+  @Test
+  public void trimSegmentedToSize() {
+    InstrumentedMemoryAllocator allocator =
+      new InstrumentedMemoryAllocator(MemoryAllocator.UNSAFE);
+    LongVector vector = LongVector.segmented(allocator, 64);
+    for (long i = 0; i < 200; i++) {
+      vector.add(i);
+    }
+    vector.clear();
+    for (long i = 0; i < 100; i++) {
+      vector.add(-i);
+    }
+    vector.trimToSize();
+    Assert.assertEquals(100, vector.capacity());
+    Assert.assertEquals(100 * 8, allocator.getLiveBytes());
+
+    // Growing again first restores the trimmed segment to its full size.
+    for (long i = 100; i < 150; i++) {
+      vector.add(-i);
+    }
+    Assert.assertEquals(192, vector.capacity());
+    for (long i = 0; i < 150; i++) {
+      Assert.assertEquals(-i, vector.get(i));
+    }
+    vector.free();
+    Assert.assertEquals(0, allocator.getLiveBytes());
+  }
+}
@@ -16,6 +16,8 @@
 
 package com.databricks.unsafe.util;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.HashSet;
 import java.util.Random;
 import java.util.Set;
@@ -48,6 +50,27 @@ public class TestMurmur3_x86_32 {
     Assert.assertEquals(-2106506049, hasher.hashLong(Long.MAX_VALUE));
   }
 
+  @Test
+  public void testUnsafeBytes() {
+    final byte[] bytes = new byte[8];
+    final ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    final long offset = PlatformDependent.BYTE_ARRAY_OFFSET;
+    for (int value : new int[] {0, -42, 42, Integer.MIN_VALUE, Integer.MAX_VALUE}) {
+      buffer.putInt(0, value);
+      Assert.assertEquals(hasher.hashInt(value), hasher.hashUnsafeBytes(bytes, offset, 4));
+    }
+    for (long value : new long[] {0L, -42L, 42L, Long.MIN_VALUE, Long.MAX_VALUE}) {
+      buffer.putLong(0, value);
+      Assert.assertEquals(hasher.hashLong(value), hasher.hashUnsafeBytes(bytes, offset, 8));
+    }
+    // Known values of the reference implementation, including a tail of 1 to 3 bytes.
+    Assert.assertEquals(0, hasher.hashUnsafeBytes(bytes, offset, 0));
+    Assert.assertEquals(0x514e28b7, new Murmur3_x86_32(1).hashUnsafeBytes(bytes, offset, 0));
+    final byte[] hello = "Hello, world!".getBytes();
+    Assert.assertEquals(0x24884cba,
+      new Murmur3_x86_32(0x9747b28c).hashUnsafeBytes(hello, offset, hello.length));
+  }
+
   @Test
   public void randomizedStressTest() {
     int size = 65536;
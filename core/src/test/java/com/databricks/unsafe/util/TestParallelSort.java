@@ -0,0 +1,141 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.databricks.unsafe.util.memory.HeapMemoryAllocator;
+import com.databricks.unsafe.util.memory.MemoryAllocator;
+import com.databricks.unsafe.util.memory.MemoryBlock;
+import com.databricks.unsafe.util.thread.DefaultThreadFactory;
+
+public class TestParallelSort {
+
+  private static ExecutorService executor;
+
+  @BeforeClass
+  public static void setUp() {
+    executor = Executors.newCachedThreadPool(new DefaultThreadFactory("sort", true));
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    executor.shutdown();
+  }
+
+  /** Enough values for several chunks of at least {@link ParallelSort#MIN_CHUNK_SIZE}. */
+  private static final int N = (int) (ParallelSort.MIN_CHUNK_SIZE * 5 + 123);
+
+  private static long[] randomLongs(int n, long seed) {
+    final Random random = new Random(seed);
+    final long[] values = new long[n];
+    for (int i = 0; i < n; i++) {
+      values[i] = random.nextLong();
+    }
+    return values;
+  }
+
+  @Test
+  public void longs() {
+    // Odd numbers of chunks leave a run to copy in some merge rounds.
+    for (int parallelism : new int[] {1, 2, 3, 4, 5, 8}) {
+      final long[] values = randomLongs(N, parallelism);
+      final LongArray array = new LongArray(MemoryBlock.fromLongArray(values.clone()));
+      ParallelSort.sort(array, 0, N, true, MemoryAllocator.UNSAFE, executor, parallelism);
+      Arrays.sort(values);
+      Assert.assertArrayEquals(values, array.toJvmArray());
+    }
+  }
+
+  @Test
+  public void unsignedLongsWithDuplicates() {
+    final Random random = new Random(42);
+    final long[] values = new long[N];
+    for (int i = 0; i < N; i++) {
+      values[i] = random.nextInt(1000) * 0x0101010101010101L;
+    }
+    final LongArray array = new LongArray(MemoryAllocator.UNSAFE.allocate(N * 8L));
+    try {
+      array.copyFrom(values, 0, 0, N);
+      ParallelSort.sort(array, 0, N, false, MemoryAllocator.UNSAFE, executor, 4);
+      for (int i = 0; i < N; i++) {
+        values[i] ^= Long.MIN_VALUE;
+      }
+      Arrays.sort(values);
+      for (int i = 0; i < N; i++) {
+        Assert.assertEquals(values[i] ^ Long.MIN_VALUE, array.get(i));
+      }
+    } finally {
+      MemoryAllocator.UNSAFE.free(array.memoryBlock());
+    }
+  }
+
+  @Test
+  public void subRangeOfSegmentedArray() {
+    final long[] values = randomLongs(N + 200, 43);
+    final LongArray array =
+      new LongArray(new HeapMemoryAllocator().allocateSegmented(values.length * 8L, 16));
+    array.copyFrom(values, 0, 0, values.length);
+    ParallelSort.sort(array, 100, N + 100, true, MemoryAllocator.HEAP, executor, 3);
+    Arrays.sort(values, 100, N + 100);
+    Assert.assertArrayEquals(values, array.toJvmArray());
+  }
+
+  @Test
+  public void ints() {
+    final Random random = new Random(44);
+    final int[] values = new int[N];
+    for (int i = 0; i < N; i++) {
+      values[i] = random.nextInt();
+    }
+    final IntArray array = new IntArray(MemoryBlock.fromIntArray(values.clone()));
+    ParallelSort.sort(array, 0, N, true, MemoryAllocator.HEAP, executor, 6);
+    Arrays.sort(values);
+    Assert.assertArrayEquals(values, array.toJvmArray());
+  }
+
+  @Test
+  public void doubles() {
+    final Random random = new Random(45);
+    final double[] values = new double[N];
+    for (int i = 0; i < N; i++) {
+      values[i] = random.nextGaussian() * 1e10;
+    }
+    values[0] = Double.NaN;
+    values[1] = -0.0;
+    values[2] = 0.0;
+    values[3] = Double.NEGATIVE_INFINITY;
+    values[4] = Double.POSITIVE_INFINITY;
+    values[5] = Double.longBitsToDouble(0xfff8000000000001L);  // A negative NaN.
+    final DoubleArray array = new DoubleArray(MemoryBlock.fromDoubleArray(values.clone()));
+    ParallelSort.sort(array, 0, N, MemoryAllocator.UNSAFE, executor, 4);
+    Arrays.sort(values);
+    // Compare bits, so that -0.0 and 0.0 are told apart.
+    for (int i = 0; i < N; i++) {
+      Assert.assertEquals(
+        Double.doubleToLongBits(values[i]), Double.doubleToRawLongBits(array.get(i)));
+    }
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.databricks.unsafe.util.memory.MemoryAllocator;
+import com.databricks.unsafe.util.memory.MemoryBlock;
+import com.databricks.unsafe.util.memory.PagedMemoryManager;
+
+public class TestPrefixSorter {
+
+  /** Records are an int length followed by the bytes of the key. */
+  private static final RecordComparator KEY_COMPARATOR = new RecordComparator() {
+    @Override
+    public int compare(
+        Object leftBaseObject, long leftBaseOffset, Object rightBaseObject, long rightBaseOffset) {
+      final int leftLength = PlatformDependent.UNSAFE.getInt(leftBaseObject, leftBaseOffset);
+      final int rightLength = PlatformDependent.UNSAFE.getInt(rightBaseObject, rightBaseOffset);
+      for (int i = 0; i < Math.min(leftLength, rightLength); i++) {
+        final int l = PlatformDependent.UNSAFE.getByte(leftBaseObject, leftBaseOffset + 4 + i);
+        final int r = PlatformDependent.UNSAFE.getByte(rightBaseObject, rightBaseOffset + 4 + i);
+        if (l != r) {
+          return (l & 0xff) - (r & 0xff);
+        }
+      }
+      return leftLength - rightLength;
+    }
+  };
+
+  private static final Comparator<byte[]> BYTES_COMPARATOR = new Comparator<byte[]>() {
+    @Override
+    public int compare(byte[] left, byte[] right) {
+      for (int i = 0; i < Math.min(left.length, right.length); i++) {
+        if (left[i] != right[i]) {
+          return (left[i] & 0xff) - (right[i] & 0xff);
+        }
+      }
+      return left.length - right.length;
+    }
+  };
+
+  private static void checkSort(byte[][] keys, MemoryAllocator allocator) {
+    final PagedMemoryManager manager = new PagedMemoryManager(allocator);
+    final LongArray pairs = new LongArray(MemoryAllocator.UNSAFE.allocate(keys.length * 16L));
+    try {
+      MemoryBlock page = manager.allocatePage(1 << 16);
+      long cursor = page.getBaseOffset();
+      for (int i = 0; i < keys.length; i++) {
+        if (cursor + 4 + keys[i].length > page.getBaseOffset() + page.size()) {
+          page = manager.allocatePage(1 << 16);
+          cursor = page.getBaseOffset();
+        }
+        final Object base = page.getBaseObject();
+        PlatformDependent.UNSAFE.putInt(base, cursor, keys[i].length);
+        PlatformDependent.copyMemory(
+          keys[i], PlatformDependent.BYTE_ARRAY_OFFSET, base, cursor + 4, keys[i].length);
+        pairs.set(2 * i, PrefixSorter.computePrefix(base, cursor + 4, keys[i].length));
+        pairs.set(2 * i + 1, PagedMemoryManager.encodePageNumberAndOffset(page, cursor));
+        cursor += 4 + keys[i].length;
+      }
+
+      new PrefixSorter(manager, KEY_COMPARATOR).sort(pairs, 0, keys.length, allocator);
+
+      final byte[][] expected = keys.clone();
+      Arrays.sort(expected, BYTES_COMPARATOR);
+      for (int i = 0; i < keys.length; i++) {
+        final long pointer = pairs.get(2 * i + 1);
+        final Object base = manager.getPage(pointer);
+        final long offset = manager.getOffsetInPage(pointer);
+        final byte[] key = new byte[PlatformDependent.UNSAFE.getInt(base, offset)];
+        PlatformDependent.copyMemory(
+          base, offset + 4, key, PlatformDependent.BYTE_ARRAY_OFFSET, key.length);
+        Assert.assertArrayEquals(expected[i], key);
+      }
+    } finally {
+      MemoryAllocator.UNSAFE.free(pairs.memoryBlock());
+      manager.freeAllPages();
+    }
+  }
+
+  @Test
+  public void distinctPrefixes() {
+    final Random random = new Random(42);
+    final byte[][] keys = new byte[5000][];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new byte[random.nextInt(20)];
+      random.nextBytes(keys[i]);
+    }
+    checkSort(keys, MemoryAllocator.UNSAFE);
+  }
+
+  @Test
+  public void sharedPrefixes() {
+    // Most keys share their first 8 bytes, so the records decide the order.
+    final Random random = new Random(43);
+    final byte[][] keys = new byte[5000][];
+    for (int i = 0; i < keys.length; i++) {
+      final String key = "customer-" + random.nextInt(1000) + (i % 7 == 0 ? "" : "\0");
+      keys[i] = key.getBytes();
+    }
+    checkSort(keys, MemoryAllocator.HEAP);
+  }
+
+  @Test
+  public void prefixOrder() {
+    final byte[] a = {1, 2, 3};
+    final byte[] b = {1, 2, 3, 0};
+    final byte[] c = {1, 2, (byte) 0xff};
+    final byte[] d = {1, 2, 3, 4, 5, 6, 7, 8, 9};
+    final long prefixA = PrefixSorter.computePrefix(a, PlatformDependent.BYTE_ARRAY_OFFSET, 3);
+    final long prefixB = PrefixSorter.computePrefix(b, PlatformDependent.BYTE_ARRAY_OFFSET, 4);
+    final long prefixC = PrefixSorter.computePrefix(c, PlatformDependent.BYTE_ARRAY_OFFSET, 3);
+    final long prefixD = PrefixSorter.computePrefix(d, PlatformDependent.BYTE_ARRAY_OFFSET, 9);
+    Assert.assertEquals(0x0102030000000000L, prefixA);
+    Assert.assertEquals(prefixA, prefixB);
+    Assert.assertTrue((prefixA ^ Long.MIN_VALUE) < (prefixC ^ Long.MIN_VALUE));
+    Assert.assertEquals(0x0102030405060708L, prefixD);
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.databricks.unsafe.util.memory.HeapMemoryAllocator;
+import com.databricks.unsafe.util.memory.MemoryAllocator;
+import com.databricks.unsafe.util.memory.MemoryBlock;
+
+public class TestRadixSort {
+
+  private static long[] randomLongs(int n, long seed) {
+    final Random random = new Random(seed);
+    final long[] values = new long[n];
+    for (int i = 0; i < n; i++) {
+      values[i] = random.nextLong();
+    }
+    return values;
+  }
+
+  /** Maps unsigned order to signed order, so Arrays.sort can be used as a reference. */
+  private static long[] sortUnsigned(long[] values) {
+    final long[] sorted = new long[values.length];
+    for (int i = 0; i < values.length; i++) {
+      sorted[i] = values[i] ^ Long.MIN_VALUE;
+    }
+    Arrays.sort(sorted);
+    for (int i = 0; i < sorted.length; i++) {
+      sorted[i] ^= Long.MIN_VALUE;
+    }
+    return sorted;
+  }
+
+  @Test
+  public void signed() {
+    final long[] values = randomLongs(10000, 42);
+    final LongArray array = new LongArray(MemoryBlock.fromLongArray(values.clone()));
+    RadixSort.sort(array, 0, values.length, true, MemoryAllocator.UNSAFE);
+    Arrays.sort(values);
+    Assert.assertArrayEquals(values, array.toJvmArray());
+  }
+
+  @Test
+  public void unsigned() {
+    final long[] values = randomLongs(10000, 43);
+    final LongArray array = new LongArray(MemoryBlock.fromLongArray(values.clone()));
+    RadixSort.sort(array, 0, values.length, false, MemoryAllocator.UNSAFE);
+    Assert.assertArrayEquals(sortUnsigned(values), array.toJvmArray());
+  }
+
+  @Test
+  public void constantBytesAreSkipped() {
+    // Only bytes 1 and 3 vary, which takes an even number of passes; bytes 1 to 3 take an odd one.
+    final Random random = new Random(44);
+    for (long mask : new long[] {0xff00ff00L, 0xffffff00L}) {
+      final long[] values = new long[1000];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = (random.nextLong() & mask) | 0x1200000000000000L;
+      }
+      final LongArray array = new LongArray(MemoryBlock.fromLongArray(values.clone()));
+      RadixSort.sort(array, 0, values.length, true, MemoryAllocator.HEAP);
+      Arrays.sort(values);
+      Assert.assertArrayEquals(values, array.toJvmArray());
+    }
+  }
+
+  @Test
+  public void subRange() {
+    final long[] values = randomLongs(1000, 45);
+    final long[] expected = values.clone();
+    final LongArray array = new LongArray(MemoryBlock.fromLongArray(values));
+    RadixSort.sort(array, 100, 900, true, MemoryAllocator.UNSAFE);
+    Arrays.sort(expected, 100, 900);
+    Assert.assertArrayEquals(expected, values);
+  }
+
+  @Test
+  public void segmented() {
+    final long[] values = randomLongs(5000, 46);
+    final LongArray array =
+      new LongArray(new HeapMemoryAllocator().allocateSegmented(values.length * 8, 10));
+    array.copyFrom(values, 0, 0, values.length);
+    RadixSort.sort(array, 0, values.length, false, MemoryAllocator.UNSAFE);
+    Assert.assertArrayEquals(sortUnsigned(values), array.toJvmArray());
+  }
+
+  @Test
+  public void pairs() {
+    final int n = 5000;
+    final Random random = new Random(47);
+    final long[] pairs = new long[n * 2];
+    for (int i = 0; i < n; i++) {
+      // Few distinct keys, so that stability can be checked through the values.
+      pairs[2 * i] = random.nextInt(100) - 50;
+      pairs[2 * i + 1] = i;
+    }
+    final LongArray array = new LongArray(MemoryBlock.fromLongArray(pairs));
+    RadixSort.sortPairs(array, 0, n, true, MemoryAllocator.UNSAFE);
+    for (int i = 1; i < n; i++) {
+      final long prevKey = array.get(2 * i - 2);
+      final long key = array.get(2 * i);
+      Assert.assertTrue(prevKey <= key);
+      if (prevKey == key) {
+        Assert.assertTrue(array.get(2 * i - 1) < array.get(2 * i + 1));
+      }
+    }
+  }
+
+  @Test
+  public void pairsUnsigned() {
+    final long[] keys = randomLongs(3000, 48);
+    final long[] pairs = new long[keys.length * 2];
+    for (int i = 0; i < keys.length; i++) {
+      pairs[2 * i] = keys[i];
+      pairs[2 * i + 1] = ~keys[i];
+    }
+    final LongArray array = new LongArray(MemoryBlock.fromLongArray(pairs));
+    RadixSort.sortPairs(array, 0, keys.length, false, MemoryAllocator.HEAP);
+    final long[] sorted = sortUnsigned(keys);
+    for (int i = 0; i < keys.length; i++) {
+      Assert.assertEquals(sorted[i], array.get(2 * i));
+      Assert.assertEquals(~sorted[i], array.get(2 * i + 1));
+    }
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.databricks.unsafe.util.memory.HeapMemoryAllocator;
+import com.databricks.unsafe.util.memory.MemoryAllocator;
+import com.databricks.unsafe.util.memory.MemoryBlock;
+
+public class TestShortArray {
+
+  @Test
+  public void basicTest() {
+    ShortArray arr = new ShortArray(MemoryBlock.fromShortArray(new short[4]));
+    arr.set(0, (short) 1);
+    arr.set(1, Short.MIN_VALUE);
+    arr.set(3, (short) -1);
+    Assert.assertEquals(4, arr.size());
+    Assert.assertEquals(Short.MIN_VALUE, arr.get(1));
+    Assert.assertArrayEquals(new short[] {1, Short.MIN_VALUE, 0, -1}, arr.toJvmArray());
+  }
+
+  @Test
+  public void fill() {
+    ShortArray arr = new ShortArray(MemoryAllocator.UNSAFE.allocate(100 * 2));
+    try {
+      // 0x2323 is a repeated byte and is filled bytewise, 0x1234 is not.
+      arr.fill(0, 100, (short) 0x2323);
+      arr.fill(10, 90, (short) 0x1234);
+      for (int i = 0; i < 100; i++) {
+        Assert.assertEquals(i < 10 || i >= 90 ? (short) 0x2323 : (short) 0x1234, arr.get(i));
+      }
+    } finally {
+      MemoryAllocator.UNSAFE.free(arr.memoryBlock());
+    }
+  }
+
+  @Test
+  public void segmented() {
+    ShortArray arr = new ShortArray(new HeapMemoryAllocator().allocateSegmented(64, 4));
+    short[] src = new short[32];
+    for (int i = 0; i < src.length; i++) {
+      src[i] = (short) (i * 1000);
+    }
+    arr.copyFrom(src, 0, 0, 32);
+    Assert.assertArrayEquals(src, arr.toJvmArray());
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util.memory;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.databricks.unsafe.util.PlatformDependent;
+
+public class TestAlignedAllocation {
+
+  private static final long[] ALIGNMENTS = {
+    8, MemoryAllocator.CACHE_LINE_SIZE, MemoryAllocator.PAGE_SIZE, MemoryAllocator.HUGE_PAGE_SIZE
+  };
+
+  private static final long[] SIZES = { 1, 24, 100, 5000 };
+
+  /**
+   * Allocates blocks of various sizes and alignments, checks that they are aligned and zeroed, and
+   * dirties them so that reused memory has to be zeroed again.
+   */
+  private static void checkAlignment(MemoryAllocator allocator) {
+    for (int round = 0; round < 2; round++) {
+      for (long alignment : ALIGNMENTS) {
+        for (long size : SIZES) {
+          MemoryBlock block = allocator.allocateAligned(size, alignment);
+          Assert.assertEquals(size, block.size());
+          Assert.assertEquals(
+            "size " + size + ", alignment " + alignment, 0, block.getBaseOffset() % alignment);
+          for (long i = 0; i < size; i++) {
+            Assert.assertEquals(0, PlatformDependent.UNSAFE.getByte(block.getBaseOffset() + i));
+          }
+          PlatformDependent.UNSAFE.setMemory(block.getBaseOffset(), size, (byte) -1);
+          allocator.free(block);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void unsafe() {
+    checkAlignment(MemoryAllocator.UNSAFE);
+  }
+
+  @Test
+  public void pooled() {
+    PooledMemoryAllocator allocator = new PooledMemoryAllocator();
+    checkAlignment(allocator);
+    // Slots of a 4KB class are page-aligned, so page-aligned requests stay in the pool.
+    MemoryBlock block = allocator.allocateAligned(1000, MemoryAllocator.PAGE_SIZE);
+    Assert.assertTrue(block instanceof PooledMemoryAllocator.PooledMemoryBlock);
+    allocator.free(block);
+  }
+
+  @Test
+  public void threadCaching() {
+    checkAlignment(new ThreadCachingMemoryAllocator());
+  }
+
+  @Test
+  public void arena() {
+    ArenaMemoryAllocator arena = new ArenaMemoryAllocator();
+    checkAlignment(arena);
+    arena.close();
+  }
+
+  @Test
+  public void mappedFile() throws Exception {
+    MappedFileMemoryAllocator allocator = new MappedFileMemoryAllocator();
+    try {
+      checkAlignment(allocator);
+    } finally {
+      allocator.close();
+    }
+  }
+
+  @Test
+  public void heapIgnoresAlignment() {
+    MemoryBlock block = MemoryAllocator.HEAP.allocateAligned(128, MemoryAllocator.PAGE_SIZE);
+    Assert.assertEquals(128, block.size());
+    Assert.assertNotNull(block.getBaseObject());
+    MemoryAllocator.HEAP.free(block);
+  }
+}
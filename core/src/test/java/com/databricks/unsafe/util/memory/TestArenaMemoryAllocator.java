@@ -0,0 +1,73 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util.memory;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.databricks.unsafe.util.LongArray;
+import com.databricks.unsafe.util.LongToLongMap;
+
+public class TestArenaMemoryAllocator {
+
+  @Test
+  public void bumpAllocation() {
+    ArenaMemoryAllocator arena = new ArenaMemoryAllocator(MemoryAllocator.UNSAFE, 1024);
+    MemoryBlock a = arena.allocate(24);
+    MemoryBlock b = arena.allocate(8);
+    Assert.assertEquals(32, b.getBaseOffset() - a.getBaseOffset());
+    Assert.assertEquals(1, arena.numChunks());
+
+    // Blocks that don't fit in the rest of the chunk start a new chunk.
+    for (int i = 0; i < 4; i++) {
+      arena.allocate(256);
+    }
+    Assert.assertEquals(2, arena.numChunks());
+
+    // Large blocks get a dedicated chunk.
+    MemoryBlock large = arena.allocate(512);
+    Assert.assertEquals(512, large.size());
+    Assert.assertEquals(3, arena.numChunks());
+    Assert.assertEquals(24 + 8 + 4 * 256 + 512, arena.getAllocatedBytes());
+
+    arena.reset();
+    Assert.assertEquals(0, arena.numChunks());
+    Assert.assertEquals(0, arena.getAllocatedBytes());
+    arena.close();
+  }
+
+  @Test
+  public void dataStructures() {
+    ArenaMemoryAllocator arena = new ArenaMemoryAllocator();
+    for (int round = 0; round < 3; round++) {
+      LongToLongMap map = new LongToLongMap(arena, 64);
+      LongArray arr = new LongArray(arena.allocate(8 * 100));
+      for (int i = 0; i < 1000; i++) {
+        map.put(i, i + round);
+      }
+      for (int i = 0; i < arr.size(); i++) {
+        Assert.assertEquals(0L, arr.get(i));
+        arr.set(i, map.get(i));
+      }
+      for (int i = 0; i < arr.size(); i++) {
+        Assert.assertEquals(i + round, arr.get(i));
+      }
+      arena.reset();
+    }
+    arena.close();
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.databricks.unsafe.util.memory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.databricks.unsafe.util.LongArray;
+
+public class TestBuddyMemoryAllocator {
+
+  private static final long SLAB_SIZE = 64 * 1024;
+
+  private static BuddyMemoryAllocator newAllocator() {
+    return new BuddyMemoryAllocator(MemoryAllocator.UNSAFE, SLAB_SIZE, 64);
+  }
+
+  @Test
+  public void blocksAreAlignedToTheirSize() {
+    BuddyMemoryAllocator allocator = newAllocator();
+    MemoryBlock a = allocator.allocate(64);
+    MemoryBlock b = allocator.allocate(1000);
+    MemoryBlock c = allocator.allocate(100);
+    Assert.assertEquals(0, a.getBaseOffset() % 64);
+    Assert.assertEquals(0, b.getBaseOffset() % 1024);
+    Assert.assertEquals(0, c.getBaseOffset() % 128);
+    // The 64 byte block's buddy is still free, and the 128 byte block goes into the next 128 bytes.
+    Assert.assertEquals(a.getBaseOffset() + 128, c.getBaseOffset());
+    Assert.assertEquals(a.getBaseOffset() + 1024, b.getBaseOffset());
+    allocator.free(a);
+    allocator.free(b);
+    allocator.free(c);
+  }
+
+  @Test
+  public void freedBuddiesAreCoalesced() {
+    BuddyMemoryAllocator allocator = newAllocator();
+    List<MemoryBlock> blocks = new ArrayList<MemoryBlock>();
+    for (int i = 0; i < SLAB_SIZE / 64; i++) {
+      blocks.add(allocator.allocate(64));
+    }
+    Assert.assertEquals(1, allocator.numSlabs());
+    for (MemoryBlock block : blocks) {
+      allocator.free(block);
+    }
+    // Only possible if all the small blocks have been merged back into one.
+    MemoryBlock whole = allocator.allocate(SLAB_SIZE);
+    Assert.assertEquals(1, allocator.numSlabs());
+    allocator.free(whole);
+  }
+
+  @Test
+  public void emptySlabsAreReleased() {
+    BuddyMemoryAllocator allocator = newAllocator();
+    MemoryBlock a = allocator.allocate(SLAB_SIZE);
+    MemoryBlock b = allocator.allocate(SLAB_SIZE / 2);
+    MemoryBlock c = allocator.allocate(SLAB_SIZE / 2 + 1);
+    Assert.assertEquals(3, allocator.numSlabs());
+    allocator.free(a);
+    allocator.free(b);
+    allocator.free(c);
+    Assert.assertEquals(1, allocator.numSlabs());
+  }
+
+  @Test
+  public void largeBlocksBypassSlabs() {
+    BuddyMemoryAllocator allocator = newAllocator();
+    MemoryBlock block = allocator.allocate(SLAB_SIZE + 8);
+    Assert.assertEquals(0, allocator.numSlabs());
+    allocator.free(block);
+  }
+
+  @Test
+  public void reallocateInPlace() {
+    BuddyMemoryAllocator allocator = newAllocator();
+    MemoryBlock block = allocator.allocate(64);
+    new LongArray(block).set(7, 42L);
+
+    // Grows into its free buddies.
+    MemoryBlock grown = allocator.reallocate(block, 4096);
+    Assert.assertEquals(block.getBaseOffset(), grown.getBaseOffset());
+    LongArray arr = new LongArray(grown);
+    Assert.assertEquals(42L, arr.get(7));
+    Assert.assertEquals(0L, arr.get(8));
+
+    // Shrinking releases the upper halves, which are then reused.
+    MemoryBlock shrunk = allocator.reallocate(grown, 128);
+    Assert.assertEquals(block.getBaseOffset(), shrunk.getBaseOffset());
+    MemoryBlock other = allocator.allocate(128);
+    Assert.assertEquals(block.getBaseOffset() + 128, other.getBaseOffset());
+
+    // Now the buddy is in use, so growing has to copy.
+    MemoryBlock moved = allocator.reallocate(shrunk, 256);
+    Assert.assertEquals(block.getBaseOffset() + 256, moved.getBaseOffset());
+    Assert.assertEquals(42L, new LongArray(moved).get(7));
+
+    allocator.free(other);
+    allocator.free(moved);
+    MemoryBlock whole = allocator.allocate(SLAB_SIZE);
+    Assert.assertEquals(1, allocator.numSlabs());
+    allocator.free(whole);
+  }
+
+  @Test
+  public void maxDepth() {
+    // Slabs are only allocated on demand, so this doesn't allocate a 1GB tree.
+    new BuddyMemoryAllocator(MemoryAllocator.UNSAFE, 8L << BuddyMemoryAllocator.MAX_DEPTH, 8);
+    try {
+      new BuddyMemoryAllocator(
+        MemoryAllocator.UNSAFE, 8L << (BuddyMemoryAllocator.MAX_DEPTH + 1), 8);
+      Assert.fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // Expected: the tree would need 2^31 nodes.
+    }
+  }
+
+  @Test
+  public void randomizedAllocations() {
+    BuddyMemoryAllocator allocator = newAllocator();
+    Random random = new Random(42);
+    List<MemoryBlock> blocks = new ArrayList<MemoryBlock>();
+    for (int i = 0; i < 10000; i++) {
+      if (!blocks.isEmpty() && random.nextInt(3) == 0) {
+        MemoryBlock block = blocks.remove(random.nextInt(blocks.size()));
+        checkContent(block);
+        allocator.free(block);
+      } else if (!blocks.isEmpty() && random.nextInt(3) == 0) {
+        int index = random.nextInt(blocks.size());
+        MemoryBlock block = blocks.get(index);
+        checkContent(block);
+        long newSize = 8 * (1 + random.nextInt(1024));
+        MemoryBlock resized = allocator.reallocate(block, newSize);
+        LongArray arr = new LongArray(resized);
+        long oldLength = block.size() / 8;
+        for (long j = 0; j < arr.size(); j++) {
+          Assert.assertEquals(j < oldLength ? block.getBaseOffset() : 0L, arr.get(j));
+        }
+        fill(resized);
+        blocks.set(index, resized);
+      } else {
+        MemoryBlock block = allocator.allocate(8 * (1 + random.nextInt(1024)));
+        LongArray arr = new LongArray(block);
+        for (long j = 0; j < arr.size(); j++) {
+          Assert.assertEquals(0L, arr.get(j));
+        }
+        fill(block);
+        blocks.add(block);
+      }
+    }
+    for (MemoryBlock block : blocks) {
+      checkContent(block);
+      allocator.free(block);
+    }
+    Assert.assertEquals(1, allocator.numSlabs());
+  }
+
+  /** Fills a block with its own address, so that overlapping blocks are detected. */
+  private static void fill(MemoryBlock block) {
+    LongArray arr = new LongArray(block);
+    for (long j = 0; j < arr.size(); j++) {
+      arr.set(j, block.getBaseOffset());
+    }
+  }
+
+  private static void checkContent(MemoryBlock block) {
+    LongArray arr = new LongArray(block);
+    for (long j = 0; j < arr.size(); j++) {
+      Assert.assertEquals(block.getBaseOffset(), arr.get(j));
+    }
+  }
+}
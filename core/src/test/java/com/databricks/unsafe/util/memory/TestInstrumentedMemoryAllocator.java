@@ -0,0 +1,172 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.databricks.unsafe.util.memory;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.databricks.unsafe.util.LongArray;
+import com.databricks.unsafe.util.PlatformDependent;
+
+public class TestInstrumentedMemoryAllocator {
+
+  @Test
+  public void histogramBuckets() {
+    Assert.assertEquals(0, InstrumentedMemoryAllocator.histogramBucket(0));
+    Assert.assertEquals(0, InstrumentedMemoryAllocator.histogramBucket(1));
+    Assert.assertEquals(1, InstrumentedMemoryAllocator.histogramBucket(2));
+    Assert.assertEquals(2, InstrumentedMemoryAllocator.histogramBucket(3));
+    Assert.assertEquals(2, InstrumentedMemoryAllocator.histogramBucket(4));
+    Assert.assertEquals(10, InstrumentedMemoryAllocator.histogramBucket(1024));
+    Assert.assertEquals(11, InstrumentedMemoryAllocator.histogramBucket(1025));
+    Assert.assertEquals(63, InstrumentedMemoryAllocator.histogramBucket(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void counters() {
+    InstrumentedMemoryAllocator allocator =
+      new InstrumentedMemoryAllocator(MemoryAllocator.UNSAFE);
+    MemoryBlock a = allocator.allocateUninitialized(24);
+    MemoryBlock b = allocator.allocate(1000);
+    Assert.assertEquals(1024, allocator.getLiveBytes());
+    Assert.assertEquals(2, allocator.getAllocationCount());
+
+    a = allocator.reallocate(a, 48);
+    Assert.assertEquals(1048, allocator.getLiveBytes());
+    Assert.assertEquals(1048, allocator.getAllocatedBytes());
+    Assert.assertEquals(1048, allocator.getPeakBytes());
+
+    allocator.free(b);
+    Assert.assertEquals(48, allocator.getLiveBytes());
+    Assert.assertEquals(1048, allocator.getPeakBytes());
+    allocator.resetPeakBytes();
+    Assert.assertEquals(48, allocator.getPeakBytes());
+
+    allocator.free(a);
+    Assert.assertEquals(0, allocator.getLiveBytes());
+    Assert.assertEquals(2, allocator.getFreeCount());
+
+    long[] histogram = allocator.getSizeHistogram();
+    Assert.assertEquals(1, histogram[5]);
+    Assert.assertEquals(1, histogram[10]);
+  }
+
+  @Test
+  public void peakIsSampledForLargeAllocations() {
+    InstrumentedMemoryAllocator allocator =
+      new InstrumentedMemoryAllocator(MemoryAllocator.UNSAFE);
+    MemoryBlock block = allocator.allocateUninitialized(2 * 1024 * 1024);
+    allocator.free(block);
+    Assert.assertEquals(2 * 1024 * 1024, allocator.getPeakBytes());
+  }
+
+  @Test
+  public void zeroing() {
+    InstrumentedMemoryAllocator allocator =
+      new InstrumentedMemoryAllocator(new PooledMemoryAllocator());
+    MemoryBlock block = allocator.allocateUninitialized(64);
+    PlatformDependent.UNSAFE.setMemory(
+      block.getBaseObject(), block.getBaseOffset(), 64, (byte) -1);
+    allocator.free(block);
+
+    // The recycled slot is zeroed by the pooled allocator.
+    block = allocator.allocate(64);
+    for (int i = 0; i < 64; i++) {
+      Assert.assertEquals(0, PlatformDependent.UNSAFE.getByte(
+        block.getBaseObject(), block.getBaseOffset() + i));
+    }
+    allocator.free(block);
+    allocator.free(allocator.allocate(1024 * 1024));
+    Assert.assertTrue(allocator.getZeroingTimeNanos() > 0);
+  }
+
+  @Test
+  public void zeroSegmentedBlocks() throws Exception {
+    // 64KB chunks, so that larger blocks are segmented.
+    MappedFileMemoryAllocator mapped = new MappedFileMemoryAllocator(
+      File.createTempFile("unsafe-mmap-", ".bin"), true, 16);
+    InstrumentedMemoryAllocator allocator = new InstrumentedMemoryAllocator(mapped);
+    MemoryBlock block = allocator.allocate(8 * 20000);
+    Assert.assertTrue(block instanceof SegmentedMemoryBlock);
+    LongArray arr = new LongArray(block);
+    for (long i = 0; i < arr.size(); i++) {
+      arr.set(i, -1L);
+    }
+    MemoryBlock other = allocator.allocate(4096);
+    allocator.free(block);
+
+    LongArray reused = new LongArray(allocator.allocate(8 * 20000));
+    for (long i = 0; i < reused.size(); i++) {
+      Assert.assertEquals(0L, reused.get(i));
+    }
+    Assert.assertEquals(8 * 20000 + 4096, allocator.getLiveBytes());
+    allocator.free(reused.memoryBlock());
+    allocator.free(other);
+    mapped.close();
+  }
+
+  @Test
+  public void concurrentUpdates() throws Exception {
+    final InstrumentedMemoryAllocator allocator =
+      new InstrumentedMemoryAllocator(MemoryAllocator.UNSAFE);
+    final int numThreads = 4;
+    final int numAllocations = 10000;
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < numThreads; t++) {
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < numAllocations; i++) {
+            allocator.free(allocator.allocateUninitialized(16));
+          }
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertEquals(numThreads * numAllocations, allocator.getAllocationCount());
+    Assert.assertEquals(numThreads * numAllocations, allocator.getFreeCount());
+    Assert.assertEquals(0, allocator.getLiveBytes());
+    Assert.assertEquals(numThreads * numAllocations, allocator.getSizeHistogram()[4]);
+  }
+
+  @Test
+  public void mbean() throws Exception {
+    InstrumentedMemoryAllocator allocator =
+      new InstrumentedMemoryAllocator(MemoryAllocator.UNSAFE);
+    MemoryBlock block = allocator.allocate(128);
+    ObjectName name = allocator.register("test");
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      Assert.assertEquals(128L, server.getAttribute(name, "LiveBytes"));
+      Assert.assertEquals(1L, server.getAttribute(name, "AllocationCount"));
+    } finally {
+      server.unregisterMBean(name);
+      allocator.free(block);
+    }
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util.memory;
+
+import java.io.File;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.databricks.unsafe.util.LongArray;
+
+public class TestLeakDetectingMemoryAllocator {
+
+  @Test(timeout = 10000)
+  public void reportLeaks() throws Exception {
+    LeakDetectingMemoryAllocator allocator =
+      new LeakDetectingMemoryAllocator(MemoryAllocator.HEAP);
+    allocator.free(allocator.allocate(64));
+    allocator.allocate(64);
+
+    while (allocator.getNumLeaks() == 0) {
+      System.gc();
+      Thread.sleep(10);
+      allocator.reportLeaks();
+    }
+    Assert.assertEquals(1, allocator.getNumLeaks());
+  }
+
+  @Test
+  public void doubleFree() {
+    LeakDetectingMemoryAllocator allocator =
+      new LeakDetectingMemoryAllocator(MemoryAllocator.UNSAFE);
+    MemoryBlock block = allocator.allocate(64);
+    allocator.free(block);
+    try {
+      allocator.free(block);
+      Assert.fail("expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      Assert.assertTrue(e.getMessage().startsWith("Double free"));
+    }
+  }
+
+  @Test
+  public void poisonFreedMemory() {
+    byte[] bytes = new byte[16];
+    final MemoryBlock block = MemoryBlock.fromByteArray(bytes);
+    LeakDetectingMemoryAllocator allocator = new LeakDetectingMemoryAllocator(
+      new MemoryAllocator() {
+        @Override
+        public MemoryBlock allocate(long size) {
+          return block;
+        }
+
+        @Override
+        public MemoryBlock allocateUninitialized(long size) {
+          return block;
+        }
+
+        @Override
+        public MemoryBlock allocateAligned(long size, long alignment) {
+          return block;
+        }
+
+        @Override
+        public MemoryBlock reallocate(MemoryBlock memory, long newSize) {
+          return block;
+        }
+
+        @Override
+        public void free(MemoryBlock memory) {
+          Assert.assertSame(block, memory);
+        }
+      }, 0.5, true);
+
+    allocator.free(allocator.allocate(16));
+    for (byte b : bytes) {
+      Assert.assertEquals(LeakDetectingMemoryAllocator.POISON, b);
+    }
+  }
+
+  @Test
+  public void segmentedBlocks() throws Exception {
+    // 64KB chunks, so that larger blocks are segmented.
+    MappedFileMemoryAllocator mapped = new MappedFileMemoryAllocator(
+      File.createTempFile("unsafe-mmap-", ".bin"), true, 16);
+    LeakDetectingMemoryAllocator allocator = new LeakDetectingMemoryAllocator(mapped);
+    MemoryBlock block = allocator.allocate(8 * 20000);
+    Assert.assertTrue(block instanceof SegmentedMemoryBlock);
+    LongArray arr = new LongArray(block);
+    for (long i = 0; i < arr.size(); i++) {
+      arr.set(i, i);
+    }
+
+    MemoryBlock grown = allocator.reallocate(block, 8 * 30000);
+    Assert.assertTrue(grown instanceof SegmentedMemoryBlock);
+    LongArray grownArr = new LongArray(grown);
+    for (long i = 0; i < grownArr.size(); i++) {
+      Assert.assertEquals(i < 20000 ? i : 0L, grownArr.get(i));
+    }
+    try {
+      allocator.free(block);
+      Assert.fail("expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      Assert.assertTrue(e.getMessage().startsWith("Double free"));
+    }
+    allocator.free(grown);
+    Assert.assertEquals(0, mapped.fileSize());
+    mapped.close();
+  }
+
+  @Test
+  public void poisonSegmentedBlock() {
+    final SegmentedMemoryBlock block = new HeapMemoryAllocator().allocateSegmented(1000, 7);
+    LeakDetectingMemoryAllocator allocator = new LeakDetectingMemoryAllocator(
+      new HeapMemoryAllocator() {
+        @Override
+        public MemoryBlock allocate(long size) {
+          return block;
+        }
+
+        @Override
+        public void free(MemoryBlock memory) {
+          Assert.assertSame(block, memory);
+        }
+      }, 1.0, true);
+
+    allocator.free(allocator.allocate(1000));
+    for (long[] segment : block.getSegments()) {
+      for (long word : segment) {
+        Assert.assertEquals(0xDEDEDEDEDEDEDEDEL, word);
+      }
+    }
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util.memory;
+
+import java.io.File;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.databricks.unsafe.util.ExternalSorter;
+import com.databricks.unsafe.util.LongArray;
+import com.databricks.unsafe.util.LongToLongMap;
+
+public class TestMappedFileMemoryAllocator {
+
+  @Test
+  public void longArray() throws Exception {
+    MappedFileMemoryAllocator allocator = new MappedFileMemoryAllocator();
+    File file = allocator.getFile();
+    LongArray arr = new LongArray(allocator.allocate(8 * 1000));
+    for (int i = 0; i < arr.size(); i++) {
+      Assert.assertEquals(0L, arr.get(i));
+      arr.set(i, i * 3L);
+    }
+    for (int i = 0; i < arr.size(); i++) {
+      Assert.assertEquals(i * 3L, arr.get(i));
+    }
+    Assert.assertEquals(8192, allocator.fileSize());
+
+    allocator.close();
+    Assert.assertFalse(file.exists());
+  }
+
+  @Test
+  public void freedRegionsAreReusedAndZeroed() throws Exception {
+    MappedFileMemoryAllocator allocator = new MappedFileMemoryAllocator();
+    MemoryBlock first = allocator.allocate(4096);
+    MemoryBlock second = allocator.allocate(4096);
+    LongArray arr = new LongArray(first);
+    for (int i = 0; i < arr.size(); i++) {
+      arr.set(i, -1L);
+    }
+    allocator.free(first);
+    Assert.assertEquals(8192, allocator.fileSize());
+
+    LongArray reused = new LongArray(allocator.allocate(1024));
+    Assert.assertEquals(8192, allocator.fileSize());
+    for (int i = 0; i < reused.size(); i++) {
+      Assert.assertEquals(0L, reused.get(i));
+    }
+
+    // Freeing the block at the end of the file shrinks the file.
+    allocator.free(second);
+    Assert.assertEquals(4096, allocator.fileSize());
+    allocator.close();
+  }
+
+  @Test
+  public void hashMap() throws Exception {
+    MappedFileMemoryAllocator allocator = new MappedFileMemoryAllocator();
+    LongToLongMap map = new LongToLongMap(allocator, 64);
+    for (int i = 0; i < 10000; i++) {
+      map.put(i, i * 2L);
+    }
+    for (int i = 0; i < 10000; i++) {
+      Assert.assertEquals(i * 2L, map.get(i));
+    }
+    map.free();
+    allocator.close();
+  }
+
+  /** Allocator with 64KB chunks, so blocks are segmented without mapping over 2GB. */
+  private static MappedFileMemoryAllocator chunkedAllocator() throws Exception {
+    return new MappedFileMemoryAllocator(
+      File.createTempFile("unsafe-mmap-", ".bin"), true, 16);
+  }
+
+  @Test
+  public void blocksLargerThanAChunkAreSegmented() throws Exception {
+    MappedFileMemoryAllocator allocator = chunkedAllocator();
+    MemoryBlock block = allocator.allocate(8 * 20000);
+    Assert.assertTrue(block instanceof SegmentedMemoryBlock);
+    Assert.assertEquals(3, ((SegmentedMemoryBlock) block).getSegmentOffsets().length);
+    LongArray arr = new LongArray(block);
+    for (int i = 0; i < arr.size(); i++) {
+      Assert.assertEquals(0L, arr.get(i));
+      arr.set(i, i * 3L);
+    }
+    for (int i = 0; i < arr.size(); i++) {
+      Assert.assertEquals(i * 3L, arr.get(i));
+    }
+    MemoryBlock other = allocator.allocate(4096);
+    allocator.free(block);
+
+    // The freed region is reused, and cleared across all of its chunks.
+    LongArray reused = new LongArray(allocator.allocate(8 * 20000));
+    for (int i = 0; i < reused.size(); i++) {
+      Assert.assertEquals(0L, reused.get(i));
+    }
+    allocator.free(other);
+    allocator.close();
+  }
+
+  @Test
+  public void reallocateAcrossChunks() throws Exception {
+    MappedFileMemoryAllocator allocator = chunkedAllocator();
+    MemoryBlock block = allocator.allocate(8 * 1000);
+    Assert.assertFalse(block instanceof SegmentedMemoryBlock);
+    LongArray arr = new LongArray(block);
+    for (int i = 0; i < arr.size(); i++) {
+      arr.set(i, i + 1L);
+    }
+
+    // At the end of the file, so the region is extended and remapped in chunks.
+    MemoryBlock grown = allocator.reallocate(block, 8 * 30000);
+    Assert.assertTrue(grown instanceof SegmentedMemoryBlock);
+    LongArray grownArr = new LongArray(grown);
+    for (int i = 0; i < grownArr.size(); i++) {
+      Assert.assertEquals(i < 1000 ? i + 1L : 0L, grownArr.get(i));
+      grownArr.set(i, -i);
+    }
+
+    // Not at the end of the file any more, so it is copied.
+    MemoryBlock other = allocator.allocate(4096);
+    MemoryBlock copied = allocator.reallocate(grown, 8 * 40000);
+    LongArray copiedArr = new LongArray(copied);
+    for (int i = 0; i < copiedArr.size(); i++) {
+      Assert.assertEquals(i < 30000 ? -i : 0L, copiedArr.get(i));
+    }
+    allocator.free(copied);
+    allocator.free(other);
+    allocator.close();
+  }
+
+  @Test
+  public void hashMapLargerThanAChunk() throws Exception {
+    MappedFileMemoryAllocator allocator = chunkedAllocator();
+    LongToLongMap map = new LongToLongMap(allocator, 64);
+    for (int i = 0; i < 100000; i++) {
+      map.put(i, i * 2L);
+    }
+    for (int i = 0; i < 100000; i++) {
+      Assert.assertEquals(i * 2L, map.get(i));
+    }
+    map.free();
+    allocator.close();
+  }
+
+  @Test
+  public void externalSorterWithSegmentedBuffer() throws Exception {
+    MappedFileMemoryAllocator allocator = chunkedAllocator();
+    // 160KB of pairs, over three chunks.
+    ExternalSorter sorter = new ExternalSorter(allocator, 10000, null, true);
+    Random random = new Random(42);
+    for (int i = 0; i < 25000; i++) {
+      sorter.insert(random.nextLong(), i);
+    }
+    Assert.assertEquals(2, sorter.numSpills());
+    ExternalSorter.SortedIterator it = sorter.sortedIterator();
+    long count = 0;
+    long prevKey = Long.MIN_VALUE;
+    while (it.next()) {
+      Assert.assertTrue(prevKey <= it.getKey());
+      prevKey = it.getKey();
+      count++;
+    }
+    Assert.assertEquals(25000, count);
+    sorter.close();
+    allocator.close();
+  }
+}
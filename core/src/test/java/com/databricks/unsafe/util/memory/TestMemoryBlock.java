@@ -0,0 +1,229 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.databricks.unsafe.util.memory;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.databricks.unsafe.util.LongArray;
+
+public class TestMemoryBlock {
+
+  @Test
+  public void fromDirectByteBuffer() {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(64).order(ByteOrder.nativeOrder());
+    buffer.position(8);
+    MemoryBlock block = MemoryBlock.fromByteBuffer(buffer);
+    Assert.assertNull(block.getBaseObject());
+    Assert.assertEquals(56, block.size());
+
+    LongArray arr = new LongArray(block);
+    arr.set(0, 42L);
+    Assert.assertEquals(42L, buffer.getLong(8));
+  }
+
+  @Test
+  public void fromHeapByteBuffer() {
+    byte[] bytes = new byte[64];
+    ByteBuffer buffer = ByteBuffer.wrap(bytes, 16, 32).slice().order(ByteOrder.nativeOrder());
+    MemoryBlock block = MemoryBlock.fromByteBuffer(buffer);
+    Assert.assertSame(bytes, block.getBaseObject());
+    Assert.assertEquals(32, block.size());
+
+    LongArray arr = new LongArray(block);
+    arr.set(1, -1L);
+    Assert.assertEquals(-1L, buffer.getLong(8));
+    Assert.assertEquals((byte) -1, bytes[24]);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void readOnlyBuffersAreRejected() {
+    MemoryBlock.fromByteBuffer(ByteBuffer.allocate(16).asReadOnlyBuffer());
+  }
+
+  @Test
+  public void offHeapBlockToByteBuffer() {
+    MemoryBlock block = MemoryAllocator.UNSAFE.allocate(64);
+    try {
+      ByteBuffer buffer = block.toByteBuffer();
+      Assert.assertTrue(buffer.isDirect());
+      Assert.assertEquals(0, buffer.position());
+      Assert.assertEquals(64, buffer.limit());
+      Assert.assertEquals(64, buffer.capacity());
+
+      buffer.putLong(16, 7L);
+      Assert.assertEquals(7L, new LongArray(block).get(2));
+    } finally {
+      MemoryAllocator.UNSAFE.free(block);
+    }
+  }
+
+  @Test
+  public void byteArrayBlockToByteBuffer() {
+    byte[] bytes = new byte[16];
+    ByteBuffer buffer = MemoryBlock.fromByteArray(bytes).toByteBuffer();
+    Assert.assertFalse(buffer.isDirect());
+    buffer.put(3, (byte) 5);
+    Assert.assertEquals(5, bytes[3]);
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void longArrayBlockToByteBuffer() {
+    MemoryBlock.fromLongArray(new long[2]).toByteBuffer();
+  }
+
+  @Test
+  public void fileChannelRoundTrip() throws Exception {
+    File file = File.createTempFile("test-memory-block", ".bin");
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    FileChannel channel = raf.getChannel();
+    MemoryBlock block = MemoryAllocator.UNSAFE.allocate(8 * 1024);
+    MemoryBlock copy = MemoryAllocator.UNSAFE.allocate(8 * 1024);
+    try {
+      LongArray arr = new LongArray(block);
+      for (int i = 0; i < arr.size(); i++) {
+        arr.set(i, i * 31L);
+      }
+      ByteBuffer out = block.toByteBuffer();
+      while (out.hasRemaining()) {
+        channel.write(out);
+      }
+
+      channel.position(0);
+      ByteBuffer in = copy.toByteBuffer();
+      while (in.hasRemaining() && channel.read(in) >= 0) {
+        // Keep reading
+      }
+      LongArray copyArr = new LongArray(copy);
+      for (int i = 0; i < copyArr.size(); i++) {
+        Assert.assertEquals(i * 31L, copyArr.get(i));
+      }
+    } finally {
+      MemoryAllocator.UNSAFE.free(block);
+      MemoryAllocator.UNSAFE.free(copy);
+      channel.close();
+      raf.close();
+      Assert.assertTrue(file.delete());
+    }
+  }
+
+  private static MemoryBlock bytes(int... values) {
+    byte[] bytes = new byte[values.length];
+    for (int i = 0; i < values.length; i++) {
+      bytes[i] = (byte) values[i];
+    }
+    return MemoryBlock.fromByteArray(bytes);
+  }
+
+  @Test
+  public void sliceAndFill() {
+    MemoryBlock block = MemoryAllocator.UNSAFE.allocate(64);
+    try {
+      MemoryBlock slice = block.slice(16, 16);
+      Assert.assertEquals(16, slice.size());
+      Assert.assertEquals(block.getBaseOffset() + 16, slice.getBaseOffset());
+      slice.fill((byte) 1);
+
+      LongArray arr = new LongArray(block);
+      Assert.assertEquals(0L, arr.get(1));
+      Assert.assertEquals(0x0101010101010101L, arr.get(2));
+      Assert.assertEquals(0x0101010101010101L, arr.get(3));
+      Assert.assertEquals(0L, arr.get(4));
+
+      block.fill((byte) 0);
+      Assert.assertEquals(0L, arr.get(2));
+    } finally {
+      MemoryAllocator.UNSAFE.free(block);
+    }
+  }
+
+  @Test
+  public void copyBetweenHeapAndOffHeap() {
+    MemoryBlock heap = MemoryBlock.fromLongArray(new long[] { 1, 2, 3, 4 });
+    MemoryBlock offHeap = MemoryAllocator.UNSAFE.allocate(32);
+    try {
+      MemoryBlock.copy(heap, 8, offHeap, 0, 24);
+      LongArray arr = new LongArray(offHeap);
+      Assert.assertEquals(2L, arr.get(0));
+      Assert.assertEquals(4L, arr.get(2));
+      Assert.assertEquals(0L, arr.get(3));
+    } finally {
+      MemoryAllocator.UNSAFE.free(offHeap);
+    }
+  }
+
+  @Test
+  public void overlappingCopy() {
+    // Larger than the chunk size of PlatformDependent.copyMemory.
+    final int n = 3 * 1024 * 1024 / 8;
+    MemoryBlock block = MemoryAllocator.UNSAFE.allocate((n + 1) * 8L);
+    try {
+      LongArray arr = new LongArray(block);
+      for (int i = 0; i < n; i++) {
+        arr.set(i, i);
+      }
+      MemoryBlock.copy(block, 0, block, 8, n * 8L);
+      for (int i = 0; i < n; i++) {
+        Assert.assertEquals(i, arr.get(i + 1));
+      }
+      MemoryBlock.copy(block, 8, block, 0, n * 8L);
+      for (int i = 0; i < n; i++) {
+        Assert.assertEquals(i, arr.get(i));
+      }
+    } finally {
+      MemoryAllocator.UNSAFE.free(block);
+    }
+  }
+
+  @Test
+  public void equalsAndCompare() {
+    MemoryBlock a = bytes(1, 2, 3, 4, 5, 6, 7, 8, 9, 10);
+    MemoryBlock b = bytes(1, 2, 3, 4, 5, 6, 7, 8, 9, 10);
+    Assert.assertTrue(a.contentEquals(b));
+    Assert.assertEquals(0, a.compareContent(b));
+
+    // Differences in the word-at-a-time part and in the tail.
+    MemoryBlock c = bytes(1, 2, 3, 4, 5, 6, 7, 9, 9, 10);
+    MemoryBlock d = bytes(1, 2, 3, 4, 5, 6, 7, 8, 9, 11);
+    Assert.assertFalse(a.contentEquals(c));
+    Assert.assertFalse(a.contentEquals(d));
+    Assert.assertTrue(a.compareContent(c) < 0);
+    Assert.assertTrue(c.compareContent(a) > 0);
+    Assert.assertTrue(a.compareContent(d) < 0);
+    Assert.assertTrue(MemoryBlock.rangeEquals(a, 0, c, 0, 7));
+
+    // The first differing byte decides, not the numeric value of the word.
+    MemoryBlock e = bytes(2, 0, 0, 0, 0, 0, 0, 0);
+    MemoryBlock f = bytes(1, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff);
+    Assert.assertTrue(e.compareContent(f) > 0);
+
+    // Bytes are unsigned.
+    Assert.assertTrue(bytes(0x80).compareContent(bytes(0x7f)) > 0);
+    Assert.assertTrue(bytes(0, 0, 0, 0, 0, 0, 0, 0x80)
+      .compareContent(bytes(0, 0, 0, 0, 0, 0, 0, 0x7f)) > 0);
+
+    // A prefix is smaller.
+    Assert.assertTrue(MemoryBlock.compare(a, 0, 9, b, 0, 10) < 0);
+    Assert.assertTrue(a.slice(0, 9).compareContent(b) < 0);
+    Assert.assertFalse(a.slice(0, 9).contentEquals(b));
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util.memory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.databricks.unsafe.util.LongToLongMap;
+
+public class TestMemoryManager {
+
+  /** A consumer that holds on to its blocks until it is asked to spill. */
+  private static class SpillableConsumer extends MemoryConsumer {
+    final List<MemoryBlock> blocks = new ArrayList<MemoryBlock>();
+    int numSpills = 0;
+
+    SpillableConsumer(MemoryManager manager) {
+      super(manager, MemoryAllocator.HEAP);
+    }
+
+    void hold(long size) {
+      blocks.add(allocate(size));
+    }
+
+    @Override
+    protected long spill(long size, MemoryConsumer trigger) {
+      numSpills++;
+      long released = 0;
+      while (released < size && !blocks.isEmpty()) {
+        MemoryBlock block = blocks.remove(blocks.size() - 1);
+        released += block.size();
+        free(block);
+      }
+      return released;
+    }
+  }
+
+  @Test
+  public void accounting() {
+    MemoryManager manager = new MemoryManager(1024);
+    MemoryConsumer consumer = new MemoryConsumer(manager, MemoryAllocator.HEAP);
+    MemoryBlock a = consumer.allocate(512);
+    MemoryBlock b = consumer.allocate(256);
+    Assert.assertEquals(768, consumer.getUsed());
+    Assert.assertEquals(768, manager.getUsedMemory());
+
+    consumer.free(a);
+    consumer.free(b);
+    Assert.assertEquals(0, consumer.getUsed());
+    Assert.assertEquals(0, manager.getUsedMemory());
+    consumer.close();
+  }
+
+  @Test
+  public void chargesActualBlockSize() {
+    MemoryManager manager = new MemoryManager(1024);
+    MemoryConsumer consumer = new MemoryConsumer(manager, MemoryAllocator.HEAP);
+    // The heap allocator rounds sizes down to whole longs.
+    MemoryBlock a = consumer.allocate(13);
+    Assert.assertEquals(a.size(), consumer.getUsed());
+    MemoryBlock b = consumer.allocateUninitialized(21);
+    MemoryBlock c = consumer.allocateAligned(45, 8);
+    Assert.assertEquals(a.size() + b.size() + c.size(), manager.getUsedMemory());
+    b = consumer.reallocate(b, 101);
+    Assert.assertEquals(a.size() + b.size() + c.size(), manager.getUsedMemory());
+    c = consumer.reallocate(c, 3);
+    Assert.assertEquals(a.size() + b.size() + c.size(), manager.getUsedMemory());
+
+    consumer.free(a);
+    consumer.free(b);
+    consumer.free(c);
+    Assert.assertEquals(0, consumer.getUsed());
+    Assert.assertEquals(0, manager.getUsedMemory());
+    consumer.close();
+  }
+
+  @Test
+  public void spillOtherConsumers() {
+    MemoryManager manager = new MemoryManager(1024);
+    SpillableConsumer large = new SpillableConsumer(manager);
+    SpillableConsumer small = new SpillableConsumer(manager);
+    MemoryConsumer requester = new MemoryConsumer(manager, MemoryAllocator.HEAP);
+    large.hold(256);
+    large.hold(256);
+    large.hold(256);
+    small.hold(128);
+
+    // Needs 384 more bytes than are available: the largest consumer should spill first.
+    requester.allocate(512);
+    Assert.assertEquals(1, large.numSpills);
+    Assert.assertEquals(0, small.numSpills);
+    Assert.assertEquals(256, large.getUsed());
+    Assert.assertEquals(128, small.getUsed());
+    Assert.assertEquals(896, manager.getUsedMemory());
+  }
+
+  @Test
+  public void spillSelf() {
+    MemoryManager manager = new MemoryManager(1024);
+    SpillableConsumer consumer = new SpillableConsumer(manager);
+    consumer.hold(512);
+    consumer.hold(512);
+    consumer.hold(512);
+    Assert.assertEquals(1, consumer.numSpills);
+    Assert.assertEquals(1024, manager.getUsedMemory());
+  }
+
+  @Test(timeout = 10000)
+  public void spillOutsideOfManagerLock() throws InterruptedException {
+    final MemoryManager manager = new MemoryManager(1024);
+    final Object lock = new Object();
+    final CountDownLatch spilling = new CountDownLatch(1);
+    // A consumer whose spill needs a lock that is held by a thread using the manager.
+    final SpillableConsumer locked = new SpillableConsumer(manager) {
+      @Override
+      protected long spill(long size, MemoryConsumer trigger) {
+        spilling.countDown();
+        synchronized (lock) {
+          return super.spill(size, trigger);
+        }
+      }
+    };
+    locked.hold(512);
+    locked.hold(512);
+    final MemoryConsumer requester = new MemoryConsumer(manager, MemoryAllocator.HEAP);
+    final Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        requester.allocate(512);
+      }
+    });
+    synchronized (lock) {
+      thread.start();
+      spilling.await();
+      // Would deadlock if the spill held the manager's lock.
+      Assert.assertEquals(1024, manager.getUsedMemory());
+    }
+    thread.join();
+    Assert.assertEquals(512, locked.getUsed());
+    Assert.assertEquals(512, requester.getUsed());
+  }
+
+  @Test
+  public void failWhenNothingCanSpill() {
+    MemoryManager manager = new MemoryManager(1024);
+    MemoryConsumer consumer = new MemoryConsumer(manager, MemoryAllocator.HEAP);
+    consumer.allocate(1000);
+    try {
+      consumer.allocate(100);
+      Assert.fail("expected OutOfMemoryError");
+    } catch (OutOfMemoryError e) {
+      // Expected.
+    }
+    Assert.assertEquals(1000, manager.getUsedMemory());
+  }
+
+  @Test
+  public void hashMapStaysUsableWhenGrowthFails() {
+    // Enough for the initial table of 1024 slots (16KB + 128 bytes) but not for doubling it.
+    MemoryManager manager = new MemoryManager(32 * 1024);
+    MemoryConsumer consumer = new MemoryConsumer(manager, MemoryAllocator.UNSAFE);
+    LongToLongMap map = new LongToLongMap(consumer, 1024);
+    int inserted = 0;
+    try {
+      for (int i = 0; i < 1024; i++) {
+        map.put(i, i);
+        inserted++;
+      }
+      Assert.fail("expected OutOfMemoryError");
+    } catch (OutOfMemoryError e) {
+      // Expected.
+    }
+
+    for (int i = 0; i <= inserted; i++) {
+      Assert.assertEquals(i, map.get(i));
+    }
+    map.free();
+    Assert.assertEquals(0, manager.getUsedMemory());
+  }
+}
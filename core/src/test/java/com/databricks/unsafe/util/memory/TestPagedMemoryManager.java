@@ -0,0 +1,74 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util.memory;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.databricks.unsafe.util.LongArray;
+import com.databricks.unsafe.util.PlatformDependent;
+
+public class TestPagedMemoryManager {
+
+  private void storeAndLookupRecords(MemoryAllocator allocator) {
+    PagedMemoryManager manager = new PagedMemoryManager(allocator);
+    MemoryBlock page1 = manager.allocatePage(1024);
+    MemoryBlock page2 = manager.allocatePage(1024);
+    LongArray pointers = new LongArray(MemoryBlock.fromLongArray(new long[4]));
+
+    // Write two records into each page and remember their encoded pointers.
+    for (int i = 0; i < 4; i++) {
+      MemoryBlock page = (i % 2 == 0) ? page1 : page2;
+      long address = page.getBaseOffset() + (i / 2) * 16;
+      PlatformDependent.UNSAFE.putLong(page.getBaseObject(), address, i * 100L);
+      pointers.set(i, PagedMemoryManager.encodePageNumberAndOffset(page, address));
+    }
+
+    for (int i = 0; i < 4; i++) {
+      long pointer = pointers.get(i);
+      Assert.assertEquals(i * 100L, PlatformDependent.UNSAFE.getLong(
+        manager.getPage(pointer), manager.getOffsetInPage(pointer)));
+      Assert.assertEquals((i / 2) * 16, PagedMemoryManager.decodeOffset(pointer));
+    }
+    Assert.assertEquals(2048, manager.freeAllPages());
+  }
+
+  @Test
+  public void offHeapPages() {
+    storeAndLookupRecords(MemoryAllocator.UNSAFE);
+  }
+
+  @Test
+  public void heapPages() {
+    storeAndLookupRecords(MemoryAllocator.HEAP);
+  }
+
+  @Test
+  public void pageNumbersAreReused() {
+    PagedMemoryManager manager = new PagedMemoryManager(MemoryAllocator.HEAP);
+    MemoryBlock page0 = manager.allocatePage(64);
+    MemoryBlock page1 = manager.allocatePage(64);
+    long pointer = PagedMemoryManager.encodePageNumberAndOffset(page1, page1.getBaseOffset() + 8);
+    Assert.assertEquals(1, PagedMemoryManager.decodePageNumber(pointer));
+
+    manager.freePage(page0);
+    MemoryBlock page2 = manager.allocatePage(64);
+    pointer = PagedMemoryManager.encodePageNumberAndOffset(page2, page2.getBaseOffset());
+    Assert.assertEquals(0, PagedMemoryManager.decodePageNumber(pointer));
+    Assert.assertEquals(128, manager.freeAllPages());
+  }
+}
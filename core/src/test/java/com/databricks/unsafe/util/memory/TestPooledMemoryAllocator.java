@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util.memory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.databricks.unsafe.util.LongArray;
+
+public class TestPooledMemoryAllocator {
+
+  @Test
+  public void sizeClasses() {
+    Assert.assertEquals(16, PooledMemoryAllocator.slotSize(PooledMemoryAllocator.sizeClassIndex(1)));
+    Assert.assertEquals(16, PooledMemoryAllocator.slotSize(PooledMemoryAllocator.sizeClassIndex(16)));
+    Assert.assertEquals(32, PooledMemoryAllocator.slotSize(PooledMemoryAllocator.sizeClassIndex(17)));
+    Assert.assertEquals(512, PooledMemoryAllocator.slotSize(PooledMemoryAllocator.sizeClassIndex(512)));
+    Assert.assertEquals(640, PooledMemoryAllocator.slotSize(PooledMemoryAllocator.sizeClassIndex(513)));
+    Assert.assertEquals(768, PooledMemoryAllocator.slotSize(PooledMemoryAllocator.sizeClassIndex(641)));
+    Assert.assertEquals(1024, PooledMemoryAllocator.slotSize(PooledMemoryAllocator.sizeClassIndex(1024)));
+    Assert.assertEquals(
+      PooledMemoryAllocator.MAX_SMALL_SIZE,
+      PooledMemoryAllocator.slotSize(
+        PooledMemoryAllocator.sizeClassIndex(PooledMemoryAllocator.MAX_SMALL_SIZE)));
+
+    // Every size must map to the smallest class that can hold it.
+    for (int size = 1; size <= PooledMemoryAllocator.MAX_SMALL_SIZE; size++) {
+      int index = PooledMemoryAllocator.sizeClassIndex(size);
+      Assert.assertTrue(PooledMemoryAllocator.slotSize(index) >= size);
+      if (index > 0) {
+        Assert.assertTrue(PooledMemoryAllocator.slotSize(index - 1) < size);
+      }
+    }
+  }
+
+  @Test
+  public void recycledBlocksAreZeroed() {
+    PooledMemoryAllocator allocator = new PooledMemoryAllocator();
+    MemoryBlock block = allocator.allocate(64);
+    LongArray arr = new LongArray(block);
+    for (int i = 0; i < arr.size(); i++) {
+      arr.set(i, -1L);
+    }
+    allocator.free(block);
+
+    MemoryBlock reused = allocator.allocate(64);
+    Assert.assertEquals(block.getBaseOffset(), reused.getBaseOffset());
+    LongArray reusedArr = new LongArray(reused);
+    for (int i = 0; i < reusedArr.size(); i++) {
+      Assert.assertEquals(0L, reusedArr.get(i));
+    }
+    allocator.free(reused);
+  }
+
+  @Test
+  public void emptySlabsAreReleased() {
+    PooledMemoryAllocator allocator = new PooledMemoryAllocator();
+    List<MemoryBlock> blocks = new ArrayList<MemoryBlock>();
+    // 64KB slabs of 16 byte slots hold 4096 slots each, so this needs three slabs.
+    for (int i = 0; i < 4096 * 2 + 1; i++) {
+      blocks.add(allocator.allocate(16));
+    }
+    Assert.assertEquals(3, allocator.numSlabs());
+
+    for (MemoryBlock block : blocks) {
+      allocator.free(block);
+    }
+    // One empty slab is retained per size class.
+    Assert.assertEquals(1, allocator.numSlabs());
+  }
+
+  @Test
+  public void largeBlocksBypassSlabs() {
+    PooledMemoryAllocator allocator = new PooledMemoryAllocator();
+    MemoryBlock block = allocator.allocate(PooledMemoryAllocator.MAX_SMALL_SIZE + 8);
+    Assert.assertEquals(PooledMemoryAllocator.MAX_SMALL_SIZE + 8, block.size());
+    Assert.assertEquals(0, allocator.numSlabs());
+    allocator.free(block);
+  }
+
+  @Test
+  public void heapSlabs() {
+    PooledMemoryAllocator allocator = new PooledMemoryAllocator(MemoryAllocator.HEAP);
+    MemoryBlock a = allocator.allocate(24);
+    MemoryBlock b = allocator.allocate(24);
+    Assert.assertSame(a.getBaseObject(), b.getBaseObject());
+    Assert.assertEquals(32, b.getBaseOffset() - a.getBaseOffset());
+    allocator.free(a);
+    allocator.free(b);
+  }
+}
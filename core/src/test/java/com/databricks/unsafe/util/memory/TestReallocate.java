@@ -0,0 +1,160 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util.memory;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.databricks.unsafe.util.LongArray;
+
+public class TestReallocate {
+
+  /**
+   * Grows a block step by step up to a size beyond the pooled size classes and shrinks it again,
+   * checking that the contents are kept and grown parts are zeroed.
+   */
+  private static void checkReallocate(MemoryAllocator allocator) {
+    MemoryBlock block = allocator.allocate(16);
+    fill(block, 0);
+    long size = 16;
+    while (size < 512 * 1024) {
+      // Dirty a block that may later be reused by the reallocation.
+      MemoryBlock garbage = allocator.allocate(size * 2);
+      fill(garbage, -1);
+      allocator.free(garbage);
+
+      long oldSize = size;
+      size = size * 2 + 8;
+      block = allocator.reallocate(block, size);
+      Assert.assertEquals(size, block.size());
+      LongArray arr = new LongArray(block);
+      for (long i = 0; i < arr.size(); i++) {
+        Assert.assertEquals(i < oldSize / 8 ? i : 0, arr.get(i));
+      }
+      fill(block, 0);
+    }
+    block = allocator.reallocate(block, 64);
+    LongArray arr = new LongArray(block);
+    Assert.assertEquals(8, arr.size());
+    for (long i = 0; i < arr.size(); i++) {
+      Assert.assertEquals(i, arr.get(i));
+    }
+    allocator.free(block);
+  }
+
+  private static void fill(MemoryBlock block, long value) {
+    LongArray arr = new LongArray(block);
+    for (long i = 0; i < arr.size(); i++) {
+      arr.set(i, value == 0 ? i : value);
+    }
+  }
+
+  @Test
+  public void unsafe() {
+    checkReallocate(MemoryAllocator.UNSAFE);
+    MemoryBlock aligned = MemoryAllocator.UNSAFE.allocateAligned(64, MemoryAllocator.PAGE_SIZE);
+    MemoryAllocator.UNSAFE.free(MemoryAllocator.UNSAFE.reallocate(aligned, 128));
+  }
+
+  @Test
+  public void heap() {
+    checkReallocate(MemoryAllocator.HEAP);
+  }
+
+  @Test
+  public void pooled() {
+    PooledMemoryAllocator allocator = new PooledMemoryAllocator();
+    checkReallocate(allocator);
+    Assert.assertEquals(0, allocator.numUsedSlots());
+
+    // Sizes within the same size class keep the slot.
+    MemoryBlock block = allocator.allocate(600);
+    MemoryBlock resized = allocator.reallocate(block, 640);
+    Assert.assertEquals(block.getBaseOffset(), resized.getBaseOffset());
+    allocator.free(resized);
+  }
+
+  @Test
+  public void threadCaching() {
+    ThreadCachingMemoryAllocator allocator = new ThreadCachingMemoryAllocator();
+    checkReallocate(allocator);
+    // Shrinking a block below the cached sizes keeps its slot, which must still be cacheable.
+    MemoryBlock block = allocator.allocate(40 * 1024);
+    allocator.free(allocator.reallocate(block, 32 * 1024));
+    allocator.flushThreadCache();
+  }
+
+  @Test
+  public void arena() {
+    ArenaMemoryAllocator arena = new ArenaMemoryAllocator(MemoryAllocator.UNSAFE, 4096);
+    MemoryBlock block = arena.allocate(64);
+    MemoryBlock resized = arena.reallocate(block, 128);
+    Assert.assertEquals(block.getBaseOffset(), resized.getBaseOffset());
+    MemoryBlock next = arena.allocate(16);
+    Assert.assertEquals(resized.getBaseOffset() + 128, next.getBaseOffset());
+    Assert.assertEquals(1, arena.numChunks());
+    arena.close();
+
+    arena = new ArenaMemoryAllocator(MemoryAllocator.UNSAFE, 4096);
+    checkReallocate(arena);
+    arena.close();
+  }
+
+  @Test
+  public void mappedFile() throws Exception {
+    MappedFileMemoryAllocator allocator = new MappedFileMemoryAllocator();
+    try {
+      // The last region of the file is extended in place.
+      MemoryBlock block = allocator.allocate(4096);
+      allocator.reallocate(block, 3 * 4096);
+      Assert.assertEquals(3 * 4096, allocator.fileSize());
+      checkReallocate(allocator);
+    } finally {
+      allocator.close();
+    }
+  }
+
+  @Test
+  public void memoryConsumer() {
+    MemoryManager manager = new MemoryManager(1024 * 1024);
+    MemoryConsumer consumer = new MemoryConsumer(manager, MemoryAllocator.UNSAFE);
+    MemoryBlock block = consumer.allocate(1024);
+    block = consumer.reallocate(block, 4096);
+    Assert.assertEquals(4096, consumer.getUsed());
+    block = consumer.reallocate(block, 2048);
+    Assert.assertEquals(2048, consumer.getUsed());
+    consumer.free(block);
+    Assert.assertEquals(0, consumer.getUsed());
+  }
+
+  @Test
+  public void leakDetecting() {
+    LeakDetectingMemoryAllocator allocator =
+      new LeakDetectingMemoryAllocator(MemoryAllocator.UNSAFE);
+    checkReallocate(allocator);
+
+    MemoryBlock block = allocator.allocate(64);
+    MemoryBlock resized = allocator.reallocate(block, 128);
+    try {
+      allocator.free(block);
+      Assert.fail("freeing a reallocated block should fail");
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+    allocator.free(resized);
+  }
+}
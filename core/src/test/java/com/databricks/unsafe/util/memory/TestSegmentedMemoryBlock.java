@@ -0,0 +1,146 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.databricks.unsafe.util.memory;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.databricks.unsafe.util.BitSet;
+import com.databricks.unsafe.util.DoubleArray;
+import com.databricks.unsafe.util.IntArray;
+import com.databricks.unsafe.util.LongArray;
+
+public class TestSegmentedMemoryBlock {
+
+  private static final HeapMemoryAllocator HEAP = (HeapMemoryAllocator) MemoryAllocator.HEAP;
+
+  /** 256 byte segments, so that small arrays span many segments. */
+  private static final int SEGMENT_SHIFT = 8;
+
+  @Test
+  public void segments() {
+    SegmentedMemoryBlock block = HEAP.allocateSegmented(1000, SEGMENT_SHIFT);
+    Assert.assertEquals(1000, block.size());
+    Assert.assertEquals(4, block.getSegments().length);
+    Assert.assertEquals(32, block.getSegments()[0].length);
+    Assert.assertEquals(29, block.getSegments()[3].length);
+    Assert.assertSame(block.getSegments()[0], block.getBaseObject());
+  }
+
+  @Test
+  public void arrays() {
+    LongArray longs = new LongArray(HEAP.allocateSegmented(8 * 1000, SEGMENT_SHIFT));
+    IntArray ints = new IntArray(HEAP.allocateSegmented(4 * 1000, SEGMENT_SHIFT));
+    DoubleArray doubles = new DoubleArray(HEAP.allocateSegmented(8 * 1000, SEGMENT_SHIFT));
+    for (int i = 0; i < 1000; i++) {
+      longs.set(i, i * 3L);
+      ints.set(i, -i);
+      doubles.set(i, i / 2.0);
+    }
+    for (int i = 0; i < 1000; i++) {
+      Assert.assertEquals(i * 3L, longs.get(i));
+      Assert.assertEquals(-i, ints.get(i));
+      Assert.assertEquals(i / 2.0, doubles.get(i), 0.0);
+    }
+
+    long[] longArr = longs.toJvmArray();
+    int[] intArr = ints.toJvmArray();
+    double[] doubleArr = doubles.toJvmArray();
+    for (int i = 0; i < 1000; i++) {
+      Assert.assertEquals(i * 3L, longArr[i]);
+      Assert.assertEquals(-i, intArr[i]);
+      Assert.assertEquals(i / 2.0, doubleArr[i], 0.0);
+    }
+  }
+
+  @Test
+  public void bitSet() {
+    BitSet bitset = new BitSet(HEAP.allocateSegmented(1024, SEGMENT_SHIFT));
+    for (long i = 0; i < bitset.capacity(); i += 7) {
+      bitset.set(i);
+    }
+    for (long i = 0; i < bitset.capacity(); i++) {
+      Assert.assertEquals(i % 7 == 0, bitset.isSet(i));
+    }
+  }
+
+  @Test
+  public void fillAndCopy() {
+    SegmentedMemoryBlock block = HEAP.allocateSegmented(1024, SEGMENT_SHIFT);
+    block.fill(100, 600, (byte) 1);
+    LongArray arr = new LongArray(block);
+    Assert.assertEquals(0L, arr.get(11));
+    Assert.assertEquals(0x0101010101010101L, arr.get(13));
+    Assert.assertEquals(0x0101010101010101L, arr.get(86));
+    Assert.assertEquals(0L, arr.get(88));
+
+    for (int i = 0; i < arr.size(); i++) {
+      arr.set(i, i);
+    }
+    MemoryBlock offHeap = MemoryAllocator.UNSAFE.allocate(1024);
+    try {
+      MemoryBlock.copy(block, 0, offHeap, 0, 1024);
+      MemoryBlock.copy(offHeap, 0, block, 8, 1016);
+      for (int i = 1; i < arr.size(); i++) {
+        Assert.assertEquals(i - 1, arr.get(i));
+      }
+    } finally {
+      MemoryAllocator.UNSAFE.free(offHeap);
+    }
+  }
+
+  @Test
+  public void overlappingCopy() {
+    SegmentedMemoryBlock block = HEAP.allocateSegmented(1024, SEGMENT_SHIFT);
+    LongArray arr = new LongArray(block);
+    for (int i = 0; i < arr.size(); i++) {
+      arr.set(i, i);
+    }
+    MemoryBlock.copy(block, 0, block, 24, 1000);
+    for (int i = 3; i < arr.size(); i++) {
+      Assert.assertEquals(i - 3, arr.get(i));
+    }
+    MemoryBlock.copy(block, 24, block, 0, 1000);
+    for (int i = 0; i < arr.size() - 3; i++) {
+      Assert.assertEquals(i, arr.get(i));
+    }
+  }
+
+  @Test
+  public void reallocateSharesFullSegments() {
+    SegmentedMemoryBlock block = HEAP.allocateSegmented(600, SEGMENT_SHIFT);
+    new LongArray(block).set(74, 42L);
+    MemoryBlock grown = HEAP.reallocate(block, 2000);
+    Assert.assertTrue(grown instanceof SegmentedMemoryBlock);
+    long[][] segments = ((SegmentedMemoryBlock) grown).getSegments();
+    Assert.assertSame(block.getSegments()[0], segments[0]);
+    Assert.assertSame(block.getSegments()[1], segments[1]);
+    LongArray arr = new LongArray(grown);
+    Assert.assertEquals(42L, arr.get(74));
+    Assert.assertEquals(0L, arr.get(75));
+    Assert.assertEquals(0L, arr.get(249));
+  }
+
+  @Test(expected = OutOfMemoryError.class)
+  public void allocateBeyondArrayLimit() {
+    HEAP.allocate(HeapMemoryAllocator.MAX_ARRAY_BLOCK_SIZE + 8);
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void sliceIsNotSupported() {
+    HEAP.allocateSegmented(1024, SEGMENT_SHIFT).slice(0, 8);
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 Databricks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.databricks.unsafe.util.memory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.databricks.unsafe.util.LongArray;
+import com.databricks.unsafe.util.thread.DefaultThreadFactory;
+
+public class TestThreadCachingMemoryAllocator {
+
+  @Test
+  public void cachedBlocksAreZeroed() {
+    ThreadCachingMemoryAllocator allocator = new ThreadCachingMemoryAllocator();
+    MemoryBlock block = allocator.allocate(128);
+    LongArray arr = new LongArray(block);
+    for (int i = 0; i < arr.size(); i++) {
+      arr.set(i, -1L);
+    }
+    allocator.free(block);
+
+    MemoryBlock reused = allocator.allocate(120);
+    Assert.assertEquals(block.getBaseOffset(), reused.getBaseOffset());
+    LongArray reusedArr = new LongArray(reused);
+    for (int i = 0; i < reusedArr.size(); i++) {
+      Assert.assertEquals(0L, reusedArr.get(i));
+    }
+    allocator.free(reused);
+    allocator.flushThreadCache();
+  }
+
+  @Test
+  public void flushThreadCache() {
+    PooledMemoryAllocator pool = new PooledMemoryAllocator();
+    ThreadCachingMemoryAllocator allocator = new ThreadCachingMemoryAllocator(pool);
+    List<MemoryBlock> blocks = new ArrayList<MemoryBlock>();
+    for (int i = 0; i < 1000; i++) {
+      blocks.add(allocator.allocate(48));
+    }
+    for (MemoryBlock block : blocks) {
+      allocator.free(block);
+    }
+    Assert.assertTrue(pool.numUsedSlots() > 0);
+
+    allocator.flushThreadCache();
+    Assert.assertEquals(0, pool.numUsedSlots());
+  }
+
+  @Test(timeout = 10000)
+  public void cacheIsDrainedWhenThreadTerminates() throws Throwable {
+    final PooledMemoryAllocator pool = new PooledMemoryAllocator();
+    final ThreadCachingMemoryAllocator allocator = new ThreadCachingMemoryAllocator(pool);
+    final AtomicLong cachedSlots = new AtomicLong();
+    final AtomicReference<Throwable> throwable = new AtomicReference<Throwable>();
+
+    Thread thread = new DefaultThreadFactory("test").newThread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          List<MemoryBlock> blocks = new ArrayList<MemoryBlock>();
+          for (int i = 0; i < 1000; i++) {
+            blocks.add(allocator.allocate(16 + (i % 64) * 16));
+          }
+          for (MemoryBlock block : blocks) {
+            allocator.free(block);
+          }
+          cachedSlots.set(pool.numUsedSlots());
+        } catch (Throwable t) {
+          throwable.set(t);
+        }
+      }
+    });
+    thread.start();
+    thread.join();
+
+    if (throwable.get() != null) {
+      throw throwable.get();
+    }
+    Assert.assertTrue(cachedSlots.get() > 0);
+    Assert.assertEquals(0, pool.numUsedSlots());
+  }
+}